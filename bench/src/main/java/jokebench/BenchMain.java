@@ -0,0 +1,50 @@
+/*--------------------------------------------------------
+
+BenchMain.java
+
+Entry point of benchmarks.jar. It runs JMH with the options given on the command line (the same ones as
+"java -jar benchmarks.jar -h" lists) plus two defaults that make runs comparable:
+
+a. The GC profiler is always on, so every result comes with gc.alloc.rate.norm, the bytes allocated per operation.
+   That number does not depend on the machine and shows allocation work right away.
+b. Results are written as JSON to jmh-result.json (-rff <file> to choose another file). To compare a change, run the
+   same benchmarks before and after it on the same machine and compare the two files, for example with
+   https://jmh.morethan.io or by diffing the score and gc.alloc.rate.norm of each benchmark.
+
+Every benchmark class fixes its own fork count, warm-up and measurement iterations and heap size, so two runs only
+differ in the code under test.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            // Nothing to run, the stock launcher prints what was asked for
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        builder.addProfiler(GCProfiler.class);
+        if (!commandLine.getResult().hasValue()) {
+            builder.result("jmh-result.json");
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
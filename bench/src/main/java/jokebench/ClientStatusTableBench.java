@@ -0,0 +1,112 @@
+/*--------------------------------------------------------
+
+ClientStatusTableBench.java
+
+The ClientStatusTable under contention: 4 threads working on the same table, either each on its own users (the
+normal case, many clients) or all on one user (one client hammering the server, every call waits for the same
+ClientStatus lock).
+
+a. add: look up a user, adding it if new, the first step of every request.
+b. nextIndexes: take the next item of the user's cycle, what a request actually does.
+c. getIndexTable: the items left in the user's cycle, computed from the permutation, so it grows with the catalog.
+d. setIndexTable: start a new cycle for the user.
+
+The catalog size is a parameter: 4 is the built-in catalog, 4096 a corpus file (getIndexTable walks the whole rest of
+the cycle, so much larger catalogs only measure that walk; CycleBench covers catalogs of millions of items).
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class ClientStatusTableBench {
+    private static final MethodHandle NEW_TABLE = ServerClasses.constructor("ClientStatusTable", int.class, int.class);
+    private static final MethodHandle ADD = ServerClasses.method("ClientStatusTable", "add", UUID.class);
+    private static final MethodHandle NEXT_INDEXES = ServerClasses.method("ClientStatusTable", "nextIndexes", UUID.class, int.class, int[].class);
+    private static final MethodHandle GET_INDEX_TABLE = ServerClasses.method("ClientStatusTable", "getIndexTable", UUID.class, int.class);
+    private static final MethodHandle SET_INDEX_TABLE = ServerClasses.method("ClientStatusTable", "setIndexTable", UUID.class, int.class);
+
+    // Users in the table, each thread picks among them at random
+    private static final int USERS = 1 << 16;
+
+    @Param({"4", "4096"})
+    int catalogSize;
+
+    Object table;
+    UUID[] users;
+
+    @Setup(Level.Trial)
+    public void fillTable() throws Throwable {
+        table = NEW_TABLE.invokeExact(catalogSize, catalogSize);
+        users = new UUID[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = UUID.randomUUID();
+            Object added = ADD.invokeExact(table, users[i]);
+        }
+    }
+
+    // What one thread works with: a user of its own for every call, or the one user every thread shares
+    @State(Scope.Thread)
+    public static class Caller {
+        final int[] indexes = new int[1];
+        private int next = ThreadLocalRandom.current().nextInt(USERS);
+
+        UUID someUser(ClientStatusTableBench bench) {
+            next = (next + 1) & (USERS - 1);
+            return bench.users[next];
+        }
+
+        UUID sharedUser(ClientStatusTableBench bench) {
+            return bench.users[0];
+        }
+    }
+
+    @Benchmark
+    public Object add(Caller caller) throws Throwable {
+        return (Object) ADD.invokeExact(table, caller.someUser(this));
+    }
+
+    @Benchmark
+    public Object addSameUser(Caller caller) throws Throwable {
+        return (Object) ADD.invokeExact(table, caller.sharedUser(this));
+    }
+
+    @Benchmark
+    public int nextIndexes(Caller caller) throws Throwable {
+        return (int) NEXT_INDEXES.invokeExact(table, caller.someUser(this), 1, caller.indexes);
+    }
+
+    @Benchmark
+    public int nextIndexesSameUser(Caller caller) throws Throwable {
+        return (int) NEXT_INDEXES.invokeExact(table, caller.sharedUser(this), 1, caller.indexes);
+    }
+
+    @Benchmark
+    public List<?> getIndexTable(Caller caller) throws Throwable {
+        return (List<?>) GET_INDEX_TABLE.invokeExact(table, caller.someUser(this), 1);
+    }
+
+    @Benchmark
+    public void setIndexTable(Caller caller) throws Throwable {
+        SET_INDEX_TABLE.invokeExact(table, caller.someUser(this), 1);
+    }
+
+    @Benchmark
+    public void setIndexTableSameUser(Caller caller) throws Throwable {
+        SET_INDEX_TABLE.invokeExact(table, caller.sharedUser(this), 1);
+    }
+}
@@ -0,0 +1,69 @@
+/*--------------------------------------------------------
+
+CycleBench.java
+
+The cost of a cycle. The server used to start every cycle by building and shuffling a list of every index of the
+catalog (initializeIndexTable); since the cycles are seeds and cursors over CyclePermutation, an item costs one
+permutation lookup and a new cycle costs nothing but a new seed.
+
+a. shuffleCycle: the old way, build the index list of the catalog and Collections.shuffle it, once per cycle.
+b. permutationIndex: one CyclePermutation.index lookup, once per item served.
+c. permutationCycle: a whole cycle of lookups, to compare with shuffleCycle item for item.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class CycleBench {
+    private static final MethodHandle INDEX = ServerClasses.method("CyclePermutation", "index", long.class, int.class, int.class);
+
+    @Param({"4", "1000", "1000000"})
+    int size;
+
+    long seed;
+    int position;
+
+    @Setup(Level.Iteration)
+    public void newSeed() {
+        seed = ThreadLocalRandom.current().nextLong();
+    }
+
+    @Benchmark
+    public List<Integer> shuffleCycle() {
+        List<Integer> indexes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            indexes.add(i);
+        }
+        Collections.shuffle(indexes, ThreadLocalRandom.current());
+        return indexes;
+    }
+
+    @Benchmark
+    public int permutationIndex() throws Throwable {
+        position = (position + 1 == size) ? 0 : position + 1;
+        return (int) INDEX.invokeExact(seed, position, size);
+    }
+
+    @Benchmark
+    public void permutationCycle(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < size; i++) {
+            blackhole.consume((int) INDEX.invokeExact(seed, i, size));
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*--------------------------------------------------------
+
+LoopbackBench.java
+
+End to end: a JokeServer started inside the benchmark JVM on a free port, and clients asking it for jokes over the
+loopback interface, 4 threads at a time. This is the number that tells whether a change to the server pays off for
+a client, everything else in this module explains where the time goes.
+
+a. oneShot: the original protocol, a new connection per request with the username and UUID lines.
+b. session: one keep-alive text session per thread, a NEXT line per request.
+c. http: one kept-alive HTTP/1.1 connection per thread to the HTTP front end, a GET /next per request, so the JSON
+   replies of HttpJokeServer are measured against the text session. The front end has an executor of its own, the
+   engine parameter does not change it.
+d. binary: one binary protocol connection per thread, a NEXT frame per request.
+
+Both engines are measured (the engine parameter). Journal, replication, request logging and the rate limit are off and
+the in-flight cap is out of reach, so only the request path is measured; every fork of JMH starts its own server,
+since a JokeServer cannot be stopped in-process.
+Every reply is checked: a "#" line (#BUSY, #MOVED, #ERROR) or a binary reply other than OK fails the benchmark, so a
+refusal can never be measured as a fast answer. An HTTP reply other than 200 fails it the same way.
+The one-shot benchmark opens and closes a connection per operation, so on a busy machine it may run into the limits
+of the loopback interface (ephemeral ports, TIME_WAIT) before it runs into the server's.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Threads(4)
+public class LoopbackBench {
+    private static final MethodHandle MAIN = ServerClasses.method("JokeServer", "main", String[].class);
+    // Magic byte and OK status of a binary reply, see BinaryProtocol.java
+    private static final byte MAGIC = (byte) 0xA5;
+    private static final byte STATUS_OK = 0;
+
+    // The server, started once per fork
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"blocking", "nio"})
+        String engine;
+
+        int port;
+        int httpPort;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            port = freePort();
+            httpPort = freePort();
+            System.setProperty("joke.port", String.valueOf(port));
+            System.setProperty("joke.http.port", String.valueOf(httpPort));
+            System.setProperty("joke.admin.port", String.valueOf(freePort()));
+            System.setProperty("joke.engine", engine);
+            System.setProperty("joke.journal", "false");
+            System.setProperty("joke.replication", "false");
+            // Four users asking as fast as they can are far past the default rate limit, and the one-shot benchmark
+            // keeps many connections in TIME_WAIT but never more than four open
+            System.setProperty("joke.ratelimit.rate", "0");
+            System.setProperty("joke.inflight.max", "100000");
+            System.setProperty("joke.log.level", "WARN");
+            System.setProperty("joke.log.console", "false");
+            System.setProperty("joke.log.file", new File(System.getProperty("java.io.tmpdir"), "JokeBench-log.txt").getPath());
+            Thread server = new Thread(() -> {
+                try {
+                    MAIN.invokeExact(new String[0]);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }, "JokeBench-server");
+            server.setDaemon(true);
+            server.start();
+            waitForPort(port);
+            waitForPort(httpPort);
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                return probe.getLocalPort();
+            }
+        }
+
+        private static void waitForPort(int port) throws Exception {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try (Socket probe = new Socket()) {
+                    probe.connect(new InetSocketAddress("localhost", port), 100);
+                    return;
+                } catch (IOException notYet) {
+                    Thread.sleep(100);
+                }
+            }
+            throw new IllegalStateException("JokeServer did not start at port " + port);
+        }
+    }
+
+    // One client of the one-shot benchmark: its own UUID
+    @State(Scope.Thread)
+    public static class Client {
+        final UUID uuid = UUID.randomUUID();
+        final String request = "bob\n" + uuid + "\n";
+    }
+
+    // One client with an open text session. Each connection state is only set up by the benchmark that uses it: the
+    // blocking engine holds a worker thread for every open connection, so idle ones would starve the benchmark measured.
+    @State(Scope.Thread)
+    public static class SessionClient {
+        final UUID uuid = UUID.randomUUID();
+        Socket socket;
+        BufferedReader in;
+        Writer out;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write("#SESSION\nbob\n" + uuid + "\n");
+            out.flush();
+            String ok = in.readLine();
+            if (ok == null || !ok.startsWith("#OK")) {
+                throw new IOException("Session refused: " + ok);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // One client with an open binary protocol connection
+    @State(Scope.Thread)
+    public static class BinaryClient {
+        final UUID uuid = UUID.randomUUID();
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        int requestId;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // One client with a kept-alive HTTP connection
+    @State(Scope.Thread)
+    public static class HttpClient {
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        byte[] request;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            request = ("GET /next?uuid=" + UUID.randomUUID() + "&name=bob HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            socket = new Socket("localhost", server.httpPort);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public String oneShot(Server server, Client client) throws IOException {
+        try (Socket sock = new Socket("localhost", server.port)) {
+            sock.setTcpNoDelay(true);
+            OutputStream out = sock.getOutputStream();
+            out.write(client.request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return checked(new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8)).readLine());
+        }
+    }
+
+    @Benchmark
+    public String session(SessionClient client) throws IOException {
+        client.out.write("NEXT\n");
+        client.out.flush();
+        return checked(client.in.readLine());
+    }
+
+    @Benchmark
+    public byte[] http(HttpClient client) throws IOException {
+        client.out.write(client.request);
+        client.out.flush();
+        InputStream in = client.in;
+        String status = headerLine(in);
+        if (!status.startsWith("HTTP/1.1 200 ")) {
+            throw new IOException("Not a joke/proverb: " + status);
+        }
+        int length = -1;
+        String header;
+        while (!(header = headerLine(in)).isEmpty()) {
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(header.substring(15).trim());
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Reply without Content-Length");
+        }
+        byte[] body = new byte[length];
+        new DataInputStream(in).readFully(body);
+        return body;
+    }
+
+    @Benchmark
+    public byte[] binary(BinaryClient client) throws IOException {
+        DataOutputStream out = client.out;
+        // NEXT frame, see BinaryProtocol.java: header, then UUID and username
+        out.writeByte(0xA5);
+        out.writeByte(1);
+        out.writeByte(1);
+        out.writeInt(++client.requestId);
+        out.writeInt(16 + 2 + 3);
+        out.writeLong(client.uuid.getMostSignificantBits());
+        out.writeLong(client.uuid.getLeastSignificantBits());
+        out.writeShort(3);
+        out.writeBytes("bob");
+        out.flush();
+        DataInputStream in = client.in;
+        byte magic = in.readByte();
+        if (magic != MAGIC) {
+            // Not a frame, the server answered the connection with a "#BUSY" line
+            throw new IOException("Not a binary reply: " + (char) magic + new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine());
+        }
+        in.readByte();
+        byte status = in.readByte();
+        in.readInt();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        if (status != STATUS_OK) {
+            throw new IOException("Reply status " + status + ": " + new String(body, StandardCharsets.UTF_8));
+        }
+        return body;
+    }
+
+    // One line of an HTTP reply header, without its CRLF
+    private static String headerLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed in a reply header");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    // The reply line of a text request, failing on a "#" line and on a closed connection
+    private static String checked(String line) throws IOException {
+        if (line == null || line.startsWith("#")) {
+            throw new IOException("Not a joke/proverb: " + line);
+        }
+        return line;
+    }
+}
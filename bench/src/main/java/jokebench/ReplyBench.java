@@ -0,0 +1,107 @@
+/*--------------------------------------------------------
+
+ReplyBench.java
+
+Building the reply of one item for the built-in corpus.
+
+a. makeReturnString: the reply as a String, title, username and text appended by Worker.makeReturnString, then
+   encoded the way PrintStream.println would, which is what the server did before replies became byte segments.
+b. writeItem: the reply as queued today, slices of the Corpus buffer around the username bytes in a ReplyBuffer, then
+   drained by one gathering write into a channel that drops the bytes.
+c. writeBinaryItem: the same for the binary protocol, with a length in front instead of the line separator.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class ReplyBench {
+    private static final Class<?> CORPUS = ServerClasses.load("Corpus");
+    private static final Class<?> REPLY_BUFFER = ServerClasses.load("ReplyBuffer");
+    private static final MethodHandle INITIALIZE_DATA = ServerClasses.method("JokeServer", "initializeData");
+    private static final MethodHandle GET_CORPUS = ServerClasses.method("JokeServer", "getCorpus");
+    private static final MethodHandle MAKE_RETURN_STRING = ServerClasses.method("Worker", "makeReturnString", CORPUS, int.class, int.class, String.class);
+    private static final MethodHandle WRITE_ITEM = ServerClasses.method("Corpus", "writeItem", int.class, int.class, boolean.class, byte[].class, REPLY_BUFFER);
+    private static final MethodHandle WRITE_BINARY_ITEM = ServerClasses.method("Corpus", "writeBinaryItem", int.class, int.class, boolean.class, byte[].class, REPLY_BUFFER);
+    private static final MethodHandle NEW_REPLY_BUFFER = ServerClasses.constructor("ReplyBuffer");
+    private static final MethodHandle WRITE_TO = ServerClasses.method("ReplyBuffer", "writeTo", GatheringByteChannel.class);
+
+    private static final String USERNAME = "bob";
+
+    Object corpus;
+    Object out;
+    byte[] usernameBytes;
+    GatheringByteChannel sink = new Sink();
+    int index;
+
+    @Setup(Level.Trial)
+    public void loadCorpus() throws Throwable {
+        INITIALIZE_DATA.invokeExact();
+        corpus = GET_CORPUS.invokeExact();
+        out = NEW_REPLY_BUFFER.invokeExact();
+        usernameBytes = USERNAME.getBytes(Charset.defaultCharset());
+    }
+
+    @Benchmark
+    public byte[] makeReturnString() throws Throwable {
+        index = (index + 1) & 3;
+        String line = (String) MAKE_RETURN_STRING.invokeExact(corpus, 1, index, USERNAME);
+        return (line + System.lineSeparator()).getBytes(Charset.defaultCharset());
+    }
+
+    @Benchmark
+    public boolean writeItem() throws Throwable {
+        index = (index + 1) & 3;
+        WRITE_ITEM.invokeExact(corpus, 1, index, false, usernameBytes, out);
+        return (boolean) WRITE_TO.invokeExact(out, sink);
+    }
+
+    @Benchmark
+    public boolean writeBinaryItem() throws Throwable {
+        index = (index + 1) & 3;
+        WRITE_BINARY_ITEM.invokeExact(corpus, 1, index, false, usernameBytes, out);
+        return (boolean) WRITE_TO.invokeExact(out, sink);
+    }
+
+    // A channel that takes every byte and keeps none, so only the cost of building the reply is measured
+    static final class Sink implements GatheringByteChannel {
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return written;
+        }
+
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
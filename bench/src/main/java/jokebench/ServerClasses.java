@@ -0,0 +1,74 @@
+/*--------------------------------------------------------
+
+ServerClasses.java
+
+Access to the JokeServer classes from the benchmarks. The server lives in the default package and most of its classes
+are package-private, while JMH only accepts benchmarks in a named package, and a named package can never name a class
+of the default package. So the benchmarks call the server through method handles.
+
+A handle is looked up once and kept in a static final field of the benchmark, where the JIT compiles invokeExact into
+a direct call. Parameter and return types that are server classes are erased to Object, every other type stays exact,
+so a call site reads for example:
+    int finished = (int) NEXT_INDEXES.invokeExact(table, uuid, listIndex, indexes);    // table is an Object
+and no primitive gets boxed on the way.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+final class ServerClasses {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private ServerClasses() {
+    }
+
+    // A class of the server by its simple name
+    static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException("Server class " + name + " is not on the class path", cnfe);
+        }
+    }
+
+    // Handle of a static or instance method, an instance method takes the object as its first argument
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = load(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return erase(LOOKUP.unreflect(method));
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("No method " + className + "." + name, roe);
+        }
+    }
+
+    // Handle of a constructor
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = load(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return erase(LOOKUP.unreflectConstructor(constructor));
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("No constructor of " + className, roe);
+        }
+    }
+
+    // Replace the server classes in the type of a handle by Object
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            type = type.changeParameterType(i, visible(type.parameterType(i)));
+        }
+        return handle.asType(type.changeReturnType(visible(type.returnType())));
+    }
+
+    private static Class<?> visible(Class<?> type) {
+        return (!type.isPrimitive() && !type.isArray() && type.getName().indexOf('.') < 0) ? Object.class : type;
+    }
+}
@@ -0,0 +1,52 @@
+/*--------------------------------------------------------
+
+UuidBench.java
+
+Getting the UUID of a request. The text protocol sends it as a 36 character line that every request parses with
+UUID.fromString; the binary protocol sends the 16 bytes, read as two longs.
+
+----------------------------------------------------------*/
+
+package jokebench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class UuidBench {
+    String text;
+    ByteBuffer bytes;
+
+    @Setup(Level.Trial)
+    public void newUuid() {
+        UUID uuid = UUID.randomUUID();
+        text = uuid.toString();
+        bytes = ByteBuffer.allocate(16);
+        bytes.putLong(0, uuid.getMostSignificantBits());
+        bytes.putLong(8, uuid.getLeastSignificantBits());
+    }
+
+    @Benchmark
+    public UUID fromString() {
+        return UUID.fromString(text);
+    }
+
+    @Benchmark
+    public UUID fromBytes() {
+        return new UUID(bytes.getLong(0), bytes.getLong(8));
+    }
+
+    // The other direction, what a logged request pays to write its UUID
+    @Benchmark
+    public String toText() {
+        return new UUID(bytes.getLong(0), bytes.getLong(8)).toString();
+    }
+}
@@ -0,0 +1,134 @@
+/*--------------------------------------------------------
+
+AdmissionControl.java
+
+Keeps a JokeServer responsive when more work arrives than it can take. Instead of letting connections and requests
+queue up without limit until clients time out on them, the work past a limit is refused right away with an answer
+that tells the client when to come back:
+    #BUSY <ms>
+a single line, after which the client may try again in <ms> milliseconds (STATUS_BUSY with <ms> as its text in the
+binary protocol, see BinaryProtocol.java).
+
+a. The accept backlog of the joke port (-Djoke.backlog, 128 by default) and of the admin port (-Djoke.admin.backlog,
+   16 by default) is the queue of connections the kernel completes before the server accepts them. The old fixed 6
+   made a burst of a few dozen connections wait for SYN retransmits (1 s, then 3 s) while the server was nearly idle.
+b. At most -Djoke.inflight.max connections (1024 by default) are served at once, counting the ones waiting for a
+   worker, the ones in a request and the open sessions, since every engine keeps the state of a request on its
+   connection. A connection past the cap is answered "#BUSY <ms>" on the accept thread and closed before any worker
+   or selector sees it, and so is a connection the worker pool has no room for. <ms> is -Djoke.busy.retry.ms (100 by
+   default). The answer comes before the server knows the protocol of the connection, so it is always the text line.
+c. Each UUID has a token bucket of -Djoke.ratelimit.burst items (100 by default), refilled at -Djoke.ratelimit.rate
+   items per second (0 by default, which turns the limit off). A request takes one token per item, a batch as many as it
+   asks for (at most the burst). A request the bucket cannot pay for is answered "#BUSY <ms>" with the time until the
+   bucket holds enough, takes nothing from the user's cycle and leaves a session open.
+d. The buckets live in a fixed array of -Djoke.ratelimit.slots longs (65536 by default, 512 KB), a slot per UUID hash.
+   A slot packs the time of its last refill and the tokens left, so a request updates its bucket with one
+   compare-and-set and never takes a lock. The memory does not grow with the number of users and a client making up
+   new UUIDs gains nothing; two UUIDs that share a slot share its tokens, which only makes the limit stricter for both.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class AdmissionControl {
+    // Answer of a request or connection the server has no room for, followed by the milliseconds to wait
+    static final String BUSY = "#BUSY ";
+
+    private static final int MAX_IN_FLIGHT = ServerConfig.inFlightMax();
+    private static final long BUSY_RETRY_MILLIS = ServerConfig.busyRetryMillis();
+    // The whole answer of a connection past the cap, encoded once
+    private static final byte[] BUSY_LINE = (BUSY + BUSY_RETRY_MILLIS + "\n").getBytes(ReplyBuffer.CHARSET);
+
+    // Items per second added to a bucket, 0 when the rate limit is off
+    private static final long RATE = Math.max(0, ServerConfig.rateLimitRate());
+    // Tokens are counted in thousandths, so a bucket gains exactly RATE of them per millisecond
+    private static final long BURST_MILLI_TOKENS = Math.max(1, Math.min(ServerConfig.rateLimitBurst(), 16000)) * 1000L;
+    // Low bits of a slot: tokens left in thousandths, enough for a burst of 16000 items. High bits: last refill time.
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    // Milliseconds are counted from well before start-up, so an unused slot (0) reads as a full bucket
+    private static final long EPOCH_MILLIS = System.nanoTime() / 1000000L - 1000000L;
+
+    private static final AtomicLongArray BUCKETS = new AtomicLongArray((RATE > 0) ? slotCount(ServerConfig.rateLimitSlots()) : 1);
+    private static final int SLOT_SHIFT = 64 - Integer.numberOfTrailingZeros(BUCKETS.length());
+
+    // True if the engine may take one more connection, called by the accept thread before it counts the connection
+    static boolean admitConnection() {
+        return ServerMetrics.ACTIVE.sum() < MAX_IN_FLIGHT;
+    }
+
+    /*
+    Answer a connection the server has no room for and close it. The answer is a few bytes on a socket that has not
+    sent anything yet, so the write never blocks the accept thread. The request that arrived already is read first:
+    closing a socket with unread data resets the connection, and the client could lose the answer to the reset.
+     */
+    static void refuse(SocketChannel channel) {
+        refuse(channel, BUSY_LINE);
+    }
+
+    // Same with the answer of another protocol, the HTTP port answers 503
+    static void refuse(SocketChannel channel, byte[] answer) {
+        ServerMetrics.REJECTED.increment();
+        try {
+            channel.write(ByteBuffer.wrap(answer));
+            channel.configureBlocking(false);
+            ByteBuffer unread = ByteBuffer.allocate(512);
+            for (int i = 0; i < 8 && channel.read(unread) > 0; i++) {
+                unread.clear();
+            }
+        } catch (IOException ioe) {
+            // Gone already, nothing to tell
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Nothing more to do for a connection we turn away
+            }
+        }
+    }
+
+    /*
+    Take count tokens from the bucket of the given user. Returns 0 if the request may go ahead, otherwise the
+    milliseconds until the bucket holds enough tokens, in which case nothing was taken.
+     */
+    static long tryAcquire(UUID uuid, int count) {
+        if (RATE == 0) {
+            return 0;
+        }
+        int slot = slotOf(uuid);
+        long cost = Math.min(count * 1000L, BURST_MILLI_TOKENS);
+        while (true) {
+            long state = BUCKETS.get(slot);
+            long now = System.nanoTime() / 1000000L - EPOCH_MILLIS;
+            long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+            long tokens = Math.min(BURST_MILLI_TOKENS, (state & TOKEN_MASK) + Math.min(elapsed, BURST_MILLI_TOKENS) * RATE);
+            if (tokens < cost) {
+                ServerMetrics.THROTTLED.increment();
+                return Math.max(1, (cost - tokens + RATE - 1) / RATE);
+            }
+            if (BUCKETS.compareAndSet(slot, state, (now << TOKEN_BITS) | (tokens - cost))) {
+                return 0;
+            }
+        }
+    }
+
+    // Spread the bits of the UUID over the slot index, random UUIDs are well mixed already but client-made ones may not be
+    private static int slotOf(UUID uuid) {
+        long h = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L;
+        return (SLOT_SHIFT == 64) ? 0 : (int) (h >>> SLOT_SHIFT);
+    }
+
+    // The configured number of slots rounded up to a power of two
+    private static int slotCount(int slots) {
+        int count = 1;
+        while (count < slots && count < (1 << 24)) {
+            count <<= 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,209 @@
+/*--------------------------------------------------------
+
+BinaryProtocol.java
+
+Compact binary protocol of the joke port, next to the text protocol of JokeProtocol.java. A connection is binary when
+its first byte is the magic byte 0xA5, which never starts a line of text (it is not a character of its own in UTF-8),
+so both protocols share the port and every existing client keeps working. Both engines use this class.
+
+Every frame, both ways, is an 11 byte header followed by a body, all numbers big-endian:
+    byte magic (0xA5), byte version (1), byte opcode or status, int request id, int body length
+The request id of a request is sent back in the header of its reply, so a client may send several requests before it
+reads the replies. The connection stays open until the client closes it, or stays silent for longer than the idle
+timeout (-Djoke.session.idle.ms) like a text session.
+
+a. Requests, the UUID is 16 bytes (most significant long first) instead of a 36 character string:
+       NEXT  (1)   uuid, short username length, username bytes (UTF-8)
+       BATCH (2)   uuid, short count, short username length, username bytes
+       QUIT  (3)   uuid
+       STATS (4)   empty body
+b. Replies:
+       OK    (0)   NEXT/BATCH: short count, then count times (int length, item bytes). QUIT/STATS: UTF-8 text.
+       ERROR (1)   UTF-8 text telling what was wrong with the request
+       MOVED (2)   UTF-8 host:port of the cluster node that owns the user, see ClusterRing.java
+       BUSY  (3)   UTF-8 milliseconds after which a NEXT/BATCH over the rate limit of the user may be sent again,
+                   see AdmissionControl.java. A connection the server has no room for is answered with the text line
+                   "#BUSY <ms>" before its first frame is read, so a reply starting with '#' instead of the magic byte
+                   is that answer.
+c. A frame of an unknown version, with a wrong magic byte or a body longer than 4096 bytes is answered with ERROR and
+   the connection is closed, since the following bytes cannot be trusted to start a frame. An unknown opcode or a
+   malformed body is answered with ERROR and the connection stays open.
+d. There are no empty-line signals: quitting is its own opcode, and the shutdown signal of the admin server only
+   exists in the text protocol.
+
+----------------------------------------------------------*/
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+class BinaryProtocol {
+    static final byte MAGIC = (byte) 0xA5;
+    static final byte VERSION = 1;
+    // Magic, version, opcode or status, request id, body length
+    static final int HEADER_BYTES = 11;
+    // Largest body we accept, a valid request is a few dozen bytes
+    static final int MAX_BODY_BYTES = 4096;
+
+    static final byte OP_NEXT = 1;
+    static final byte OP_BATCH = 2;
+    static final byte OP_QUIT = 3;
+    static final byte OP_STATS = 4;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_MOVED = 2;
+    static final byte STATUS_BUSY = 3;
+
+    // True once the connection should be closed after the pending reply has been written
+    private boolean finished;
+    // True until onClose, a binary connection counts as an open session in ServerMetrics
+    private boolean open = true;
+
+    BinaryProtocol() {
+        ServerMetrics.SESSIONS.increment();
+    }
+
+    /*
+    Length of the frame that starts at the position of in, or -1 while its header is not complete. A header we cannot
+    accept counts as a frame of just the header, onFrame answers it with an error and finishes the connection.
+     */
+    static int frameLength(ByteBuffer in) {
+        if (in.remaining() < HEADER_BYTES) {
+            return -1;
+        }
+        int p = in.position();
+        int bodyLength = in.getInt(p + 7);
+        if (in.get(p) != MAGIC || in.get(p + 1) != VERSION || bodyLength < 0 || bodyLength > MAX_BODY_BYTES) {
+            return HEADER_BYTES;
+        }
+        return HEADER_BYTES + bodyLength;
+    }
+
+    // Handle the complete frame at the position of in, moving the position past it, and queue the reply in out
+    void onFrame(ByteBuffer in, ReplyBuffer out) {
+        byte magic = in.get();
+        byte version = in.get();
+        byte opcode = in.get();
+        int requestId = in.getInt();
+        int bodyLength = in.getInt();
+        if (magic != MAGIC || version != VERSION || bodyLength < 0 || bodyLength > MAX_BODY_BYTES) {
+            finished = true;
+            reply(out, STATUS_ERROR, requestId, "Unsupported frame: version " + version + ", body of " + bodyLength + " bytes");
+            return;
+        }
+        ByteBuffer body = in.slice();
+        body.limit(bodyLength);
+        in.position(in.position() + bodyLength);
+        try {
+            handle(opcode, requestId, body, out);
+        } catch (BufferUnderflowException bue) {
+            // Every field is read before anything is queued, so nothing of a reply was queued yet
+            reply(out, STATUS_ERROR, requestId, "Body too short for opcode " + opcode);
+        }
+    }
+
+    private void handle(byte opcode, int requestId, ByteBuffer body, ReplyBuffer out) {
+        switch (opcode) {
+            case OP_NEXT:
+            case OP_BATCH: {
+                UUID uuid = readUuid(body);
+                int count = (opcode == OP_BATCH) ? body.getShort() & 0xFFFF : 1;
+                byte[] usernameBytes = new byte[body.getShort() & 0xFFFF];
+                body.get(usernameBytes);
+                if (count < 1 || count > ServerConfig.batchMax()) {
+                    reply(out, STATUS_ERROR, requestId, "Item count must be a number from 1 to " + ServerConfig.batchMax());
+                } else if (usernameBytes.length == 0) {
+                    reply(out, STATUS_ERROR, requestId, "Username cannot be empty");
+                } else if (JokeProtocol.hasControlCharacter(new String(usernameBytes, StandardCharsets.UTF_8))) {
+                    // It goes into the request log, where a line break would forge lines of its own
+                    reply(out, STATUS_ERROR, requestId, "Username cannot contain control characters");
+                } else if (!redirect(uuid, requestId, out) && !throttle(uuid, count, requestId, out)) {
+                    byte[] header = header(out, STATUS_OK, requestId);
+                    int mark = out.mark();
+                    out.add(new byte[]{(byte) (count >>> 8), (byte) count});
+                    String username = new String(usernameBytes, StandardCharsets.UTF_8);
+                    Worker.writeItems(username, usernameBytes, uuid, null, count, true, out);
+                    ByteBuffer.wrap(header).putInt(7, out.bytesSince(mark));
+                }
+                return;
+            }
+            case OP_QUIT: {
+                UUID uuid = readUuid(body);
+                if (!redirect(uuid, requestId, out)) {
+                    reply(out, STATUS_OK, requestId, Worker.dropClient(uuid, uuid.toString()));
+                }
+                return;
+            }
+            case OP_STATS:
+                reply(out, STATUS_OK, requestId, stats());
+                return;
+            default:
+                reply(out, STATUS_ERROR, requestId, "Unknown opcode " + opcode);
+        }
+    }
+
+    // Queue the MOVED reply if the user belongs to another cluster node, true if it did
+    private static boolean redirect(UUID uuid, int requestId, ReplyBuffer out) {
+        ClusterRing cluster = JokeServer.getCluster();
+        String owner = (cluster == null) ? null : cluster.ownerOf(uuid);
+        if (owner == null) {
+            return false;
+        }
+        reply(out, STATUS_MOVED, requestId, owner);
+        ServerMetrics.REDIRECTS.increment();
+        return true;
+    }
+
+    // Queue the BUSY reply if the rate limit of the user does not allow count more items right now, true if it did
+    private static boolean throttle(UUID uuid, int count, int requestId, ReplyBuffer out) {
+        long retryMillis = AdmissionControl.tryAcquire(uuid, count);
+        if (retryMillis == 0) {
+            return false;
+        }
+        reply(out, STATUS_BUSY, requestId, Long.toString(retryMillis));
+        return true;
+    }
+
+    // A few key=value lines about this server
+    static String stats() {
+        ClusterRing cluster = JokeServer.getCluster();
+        return "port=" + JokeServer.getPort()
+                + "\nmode=" + (JokeServer.getIsJoke() ? "joke" : "proverb")
+                + "\nsecondary=" + JokeServer.getIsSecondary()
+                + "\nusers=" + JokeServer.getClientStatusTable().size()
+                + "\ncluster=" + ((cluster == null) ? "" : String.join(",", cluster.getMembers()));
+    }
+
+    private static UUID readUuid(ByteBuffer body) {
+        return new UUID(body.getLong(), body.getLong());
+    }
+
+    // Queue a reply with a text body
+    private static void reply(ReplyBuffer out, byte status, int requestId, String text) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer.wrap(header(out, status, requestId)).putInt(7, body.length);
+        out.add(body);
+    }
+
+    // Queue the header of a reply, its body length is filled in by the caller once the body is queued
+    private static byte[] header(ReplyBuffer out, byte status, int requestId) {
+        byte[] header = new byte[HEADER_BYTES];
+        ByteBuffer.wrap(header).put(MAGIC).put(VERSION).put(status).putInt(requestId);
+        out.add(header);
+        return header;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    // Called by the engine once the connection is closed, however it ended
+    void onClose() {
+        if (open) {
+            open = false;
+            ServerMetrics.SESSIONS.decrement();
+        }
+    }
+}
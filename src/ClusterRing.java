@@ -0,0 +1,343 @@
+/*--------------------------------------------------------
+
+ClusterRing.java
+
+Cluster mode: several JokeServers share the users between them, so the number of users is no longer capped by what one
+ClientStatusTable can hold. Every user (UUID) is owned by exactly one node, chosen on a consistent-hash ring.
+
+a. The members are listed in a file, one host:port (the joke port as clients reach it) per line, given to every node
+   with -Djoke.cluster=<file>. A node finds itself in the list by -Djoke.cluster.self (localhost:<joke port> by default).
+b. Every member is placed on the ring at -Djoke.cluster.vnodes points (128 by default), and a UUID belongs to the member
+   of the first point at or after its hash. With many points per member the users spread evenly, and a member that
+   joins or leaves only moves the users of its own points, about 1/n of them.
+c. A request for a user owned by another node is answered with one line "#MOVED host:port" instead of an item, in a
+   one-shot request, a batch or a session (see JokeProtocol.java). JokeClient follows the redirect and keeps talking to
+   the owner from then on.
+d. Every node reads the file again when it changes (checked every second). Users a node no longer owns are handed off
+   to their new owner: their cycles are sent to the owner's handoff port (joke port + 200), and dropped here once the
+   owner confirmed it took them. A handoff that fails is tried again a second later. So to add a node, start it and
+   add it to the file; to take one out, remove it from the file, wait for its "event=handoff" lines, then shut it down.
+e. Both ends of a handoff read with a timeout of PEER_TIMEOUT_MILLIS. An owner that accepts and then hangs fails the
+   handoff, which is tried again a second later like any other failure; sending a user twice is harmless, the owner
+   only takes a state newer than its own. A connection that sends nothing is dropped after that time, so it holds the
+   receiver, which takes one handoff at a time, no longer than that.
+
+To try it on one machine, with cluster.txt listing localhost:4545, localhost:4547 and localhost:4549:
+> java -Djoke.cluster=cluster.txt JokeServer
+> java -Djoke.cluster=cluster.txt -Djoke.port=4547 JokeServer
+> java -Djoke.cluster=cluster.txt -Djoke.port=4549 JokeServer
+> java JokeClient localhost:4545 localhost:4547 localhost:4549
+
+Handoff wire format, all frames big-endian: MAGIC, then frames of (count, count CycleRecords), then a count of 0.
+The owner answers with the number of records it took.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ClusterRing {
+    private static final int MAGIC = 0x4A4B4831; // "JKH1"
+    // The handoff port is the joke port plus this
+    static final int HANDOFF_PORT_OFFSET = 200;
+    // How often the membership file is checked for changes, and a failed handoff tried again
+    private static final long POLL_MILLIS = 1000L;
+    // Longest silence of the other end of a handoff before it is taken for dead
+    private static final int PEER_TIMEOUT_MILLIS = 10000;
+
+    // One version of the membership: the points of the ring in ascending order and the member owning each of them
+    private static final class Ring {
+        final List<String> members;
+        final long[] points;
+        final String[] owners;
+
+        Ring(List<String> members, int vnodes) {
+            this.members = members;
+            int total = members.size() * vnodes;
+            long[] hashes = new long[total];
+            Integer[] order = new Integer[total];
+            for (int m = 0; m < members.size(); m++) {
+                long base = hash(members.get(m));
+                for (int v = 0; v < vnodes; v++) {
+                    hashes[m * vnodes + v] = CyclePermutation.mix(base + v * 0x9E3779B97F4A7C15L);
+                    order[m * vnodes + v] = m * vnodes + v;
+                }
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+            points = new long[total];
+            owners = new String[total];
+            for (int i = 0; i < total; i++) {
+                points[i] = hashes[order[i]];
+                owners[i] = members.get(order[i] / vnodes);
+            }
+        }
+
+        // Member of the first point at or after the hash, going round to the first point after the last one
+        String ownerOf(long hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[(i == points.length) ? 0 : i];
+        }
+    }
+
+    private final ClientStatusTable table;
+    // This node as it appears in the membership file
+    private final String self;
+    private final File membersFile;
+    private final int vnodes;
+    private volatile Ring ring;
+    private long membersModified;
+    // True while users that belong to other nodes are still here because a handoff failed
+    private boolean handoffPending;
+
+    private final AtomicLong handedOff = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+
+    ClusterRing(ClientStatusTable table, String self, File membersFile, int vnodes) {
+        this.table = table;
+        this.self = self;
+        this.membersFile = membersFile;
+        this.vnodes = Math.max(1, vnodes);
+    }
+
+    // Read the membership, start taking handoffs from the other nodes and watching the file, both on daemon threads
+    void start() throws IOException {
+        membersModified = membersFile.lastModified();
+        List<String> members = readMembers();
+        if (members.isEmpty()) {
+            throw new IOException("No cluster members in " + membersFile);
+        }
+        ring = new Ring(members, vnodes);
+        int port = Integer.parseInt(self.substring(self.lastIndexOf(':') + 1)) + HANDOFF_PORT_OFFSET;
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(port));
+        Thread receiver = new Thread(() -> accept(listener), "JokeServer-cluster-handoff");
+        receiver.setDaemon(true);
+        receiver.start();
+        // Users journaled in an earlier run may belong to another node by now
+        handoffPending = true;
+        Thread watcher = new Thread(this::watch, "JokeServer-cluster-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("Cluster node " + self + " of " + members + ", taking handoffs at port " + port + ".");
+    }
+
+    // The member owning this user, null if it is this node
+    String ownerOf(UUID uuid) {
+        String owner = ring.ownerOf(hash(uuid));
+        return owner.equals(self) ? null : owner;
+    }
+
+    List<String> getMembers() {
+        return ring.members;
+    }
+
+    long getHandedOff() {
+        return handedOff.get();
+    }
+
+    long getAdopted() {
+        return adopted.get();
+    }
+
+    // Position of a user on the ring, both halves of the UUID mixed together
+    static long hash(UUID uuid) {
+        return CyclePermutation.mix(uuid.getMostSignificantBits() ^ CyclePermutation.mix(uuid.getLeastSignificantBits()));
+    }
+
+    // Position of a member on the ring, FNV-1a over its name, its points are derived from it
+    static long hash(String member) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < member.length(); i++) {
+            h = (h ^ member.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    // One member per line, empty lines and lines starting with # are skipped, duplicates count once
+    private List<String> readMembers() throws IOException {
+        Set<String> members = new LinkedHashSet<>();
+        for (String line : Files.readAllLines(membersFile.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                members.add(line);
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(members));
+    }
+
+    // Watcher thread: take a new membership when the file changes, and hand off the users that moved
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            long modified = membersFile.lastModified();
+            if (modified != membersModified) {
+                membersModified = modified;
+                try {
+                    List<String> members = readMembers();
+                    if (members.isEmpty()) {
+                        // Most likely caught in the middle of an edit, the next change is picked up again
+                        JokeLog.warn("event=ring-ignored reason=\"no members\" file=" + membersFile);
+                    } else if (!members.equals(ring.members)) {
+                        ring = new Ring(members, vnodes);
+                        JokeLog.info("event=ring-changed members=" + String.join(",", members) + " self=" + self
+                                + " member=" + members.contains(self));
+                        handoffPending = true;
+                    }
+                } catch (IOException ioe) {
+                    JokeLog.warn("event=ring-read-error file=" + membersFile + " error=\"" + ioe + "\"");
+                }
+            }
+            if (handoffPending) {
+                handoffPending = !handoff();
+            }
+        }
+    }
+
+    // Send every user owned by another node to its owner, true if nothing is left to hand off
+    private boolean handoff() {
+        Map<String, List<ClientStatus>> moving = new HashMap<>();
+        for (ClientStatus status : table.statuses()) {
+            String owner = ownerOf(status.uuid);
+            if (owner != null) {
+                moving.computeIfAbsent(owner, o -> new ArrayList<>()).add(status);
+            }
+        }
+        boolean done = true;
+        for (Map.Entry<String, List<ClientStatus>> entry : moving.entrySet()) {
+            String owner = entry.getKey();
+            long start = System.currentTimeMillis();
+            try {
+                send(owner, entry.getValue());
+                int dropped = 0;
+                for (ClientStatus status : entry.getValue()) {
+                    // The owner has the cycle now, drop ours unless the ring moved the user back meanwhile
+                    if (owner.equals(ownerOf(status.uuid)) && table.remove(status)) {
+                        dropped++;
+                    }
+                }
+                handedOff.addAndGet(dropped);
+                JokeLog.info("event=handoff to=" + owner + " users=" + dropped + " ms=" + (System.currentTimeMillis() - start));
+            } catch (IOException ioe) {
+                JokeLog.warn("event=handoff-failed to=" + owner + " users=" + entry.getValue().size() + " error=\"" + ioe + "\"");
+                done = false;
+            }
+        }
+        return done;
+    }
+
+    // Stream the cycles of the given users to the handoff port of their owner and wait for its confirmation
+    private void send(String owner, List<ClientStatus> statuses) throws IOException {
+        int colon = owner.lastIndexOf(':');
+        try (Socket sock = new Socket()) {
+            sock.connect(new InetSocketAddress(owner.substring(0, colon),
+                    Integer.parseInt(owner.substring(colon + 1)) + HANDOFF_PORT_OFFSET), (int) POLL_MILLIS);
+            sock.setSoTimeout(PEER_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            int sent = writeUsers(out, statuses);
+            int taken = in.readInt();
+            if (taken != sent) {
+                throw new IOException(owner + " took " + taken + " of " + sent + " users");
+            }
+        }
+    }
+
+    /*
+    Write the cycles of the given users as a handoff stream and flush it, returns the number of users written. Also
+    used to hand the whole table to the successor of a draining server, see RollingRestart.java.
+     */
+    static int writeUsers(DataOutputStream out, Collection<ClientStatus> statuses) throws IOException {
+        out.writeInt(MAGIC);
+        CycleRecord record = new CycleRecord();
+        ByteBuffer frame = ByteBuffer.allocate(CycleRecord.BYTES * CycleJournal.MAX_BATCH);
+        int count = 0;
+        int sent = 0;
+        for (ClientStatus status : statuses) {
+            status.copyState(record);
+            record.type = CycleRecord.STATE;
+            record.uuid = status.uuid;
+            record.encode(frame);
+            sent++;
+            if (++count == CycleJournal.MAX_BATCH) {
+                writeFrame(out, count, frame);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            writeFrame(out, count, frame);
+        }
+        out.writeInt(0);
+        out.flush();
+        return sent;
+    }
+
+    private static void writeFrame(DataOutputStream out, int count, ByteBuffer frame) throws IOException {
+        out.writeInt(count);
+        out.write(frame.array(), 0, frame.position());
+        frame.clear();
+    }
+
+    // Receiver thread: take the users handed off by other nodes, one connection at a time, each dropped once it goes silent
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try (Socket sock = listener.accept()) {
+                sock.setSoTimeout(PEER_TIMEOUT_MILLIS);
+                receive(sock);
+            } catch (IOException ioe) {
+                JokeLog.warn("event=handoff-receive-error error=\"" + ioe + "\"");
+            }
+        }
+    }
+
+    private void receive(Socket sock) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+        int taken = readUsers(in, table);
+        adopted.addAndGet(taken);
+        JokeLog.info("event=handoff-received from=" + sock.getRemoteSocketAddress() + " users=" + taken);
+        out.writeInt(taken);
+        out.flush();
+    }
+
+    // Read a handoff stream written by writeUsers into the table, returns the number of users taken
+    static int readUsers(DataInputStream in, ClientStatusTable table) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a JokeServer handoff stream");
+        }
+        CycleRecord record = new CycleRecord();
+        byte[] records = new byte[CycleRecord.BYTES * CycleJournal.MAX_BATCH];
+        int taken = 0;
+        int count;
+        while ((count = in.readInt()) != 0) {
+            if (count < 0 || count > CycleJournal.MAX_BATCH) {
+                throw new IOException("bad handoff frame of " + count + " records");
+            }
+            in.readFully(records, 0, count * CycleRecord.BYTES);
+            ByteBuffer view = ByteBuffer.wrap(records, 0, count * CycleRecord.BYTES);
+            for (int i = 0; i < count; i++) {
+                if (!record.decode(view)) {
+                    throw new IOException("damaged handoff record");
+                }
+                // Journaled and replicated as our own change, this node is the owner from now on
+                table.adopt(record);
+            }
+            taken += count;
+        }
+        return taken;
+    }
+}
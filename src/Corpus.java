@@ -0,0 +1,332 @@
+/*--------------------------------------------------------
+
+Corpus.java
+
+The jokes and proverbs served by JokeServer, kept in a compact binary format instead of Data objects on the heap.
+With -Djoke.corpus=<file> the file is memory-mapped at start-up: nothing is parsed or copied, so start-up is instant and
+a catalog of millions of items costs the page cache instead of the heap. Without it, the built-in four jokes and four
+proverbs are encoded into the same format in memory, so there is only one code path.
+Files are built with CorpusBuilder.
+
+File layout (all numbers big-endian, text UTF-8):
+a. Records, one per item:  short prefixLength, prefix bytes ("<title> "), int suffixLength, suffix bytes (": <text>")
+b. One offset index per catalog: count longs, the position of each record, so item i is found in O(1)
+c. Trailer at the very end:  per catalog (int count, long indexPosition), then int catalogCount, int version, int magic
+Catalog 0 holds the proverbs and catalog 1 the jokes, the same order the server has always used.
+The prefix and suffix are exactly the bytes that go around the username in a reply, so a reply is sent straight from
+the mapped file with a gathering write. A single mapping is limited to 2 GB.
+For the HTTP front end (see HttpJokeServer.java) each item also has two JSON fragments, built with the title and text
+escaped the first time the item is asked for and kept from then on, so a JSON reply is queued from ready-made bytes
+as well. A corpus that is never served over HTTP does not pay for them.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class Corpus {
+    static final int PROVERBS = 0;
+    static final int JOKES = 1;
+
+    private static final int MAGIC = 0x4A4B4331; // "JKC1"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    // Header of the secondary server, written in front of the item bytes
+    private static final byte[] SECONDARY_HEADER = "<S2> ".getBytes(UTF8);
+    // Start of a JSON item, with the field the secondary server adds
+    private static final byte[] JSON_OPEN = "{".getBytes(UTF8);
+    private static final byte[] JSON_OPEN_SECONDARY = "{\"server\":\"secondary\",".getBytes(UTF8);
+    // Name of each catalog in a JSON item
+    private static final String[] MODES = {"proverb", "joke"};
+
+    // The whole corpus, mapped or on the heap. Only absolute reads are used, so every thread can share it.
+    private final ByteBuffer data;
+    private final int[] counts;
+    private final int[] indexPositions;
+    // JSON fragments before and after the username, two slots per item, catalog after catalog, null until first used
+    private volatile AtomicReferenceArray<byte[]> jsonFragments;
+    // First slot of each catalog in jsonFragments
+    private final int[] jsonOffsets;
+
+    private Corpus(ByteBuffer data) throws IOException {
+        this.data = data;
+        int end = data.limit();
+        if (end < 12 || data.getInt(end - 4) != MAGIC) {
+            throw new IOException("Not a joke corpus file");
+        }
+        if (data.getInt(end - 8) != VERSION) {
+            throw new IOException("Unsupported corpus version " + data.getInt(end - 8));
+        }
+        int catalogCount = data.getInt(end - 12);
+        if (catalogCount < 2) {
+            throw new IOException("A corpus needs a proverb and a joke catalog");
+        }
+        counts = new int[catalogCount];
+        indexPositions = new int[catalogCount];
+        int trailer = end - 12 - 12 * catalogCount;
+        for (int c = 0; c < catalogCount; c++) {
+            counts[c] = data.getInt(trailer + 12 * c);
+            indexPositions[c] = (int) data.getLong(trailer + 12 * c + 4);
+            if (counts[c] == 0) {
+                throw new IOException("Catalog " + c + " of the corpus is empty");
+            }
+        }
+        jsonOffsets = new int[catalogCount];
+        for (int c = 1; c < catalogCount; c++) {
+            jsonOffsets[c] = jsonOffsets[c - 1] + 2 * counts[c - 1];
+        }
+    }
+
+    // Memory-map a corpus file built by CorpusBuilder
+    static Corpus map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Corpus files are limited to 2 GB, " + file + " is " + channel.size() + " bytes");
+            }
+            // The mapping stays valid after the channel is closed
+            return new Corpus(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Encode a few items into an in-memory corpus, used for the built-in jokes and proverbs
+    static Corpus fromItems(List<Data> proverbs, List<Data> jokes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Iterable<Data>> catalogs = new ArrayList<>();
+        catalogs.add(proverbs);
+        catalogs.add(jokes);
+        try {
+            write(catalogs, bytes);
+            return new Corpus(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException ioe) {
+            // Writing to memory does not fail, and we just wrote a valid corpus
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    /*
+    Write catalogs in the corpus format. The records are streamed, only the record positions are kept in memory
+    (8 bytes per item), so even huge catalogs can be written from a generator.
+     */
+    static void write(List<? extends Iterable<Data>> catalogs, OutputStream target) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(target, 1 << 16));
+        DataOutputStream out = new DataOutputStream(counter);
+        List<long[]> positions = new ArrayList<>();
+        for (Iterable<Data> catalog : catalogs) {
+            long[] catalogPositions = new long[1024];
+            int count = 0;
+            for (Data item : catalog) {
+                if (count == catalogPositions.length) {
+                    long[] bigger = new long[count * 2];
+                    System.arraycopy(catalogPositions, 0, bigger, 0, count);
+                    catalogPositions = bigger;
+                }
+                catalogPositions[count++] = counter.count;
+                byte[] prefix = (item.getTitle() + " ").getBytes(UTF8);
+                byte[] suffix = (": " + item.getText()).getBytes(UTF8);
+                out.writeShort(prefix.length);
+                out.write(prefix);
+                out.writeInt(suffix.length);
+                out.write(suffix);
+            }
+            long[] exact = new long[count];
+            System.arraycopy(catalogPositions, 0, exact, 0, count);
+            positions.add(exact);
+        }
+        long[] indexPositions = new long[positions.size()];
+        for (int c = 0; c < positions.size(); c++) {
+            indexPositions[c] = counter.count;
+            for (long position : positions.get(c)) {
+                out.writeLong(position);
+            }
+        }
+        for (int c = 0; c < positions.size(); c++) {
+            out.writeInt(positions.get(c).length);
+            out.writeLong(indexPositions[c]);
+        }
+        out.writeInt(positions.size());
+        out.writeInt(VERSION);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    // Number of items in a catalog
+    int size(int catalog) {
+        return counts[catalog];
+    }
+
+    // Position of the record of an item, read from the offset index
+    private int recordPosition(int catalog, int index) {
+        if (index < 0 || index >= counts[catalog]) {
+            throw new IndexOutOfBoundsException("Item " + index + " of catalog " + catalog);
+        }
+        return (int) data.getLong(indexPositions[catalog] + 8 * index);
+    }
+
+    /*
+    Queue one reply line for an item: the title prefix (with the <S2> header on a secondary server), the username
+    and the text suffix, then the line separator. The item bytes are not copied, they go out from the corpus buffer.
+     */
+    void writeItem(int catalog, int index, boolean secondary, byte[] usernameBytes, ReplyBuffer out) {
+        int position = recordPosition(catalog, index);
+        int prefixLength = data.getShort(position);
+        int suffixPosition = position + 2 + prefixLength;
+        int suffixLength = data.getInt(suffixPosition);
+        if (secondary) {
+            out.add(SECONDARY_HEADER);
+        }
+        out.add(data, position + 2, prefixLength);
+        out.add(usernameBytes);
+        out.add(data, suffixPosition + 4, suffixLength);
+        out.add(ReplyBuffer.LINE_SEPARATOR);
+    }
+
+    // The same item bytes for the binary protocol: an int length in front instead of the line separator behind
+    void writeBinaryItem(int catalog, int index, boolean secondary, byte[] usernameBytes, ReplyBuffer out) {
+        int position = recordPosition(catalog, index);
+        int prefixLength = data.getShort(position);
+        int suffixPosition = position + 2 + prefixLength;
+        int suffixLength = data.getInt(suffixPosition);
+        int length = (secondary ? SECONDARY_HEADER.length : 0) + prefixLength + usernameBytes.length + suffixLength;
+        out.add(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        if (secondary) {
+            out.add(SECONDARY_HEADER);
+        }
+        out.add(data, position + 2, prefixLength);
+        out.add(usernameBytes);
+        out.add(data, suffixPosition + 4, suffixLength);
+    }
+
+    /*
+    The same item as a JSON object for the HTTP front end:
+        {"mode":"joke","title":"JA","name":"<username>","text":"..."}
+    with "server":"secondary" first on a secondary server. usernameJson is the username already escaped for a JSON
+    string, in UTF-8.
+     */
+    void writeJsonItem(int catalog, int index, boolean secondary, byte[] usernameJson, ReplyBuffer out) {
+        AtomicReferenceArray<byte[]> fragments = jsonFragments;
+        if (fragments == null) {
+            fragments = initJsonFragments();
+        }
+        int slot = jsonOffsets[catalog] + 2 * recordIndex(catalog, index);
+        byte[] prefix = fragments.get(slot);
+        byte[] suffix = fragments.get(slot + 1);
+        if (prefix == null || suffix == null) {
+            // Two threads building the same item build the same bytes, whichever is kept does not matter
+            String mode = (catalog < MODES.length) ? MODES[catalog] : "catalog" + catalog;
+            prefix = ("\"mode\":\"" + mode + "\",\"title\":\"" + jsonEscape(getTitle(catalog, index)) + "\",\"name\":\"").getBytes(UTF8);
+            suffix = ("\",\"text\":\"" + jsonEscape(getText(catalog, index)) + "\"}").getBytes(UTF8);
+            fragments.set(slot + 1, suffix);
+            fragments.set(slot, prefix);
+        }
+        out.add(secondary ? JSON_OPEN_SECONDARY : JSON_OPEN);
+        out.add(prefix);
+        out.add(usernameJson);
+        out.add(suffix);
+    }
+
+    private synchronized AtomicReferenceArray<byte[]> initJsonFragments() {
+        if (jsonFragments == null) {
+            int catalogs = counts.length;
+            jsonFragments = new AtomicReferenceArray<>(jsonOffsets[catalogs - 1] + 2 * counts[catalogs - 1]);
+        }
+        return jsonFragments;
+    }
+
+    // The index itself, checked against the catalog like recordPosition does
+    private int recordIndex(int catalog, int index) {
+        if (index < 0 || index >= counts[catalog]) {
+            throw new IndexOutOfBoundsException("Item " + index + " of catalog " + catalog);
+        }
+        return index;
+    }
+
+    // Escape text for the inside of a JSON string: quotes, backslashes and control characters
+    static String jsonEscape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                if (escaped != null) {
+                    escaped.append(c);
+                }
+                continue;
+            }
+            if (escaped == null) {
+                escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            }
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    escaped.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return (escaped == null) ? text : escaped.toString();
+    }
+
+    // Title of an item, decoded from its record, used for logging
+    String getTitle(int catalog, int index) {
+        int position = recordPosition(catalog, index);
+        // The prefix is the title followed by one space
+        return decode(position + 2, data.getShort(position) - 1);
+    }
+
+    // Text of an item, decoded from its record
+    String getText(int catalog, int index) {
+        int position = recordPosition(catalog, index);
+        int suffixPosition = position + 2 + data.getShort(position);
+        // The suffix is ": " followed by the text
+        return decode(suffixPosition + 4 + 2, data.getInt(suffixPosition) - 2);
+    }
+
+    // One item as a Data object, for code that wants title and text together
+    Data get(int catalog, int index) {
+        return new Data(getTitle(catalog, index), getText(catalog, index));
+    }
+
+    private String decode(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // Counts the bytes written so far, which is the position of the next record
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
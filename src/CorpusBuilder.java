@@ -0,0 +1,85 @@
+/*--------------------------------------------------------
+
+CorpusBuilder.java
+
+Command-line tool that writes a corpus file for JokeServer -Djoke.corpus=<file>, see Corpus.java for the format.
+
+> java CorpusBuilder <input.txt> <output.jkc>
+reads one item per line as "J<TAB>title<TAB>text" for a joke or "P<TAB>title<TAB>text" for a proverb.
+Empty lines and lines starting with # are skipped.
+
+> java CorpusBuilder --generate <count> <output.jkc>
+writes count generated jokes and count generated proverbs, handy for trying out catalogs of millions of items.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class CorpusBuilder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("--generate")) {
+            int count = Integer.parseInt(args[1]);
+            write(generated("P", "Generated proverb number ", count), generated("J", "Generated joke number ", count), args[2]);
+        } else if (args.length == 2) {
+            List<Data> proverbs = new ArrayList<>();
+            List<Data> jokes = new ArrayList<>();
+            read(new File(args[0]), proverbs, jokes);
+            write(proverbs, jokes, args[1]);
+        } else {
+            System.out.println("Usage: java CorpusBuilder <input.txt> <output.jkc>");
+            System.out.println("   or: java CorpusBuilder --generate <count> <output.jkc>");
+        }
+    }
+
+    // Read a tab-separated item list, one joke or proverb per line
+    static void read(File input, List<Data> proverbs, List<Data> jokes) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3 || !(fields[0].equals("J") || fields[0].equals("P"))) {
+                    throw new IOException(input + " line " + lineNumber + ": expected J|P<TAB>title<TAB>text");
+                }
+                (fields[0].equals("J") ? jokes : proverbs).add(new Data(fields[1], fields[2]));
+            }
+        }
+    }
+
+    static void write(Iterable<Data> proverbs, Iterable<Data> jokes, String output) throws IOException {
+        List<Iterable<Data>> catalogs = new ArrayList<>();
+        catalogs.add(proverbs);
+        catalogs.add(jokes);
+        long start = System.currentTimeMillis();
+        try (OutputStream out = new FileOutputStream(output)) {
+            Corpus.write(catalogs, out);
+        }
+        System.out.println("Wrote " + output + " (" + new File(output).length() + " bytes) in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    // Items made up on the fly, nothing is kept in memory while they are written
+    static Iterable<Data> generated(final String titlePrefix, final String textPrefix, final int count) {
+        return () -> new Iterator<Data>() {
+            private int next;
+
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            public Data next() {
+                next++;
+                return new Data(titlePrefix + next, textPrefix + next + ".");
+            }
+        };
+    }
+}
@@ -0,0 +1,462 @@
+/*--------------------------------------------------------
+
+CycleJournal.java
+
+Keeps the joke/proverb cycles of every user on disk, so a restart or an admin shutdown does not send every user back to
+the start of a new cycle. The state of a user is tiny (a seed, a cycle count and a cursor per catalog, see
+ClientStatus), so instead of logging every request we log the new state of every user that changed:
+
+a. A request only marks its ClientStatus as changed and queues it once, it never touches the disk and never waits.
+b. A single writer thread takes the queued users, writes one absolute state record per user into the current log
+   segment with a single write call and, with -Djoke.journal.sync=true, forces the batch to disk once (group commit).
+   Without it the batches are left to the OS, which survives a crash of the process but not of the machine.
+   A user asking for many items between two batches costs one record.
+c. Every -Djoke.journal.snapshot.records records the writer starts a new log segment, writes a compact snapshot of the
+   whole table next to it and deletes the older segments, so the log never grows without bound.
+d. At start-up the latest snapshot is loaded and the segments written after it are replayed. The replay is bounded by
+   the snapshot interval and its duration is logged as event=recovery.
+e. The records of local changes in each batch are also handed to the CycleReplicator, which streams them to the peer
+   server. With replication on and the journal off (-Djoke.journal, off by default), the writer runs without a
+   directory just to feed it.
+
+Files in -Djoke.journal.dir (JokeJournal-<port> by default):
+snapshot.dat             first segment to replay, magic, version, catalog sizes, one record per user, end mark, CRC32
+cycles-<segment>.log     records of 61 bytes: type, UUID, seed, cycle count and cursor of both catalogs, CRC32
+A torn or corrupted record at the end of a segment (a crash in the middle of a write) ends the replay of that segment.
+A batch that fails to be written is cut off the segment again and its users are queued again, so they are written with
+the next batch, after a pause of WRITE_RETRY_NANOS that keeps a full or broken disk from spinning the writer.
+Records are absolute, so replaying them in order always ends with the latest state of every user.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+class CycleJournal implements Runnable {
+    // Most records written with one write call
+    static final int MAX_BATCH = 4096;
+    // Pause of the writer after a failed batch, before it tries the same users again
+    private static final long WRITE_RETRY_NANOS = 1000000000L;
+
+    private static final int SNAPSHOT_MAGIC = 0x4A4B5331; // "JKS1"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String SEGMENT_PREFIX = "cycles-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Journal directory, null if the journal only feeds the replicator
+    private final File dir;
+    private final ClientStatusTable table;
+    // Gets the local changes of every batch, null without replication
+    private final CycleReplicator replicator;
+    private final boolean sync = ServerConfig.journalSync();
+    private final long snapshotRecords = Math.max(1000, ServerConfig.journalSnapshotRecords());
+    // How long the writer sleeps when nothing changed, changes are never written later than this
+    private final long idleParkNanos = Math.max(1, ServerConfig.journalCommitMillis()) * 1000000L;
+
+    // Users that changed since their last record, each one is queued at most once (see ClientStatus.markChanged)
+    private final ConcurrentLinkedQueue<ClientStatus> changed = new ConcurrentLinkedQueue<>();
+
+    // Everything below is only used by the writer thread, and by recover() before the writer starts
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(CycleRecord.BYTES * MAX_BATCH);
+    private final ByteBuffer replicaBatch = ByteBuffer.allocate(CycleRecord.BYTES * MAX_BATCH);
+    private final CycleRecord record = new CycleRecord();
+    // Users whose records are in the batch, queued again if the batch cannot be written
+    private final List<ClientStatus> batchStatuses = new ArrayList<>();
+    private FileChannel log;
+    private long segment;
+    private long recordsSinceSnapshot;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    CycleJournal(File dir, ClientStatusTable table, CycleReplicator replicator) {
+        this.dir = dir;
+        this.table = table;
+        this.replicator = replicator;
+    }
+
+    /*
+    Load the latest snapshot and replay the log segments written after it into the table, then open a fresh segment
+    for the records of this run. Called once at start-up, before the table serves any request.
+     */
+    void recover() throws IOException {
+        if (dir == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        File snapshotFile = new File(dir, SNAPSHOT_FILE);
+        long firstSegment = 0;
+        if (snapshotFile.exists()) {
+            firstSegment = loadSnapshot(snapshotFile);
+        }
+        int snapshotUsers = table.size();
+        long replayed = 0;
+        long lastSegment = firstSegment - 1;
+        for (long seq : listSegments()) {
+            File file = segmentFile(seq);
+            if (seq < firstSegment) {
+                // Already part of the snapshot, left over by a crash between snapshot and clean-up
+                file.delete();
+                continue;
+            }
+            replayed += replay(file);
+            lastSegment = seq;
+        }
+        // Never append to an old segment, its tail may be torn
+        openSegment(lastSegment + 1);
+        long millis = (System.nanoTime() - start) / 1000000L;
+        JokeLog.info("event=recovery dir=" + dir + " users=" + table.size() + " snapshotUsers=" + snapshotUsers
+                + " replayedRecords=" + replayed + " ms=" + millis);
+    }
+
+    // Start the writer thread, a daemon, its last batch is written by the shutdown hook
+    void start() {
+        running = true;
+        writer = new Thread(this, "JokeServer-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        if (dir != null) {
+            System.out.println("User cycles are journaled to " + dir + (sync ? "." : ", without forcing writes to disk."));
+        }
+    }
+
+    // Write everything queued so far, take a final snapshot so the next start-up has nothing to replay, and stop
+    void stop() {
+        Thread t = writer;
+        running = false;
+        if (t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            try {
+                t.join(10000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Called by ClientStatus.markChanged, at most once per user until the writer picked the user up
+    void changed(ClientStatus status) {
+        changed.add(status);
+    }
+
+    public void run() {
+        while (true) {
+            int written = drain();
+            if (written == 0) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(idleParkNanos);
+            }
+        }
+        if (log == null) {
+            return;
+        }
+        try {
+            snapshot();
+            log.close();
+        } catch (IOException ioe) {
+            JokeLog.error("event=journal-error action=final-snapshot error=\"" + ioe + "\"");
+        }
+    }
+
+    // Write one batch of records for the users that changed, force it to disk once if asked to, then hand it to the replicator
+    private int drain() {
+        batch.clear();
+        replicaBatch.clear();
+        batchStatuses.clear();
+        int count = 0;
+        int replicaCount = 0;
+        ClientStatus status;
+        while (count < MAX_BATCH && (status = changed.poll()) != null) {
+            // Take the state first: a removal after this point queues the user again, so its tombstone is never lost
+            boolean local = status.takeState(record);
+            if (table.isCurrent(status)) {
+                record.type = CycleRecord.STATE;
+            } else if (table.containsUUID(status.uuid)) {
+                // The user quit and came back, the new ClientStatus writes its own records
+                continue;
+            } else {
+                record.type = CycleRecord.REMOVED;
+            }
+            record.uuid = status.uuid;
+            int start = batch.position();
+            record.encode(batch);
+            batchStatuses.add(status);
+            count++;
+            if (local && replicator != null) {
+                // Same bytes, no need to encode twice
+                for (int i = start; i < batch.position(); i++) {
+                    replicaBatch.put(batch.get(i));
+                }
+                replicaCount++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (log != null) {
+            batch.flip();
+            long goodSize = -1;
+            try {
+                goodSize = log.size();
+                while (batch.hasRemaining()) {
+                    log.write(batch);
+                }
+                if (sync) {
+                    log.force(false);
+                }
+                recordsSinceSnapshot += count;
+            } catch (IOException ioe) {
+                JokeLog.error("event=journal-error action=write records=" + count + " error=\"" + ioe + "\"");
+                retry(goodSize);
+                goodSize = -1;
+            }
+            if (goodSize >= 0 && recordsSinceSnapshot >= snapshotRecords) {
+                try {
+                    snapshot();
+                } catch (IOException ioe) {
+                    // The records are in the segment, the next batch tries the snapshot again
+                    JokeLog.error("event=journal-error action=snapshot error=\"" + ioe + "\"");
+                }
+            }
+        }
+        if (replicaCount > 0) {
+            byte[] records = new byte[replicaBatch.position()];
+            replicaBatch.flip();
+            replicaBatch.get(records);
+            replicator.publish(records, replicaCount);
+        }
+        return count;
+    }
+
+    /*
+    Undo a batch that could not be written: cut a partial write off the segment, so no torn record sits in front of the
+    next ones, and queue its users again. Their changes were handed to the replicator already, so they are queued as
+    not local. The pause keeps a disk that keeps failing from turning the writer into a busy loop.
+     */
+    private void retry(long goodSize) {
+        if (goodSize >= 0) {
+            try {
+                log.truncate(goodSize);
+            } catch (IOException ioe) {
+                // A torn record ends the replay of this segment, so start a new one for the next batches
+                JokeLog.error("event=journal-error action=truncate error=\"" + ioe + "\"");
+                try {
+                    openSegment(segment + 1);
+                } catch (IOException again) {
+                    JokeLog.error("event=journal-error action=open-segment error=\"" + again + "\"");
+                }
+            }
+        }
+        for (ClientStatus status : batchStatuses) {
+            status.markChanged(false);
+        }
+        LockSupport.parkNanos(WRITE_RETRY_NANOS);
+    }
+
+    // Replay one log segment into the table, returns the number of records applied
+    private long replay(File file) throws IOException {
+        long applied = 0;
+        byte[] bytes = new byte[CycleRecord.BYTES];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                try {
+                    in.readFully(bytes);
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (!record.decode(ByteBuffer.wrap(bytes))) {
+                    JokeLog.warn("event=journal-torn file=" + file.getName() + " records=" + applied);
+                    break;
+                }
+                if (record.type == CycleRecord.REMOVED) {
+                    table.removeIndexTable(record.uuid);
+                } else {
+                    table.restore(record);
+                }
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /*
+    Start a new log segment and write a snapshot of every user next to it. Changes made while the snapshot is written
+    go to the new segment, which is replayed on top of the snapshot, so the snapshot does not need to stop anybody.
+     */
+    private void snapshot() throws IOException {
+        long start = System.nanoTime();
+        openSegment(segment + 1);
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        int users = 0;
+        byte[] bytes = new byte[CycleRecord.BYTES];
+        ByteBuffer view = ByteBuffer.wrap(bytes);
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeLong(segment);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(table.getCatalogSize(Corpus.PROVERBS));
+            out.writeInt(table.getCatalogSize(Corpus.JOKES));
+            for (ClientStatus status : table.statuses()) {
+                status.copyState(record);
+                record.type = CycleRecord.STATE;
+                record.uuid = status.uuid;
+                view.clear();
+                record.encode(view);
+                out.write(bytes);
+                users++;
+            }
+            // A record never starts with 0, so a single 0 ends the list
+            out.writeByte(0);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        // Replace the old snapshot in one step, a crash leaves either the old or the new one
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long seq : listSegments()) {
+            if (seq < segment) {
+                segmentFile(seq).delete();
+            }
+        }
+        recordsSinceSnapshot = 0;
+        JokeLog.info("event=snapshot users=" + users + " segment=" + segment + " ms=" + (System.nanoTime() - start) / 1000000L);
+    }
+
+    // Load a snapshot into the table, returns the first log segment to replay on top of it
+    private long loadSnapshot(File file) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            long firstSegment = in.readLong();
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a journal snapshot of this version: " + file);
+            }
+            // Catalog sizes of the run that wrote it, ClientStatus.restore copes with a corpus that changed since
+            in.readInt();
+            in.readInt();
+            byte[] bytes = new byte[CycleRecord.BYTES];
+            while ((bytes[0] = in.readByte()) != 0) {
+                in.readFully(bytes, 1, bytes.length - 1);
+                if (record.decode(ByteBuffer.wrap(bytes))) {
+                    table.restore(record);
+                }
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                // Snapshots are replaced atomically, so this is a damaged disk and not a crash, keep what we read
+                JokeLog.warn("event=journal-corrupt file=" + file.getName() + " users=" + table.size());
+            }
+            return firstSegment;
+        }
+    }
+
+    // Close the current segment and start writing to segment seq
+    private void openSegment(long seq) throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        segment = seq;
+        log = FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    // Numbers of the log segments in the journal directory, oldest first
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException nfe) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
+
+/*
+State of one user as it is journaled and replicated: for both catalogs the seed of the current order, the number of
+cycles finished and the cursor. A record is encoded in a fixed 61 bytes ending with a CRC32 of the other 57, so a
+torn or damaged record is recognized. One instance is reused for every record a thread writes or reads.
+ */
+class CycleRecord {
+    static final byte STATE = 1;
+    static final byte REMOVED = 2;
+    // type, UUID, (seed, cycles, cursor) of both catalogs, CRC32
+    static final int BYTES = 1 + 16 + 2 * (8 + 8 + 4) + 4;
+
+    byte type;
+    UUID uuid;
+    final long[] seeds = new long[2];
+    final long[] cycles = new long[2];
+    final int[] cursors = new int[2];
+    private final CRC32 crc = new CRC32();
+
+    // Append the record at the position of the buffer
+    void encode(ByteBuffer out) {
+        int start = out.position();
+        out.put(type);
+        out.putLong(uuid.getMostSignificantBits());
+        out.putLong(uuid.getLeastSignificantBits());
+        for (int c = 0; c < 2; c++) {
+            out.putLong(seeds[c]);
+            out.putLong(cycles[c]);
+            out.putInt(cursors[c]);
+        }
+        out.putInt(checksum(out, start));
+    }
+
+    // Read the record at the position of the buffer, false if it is damaged
+    boolean decode(ByteBuffer in) {
+        int start = in.position();
+        type = in.get();
+        uuid = new UUID(in.getLong(), in.getLong());
+        for (int c = 0; c < 2; c++) {
+            seeds[c] = in.getLong();
+            cycles[c] = in.getLong();
+            cursors[c] = in.getInt();
+        }
+        return in.getInt() == checksum(in, start) && (type == STATE || type == REMOVED);
+    }
+
+    private int checksum(ByteBuffer buffer, int start) {
+        crc.reset();
+        for (int i = start; i < start + BYTES - 4; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+}
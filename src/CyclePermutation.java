@@ -0,0 +1,90 @@
+/*--------------------------------------------------------
+
+CyclePermutation.java
+
+Pseudo-random order of a catalog computed on demand, so a client's cycle is just a seed and a cursor instead of a
+shuffled list of every index. index(seed, i, size) is the i-th item of the cycle chosen by seed: for a fixed seed it
+maps 0 .. size-1 onto 0 .. size-1 one to one, so a cycle still serves every item exactly once, and a new seed gives a
+new order for the next cycle. Memory per client stays constant no matter how big the catalog is.
+
+a. A catalog of up to SMALL_SIZE items (the built-in catalogs have 4) is shuffled with Fisher-Yates, drawing from a
+   SplitMix64 stream started at the seed. The shuffled indexes are 4-bit fields of one long, so a lookup allocates
+   nothing and costs one draw per item. Every order of the catalog is equally likely, like with Collections.shuffle.
+b. A bigger catalog uses a balanced Feistel network over the smallest power of 4 that holds it, with cycle-walking: a
+   value that falls outside the catalog is permuted again until it lands inside. The domain is less than 4 times the
+   catalog, so that takes fewer than 4 passes of the network on average. A Feistel network of a few rounds over such
+   small halves is far from uniform (4 rounds over 8 items reached only 37k of the 40k orders in 2M seeds), so it runs
+   ROUNDS rounds. With more than 20 items a 64-bit seed cannot reach every order anyway, it only has to look random.
+It is not meant to be cryptographically strong.
+
+----------------------------------------------------------*/
+
+class CyclePermutation {
+    // Largest catalog shuffled with Fisher-Yates, its indexes fit in the 4-bit fields of a long
+    static final int SMALL_SIZE = 16;
+    // Rounds of the Feistel network for bigger catalogs, 4 rounds left the orders of small domains visibly skewed
+    private static final int ROUNDS = 12;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private CyclePermutation() {
+    }
+
+    // The position-th item (0-based) of the cycle chosen by seed over a catalog of size items
+    static int index(long seed, int position, int size) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " of a cycle of " + size);
+        }
+        if (size == 1) {
+            return 0;
+        }
+        if (size <= SMALL_SIZE) {
+            return shuffledIndex(seed, position, size);
+        }
+        // Half of the bits of the domain, the domain is 2^(2 * halfBits) >= size
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        int halfBits = (bits + 1) / 2;
+        long value = position;
+        do {
+            value = permute(seed, value, halfBits);
+        } while (value >= size);
+        return (int) value;
+    }
+
+    // The position-th index of a Fisher-Yates shuffle of 0 .. size-1 drawn from seed, the shuffle is kept in one long
+    private static int shuffledIndex(long seed, int position, int size) {
+        // Field i holds index i before the shuffle
+        long fields = 0xFEDCBA9876543210L;
+        long state = seed;
+        for (int i = size - 1; i > 0; i--) {
+            state += GOLDEN_GAMMA;
+            // Multiply-shift onto 0 .. i, its bias is below i / 2^32
+            int j = (int) (((mix(state) >>> 32) * (i + 1)) >>> 32);
+            if (j != i) {
+                long a = (fields >>> (4 * i)) & 0xF;
+                long b = (fields >>> (4 * j)) & 0xF;
+                fields ^= ((a ^ b) << (4 * i)) | ((a ^ b) << (4 * j));
+            }
+        }
+        return (int) ((fields >>> (4 * position)) & 0xF);
+    }
+
+    // One pass of the Feistel network over 2 * halfBits bits, a bijection of the whole domain
+    private static long permute(long seed, long value, int halfBits) {
+        long mask = (1L << halfBits) - 1;
+        long left = value >>> halfBits;
+        long right = value & mask;
+        for (int round = 0; round < ROUNDS; round++) {
+            long next = left ^ (mix(seed + round * GOLDEN_GAMMA + right) & mask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    // SplitMix64 finalizer, spreads every input bit over the whole result, also used to place UUIDs on the ClusterRing
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
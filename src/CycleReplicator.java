@@ -0,0 +1,365 @@
+/*--------------------------------------------------------
+
+CycleReplicator.java
+
+Streams the cycle changes of this server to its peer (primary to secondary and back), so a client that switches
+servers with "s" carries on with the cycle it had instead of starting a new random one.
+
+a. The CycleJournal writer hands over the records of every batch of local changes. Each batch gets the next sequence
+   number and is kept in a ring of the last -Djoke.replication.backlog batches.
+b. A sender thread keeps one connection to the peer's replication port and streams the batches in order. The peer
+   applies a batch, then acknowledges its sequence number, which gives the replication lag.
+c. When the connection comes back, the peer tells which run of ours and which sequence number it applied last. If the
+   following batches are still in the ring they are sent again (catch-up), otherwise (the peer restarted, we restarted
+   or the ring went round) every user of the table is sent first and the stream carries on from there.
+d. Records are absolute states with a version (cycles finished and cursor), and the peer only takes what is newer than
+   its own state, so sending a user twice or in a full sync never moves a cycle back. Changes that came from the peer
+   are journaled but not replicated again, so nothing loops.
+e. An idle stream carries a heartbeat every second, which the peer answers. Both ends read with a timeout of
+   PEER_TIMEOUT_MILLIS, so a connection whose other end crashed or vanished without a FIN is dropped within that time
+   on both sides instead of blocking a read forever: the receiver takes the next connection of the restarted peer, the
+   sender reconnects.
+
+Wire format, all frames big-endian:
+sender -> peer:   MAGIC, run id                          peer -> sender:  last run id and sequence number applied
+sender -> peer:   'B' sequence count records             peer -> sender:  'A' sequence
+sender -> peer:   'F' count records                      (full sync, not acknowledged)
+sender -> peer:   'H'                                    peer -> sender:  'H'             (heartbeat of an idle stream)
+Replication is off unless both servers run with -Djoke.replication=true.
+The replication port is the joke port + 100 (4645 and 4646), -Djoke.replication.peer=<host:port> points at the peer.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+class CycleReplicator {
+    private static final int MAGIC = 0x4A4B5231; // "JKR1"
+    private static final byte BATCH = 'B';
+    private static final byte FULL = 'F';
+    private static final byte ACK = 'A';
+    private static final byte HEARTBEAT = 'H';
+    // How long the sender waits before it tries to reach a peer that is down again, also the heartbeat interval
+    private static final long RETRY_MILLIS = 1000L;
+    // Longest silence of the other end before a connection is taken for dead
+    private static final int PEER_TIMEOUT_MILLIS = 10000;
+
+    // One batch of records with its sequence number and the time it was published, for the lag
+    private static final class Batch {
+        final long seq;
+        final long time;
+        final int count;
+        final byte[] records;
+
+        Batch(long seq, int count, byte[] records) {
+            this.seq = seq;
+            this.time = System.currentTimeMillis();
+            this.count = count;
+            this.records = records;
+        }
+    }
+
+    private final ClientStatusTable table;
+    private final int listenPort;
+    private final String peerHost;
+    private final int peerPort;
+    // Identifies this run, a peer that saw another run of ours cannot resume and gets a full sync
+    private final long runId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+    // Ring of the last batches, batch seq sits in slot seq % length. Guarded by this.
+    private final Batch[] ring;
+    private long nextSeq = 1;
+    private volatile long ackedSeq;
+
+    // Incoming stream: the run of the peer we applied batches from, and the last sequence number applied
+    private long peerRunApplied;
+    private long peerSeqApplied;
+
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong appliedRecords = new AtomicLong();
+
+    CycleReplicator(ClientStatusTable table, int listenPort, String peerHost, int peerPort) {
+        this.table = table;
+        this.listenPort = listenPort;
+        this.peerHost = peerHost;
+        this.peerPort = peerPort;
+        ring = new Batch[Math.max(16, ServerConfig.replicationBacklog())];
+    }
+
+    // Start listening for the peer's stream and start streaming ours, both on daemon threads
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(listenPort));
+        Thread receiver = new Thread(() -> accept(listener), "JokeServer-replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread sender = new Thread(this::send, "JokeServer-replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+        System.out.println("Replicating user cycles to " + peerHost + ":" + peerPort + ", listening at port " + listenPort + ".");
+    }
+
+    // Called by the CycleJournal writer with the records of the local changes of one batch
+    synchronized void publish(byte[] records, int count) {
+        long seq = nextSeq++;
+        ring[(int) (seq % ring.length)] = new Batch(seq, count, records);
+        notifyAll();
+    }
+
+    // Milliseconds since the oldest batch the peer has not acknowledged yet was published, 0 if it is up to date
+    synchronized long getLagMillis() {
+        long oldest = ackedSeq + 1;
+        Batch batch = (oldest < nextSeq) ? ring[(int) (oldest % ring.length)] : null;
+        return (batch == null || batch.seq != oldest) ? 0 : System.currentTimeMillis() - batch.time;
+    }
+
+    long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    long getFullSyncs() {
+        return fullSyncs.get();
+    }
+
+    long getAppliedRecords() {
+        return appliedRecords.get();
+    }
+
+    // Sender thread: keep a connection to the peer and stream our batches, reconnecting whenever it breaks
+    private void send() {
+        boolean reported = false;
+        while (true) {
+            try (Socket sock = new Socket()) {
+                sock.connect(new InetSocketAddress(peerHost, peerPort), (int) RETRY_MILLIS);
+                sock.setTcpNoDelay(true);
+                // The peer answers every heartbeat, a longer silence means it is gone
+                sock.setSoTimeout(PEER_TIMEOUT_MILLIS);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                out.writeInt(MAGIC);
+                out.writeLong(runId);
+                out.flush();
+                long peerSawRun = in.readLong();
+                long peerSawSeq = in.readLong();
+                long from = resumePoint(peerSawRun, peerSawSeq);
+                boolean full = from < 0;
+                if (full) {
+                    // Everything published from here on is streamed after the full sync, which may overlap, that is fine
+                    from = currentSeq();
+                    sendFull(out);
+                }
+                JokeLog.info("event=replication-connected peer=" + peerHost + ":" + peerPort + " mode=" + (full ? "full" : "resume")
+                        + " from=" + from);
+                reported = false;
+                Thread acks = new Thread(() -> readAcks(in, sock), "JokeServer-replication-acks");
+                acks.setDaemon(true);
+                acks.start();
+                stream(out, from, sock);
+            } catch (IOException ioe) {
+                if (!reported) {
+                    JokeLog.warn("event=replication-down peer=" + peerHost + ":" + peerPort + " error=\"" + ioe + "\"");
+                    reported = true;
+                }
+            } catch (InterruptedException ie) {
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    // First sequence number to send after the peer told what it applied last, -1 if it needs a full sync
+    private synchronized long resumePoint(long peerSawRun, long peerSawSeq) {
+        long next = peerSawSeq + 1;
+        if (peerSawRun != runId || next > nextSeq) {
+            return -1;
+        }
+        if (next == nextSeq) {
+            return next;
+        }
+        Batch batch = ring[(int) (next % ring.length)];
+        return (batch != null && batch.seq == next) ? next : -1;
+    }
+
+    private synchronized long currentSeq() {
+        return nextSeq;
+    }
+
+    // Send every user of the table, in frames of at most one journal batch
+    private void sendFull(DataOutputStream out) throws IOException {
+        CycleRecord record = new CycleRecord();
+        ByteBuffer frame = ByteBuffer.allocate(CycleRecord.BYTES * CycleJournal.MAX_BATCH);
+        int count = 0;
+        int users = 0;
+        for (ClientStatus status : table.statuses()) {
+            status.copyState(record);
+            record.type = CycleRecord.STATE;
+            record.uuid = status.uuid;
+            record.encode(frame);
+            users++;
+            if (++count == CycleJournal.MAX_BATCH) {
+                writeFull(out, count, frame);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            writeFull(out, count, frame);
+        }
+        out.flush();
+        fullSyncs.incrementAndGet();
+        JokeLog.info("event=replication-full-sync users=" + users);
+    }
+
+    // Stream the batches from sequence number from on, flushing whenever we caught up with the journal
+    private void stream(DataOutputStream out, long from, Socket sock) throws IOException, InterruptedException {
+        long seq = from;
+        long lastWrite = System.currentTimeMillis();
+        while (true) {
+            if (sock.isClosed()) {
+                // The peer went away, batches written since then are sent again once it tells what it applied
+                throw new IOException("connection closed by the peer");
+            }
+            Batch batch = null;
+            synchronized (this) {
+                if (seq < nextSeq) {
+                    batch = ring[(int) (seq % ring.length)];
+                    if (batch == null || batch.seq != seq) {
+                        // The ring went round while the peer was slow, reconnect and let the peer ask for a full sync
+                        throw new IOException("replication backlog overrun at batch " + seq);
+                    }
+                }
+            }
+            if (batch == null) {
+                // Caught up: push out what is buffered, outside the lock so the journal writer never waits on the peer.
+                // A stream with nothing to send for a while tells the peer it is still alive.
+                if (System.currentTimeMillis() - lastWrite >= RETRY_MILLIS) {
+                    out.writeByte(HEARTBEAT);
+                    lastWrite = System.currentTimeMillis();
+                }
+                out.flush();
+                synchronized (this) {
+                    if (seq == nextSeq && !sock.isClosed()) {
+                        wait(RETRY_MILLIS);
+                    }
+                }
+                continue;
+            }
+            out.writeByte(BATCH);
+            out.writeLong(batch.seq);
+            out.writeInt(batch.count);
+            out.write(batch.records);
+            lastWrite = System.currentTimeMillis();
+            sentBatches.incrementAndGet();
+            seq++;
+        }
+    }
+
+    private static void writeFull(DataOutputStream out, int count, ByteBuffer frame) throws IOException {
+        out.writeByte(FULL);
+        out.writeInt(count);
+        out.write(frame.array(), 0, frame.position());
+        frame.clear();
+    }
+
+    /*
+    Read the acknowledgements of the peer until the connection breaks, then close the socket and wake the sender up.
+    A write into a connection the peer already closed may still succeed, so the sender cannot rely on its writes failing.
+    A peer silent for longer than PEER_TIMEOUT_MILLIS, heartbeats included, breaks the connection as well.
+     */
+    private void readAcks(DataInputStream in, Socket sock) {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type == ACK) {
+                    ackedSeq = in.readLong();
+                } else if (type != HEARTBEAT) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            // Connection lost, handled below
+        }
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            // Closed already
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    // Receiver thread: take the stream of the peer, one connection at a time, each one dropped once the peer goes silent
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try (Socket sock = listener.accept()) {
+                sock.setTcpNoDelay(true);
+                sock.setSoTimeout(PEER_TIMEOUT_MILLIS);
+                receive(sock);
+            } catch (IOException ioe) {
+                JokeLog.warn("event=replication-stream-closed error=\"" + ioe + "\"");
+            }
+        }
+    }
+
+    // Apply the frames of one connection of the peer, acknowledging every batch
+    private void receive(Socket sock) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a JokeServer replication stream");
+        }
+        long peerRun = in.readLong();
+        out.writeLong(peerRunApplied);
+        out.writeLong(peerSeqApplied);
+        out.flush();
+        CycleRecord record = new CycleRecord();
+        byte[] records = new byte[CycleRecord.BYTES * CycleJournal.MAX_BATCH];
+        while (true) {
+            byte type = in.readByte();
+            if (type == HEARTBEAT) {
+                out.writeByte(HEARTBEAT);
+                out.flush();
+                continue;
+            }
+            long seq = (type == BATCH) ? in.readLong() : 0;
+            int count = in.readInt();
+            if ((type != BATCH && type != FULL) || count < 0 || count > CycleJournal.MAX_BATCH) {
+                throw new IOException("bad replication frame " + type);
+            }
+            in.readFully(records, 0, count * CycleRecord.BYTES);
+            ByteBuffer view = ByteBuffer.wrap(records, 0, count * CycleRecord.BYTES);
+            for (int i = 0; i < count; i++) {
+                if (!record.decode(view)) {
+                    throw new IOException("damaged replication record");
+                }
+                if (record.type == CycleRecord.REMOVED) {
+                    table.removeRemote(record.uuid);
+                } else {
+                    table.applyRemote(record);
+                }
+            }
+            appliedRecords.addAndGet(count);
+            if (type == BATCH) {
+                peerRunApplied = peerRun;
+                peerSeqApplied = seq;
+                out.writeByte(ACK);
+                out.writeLong(seq);
+                // Acknowledge in bursts: flush only once everything that already arrived has been applied
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        }
+    }
+}
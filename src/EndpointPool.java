@@ -0,0 +1,344 @@
+/*--------------------------------------------------------
+
+EndpointPool.java
+
+The JokeServers a JokeClient can talk to, and the choice of which one gets the next request.
+
+a. Every endpoint keeps an exponentially weighted moving average of its reply time and a count of consecutive
+   failures. A failed endpoint is skipped for a back-off period (0.5 s, doubling up to 30 s), after which it is tried
+   again; one success makes it healthy again.
+b. Without -Djoke.client.balance the client talks to the current endpoint and "s" moves on to the next one, like the
+   original primary/secondary switch. With -Djoke.client.balance=latency every request goes to the healthy endpoint
+   with the lowest average reply time, endpoints nobody has measured yet are tried first, and about one request in 20
+   goes to another healthy endpoint so its average stays fresh.
+c. Either way, if a request fails (the server is down, refuses or drops the connection) it is retried on the next
+   endpoint, so one dead server never costs the user a request.
+d. With -Djoke.client.hedge.ms=<n>, an idempotent request (one that takes nothing from the user's cycle, like stats)
+   that has no answer after n ms is also sent to the second best endpoint and the first answer wins, which cuts the
+   tail latency. A request for jokes/proverbs is never hedged: the slower server would still take the next item of
+   the user's cycle for an answer nobody reads, and the user would silently skip it. A request id cannot prevent that,
+   since the slower server is another server that never saw the first answer.
+e. A cluster node that does not own the user answers "#MOVED host:port" (see ClusterRing.java). The request is sent
+   again to that node, which is added to the endpoints if it was not given, and every following request goes straight
+   to it while it is healthy, until "s" is entered or another redirect comes.
+f. A server that has no room for a request, or a user asking faster than its rate limit, answers "#BUSY <ms>" (see
+   AdmissionControl.java). The server is healthy, so the request is sent to it again after <ms>, up to 3 times and
+   only if the wait is at most 5 s, before the next endpoint gets it.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Thrown by an Exchange when the server answered that the user is owned by another cluster node
+class Redirect extends IOException {
+    private static final long serialVersionUID = 1L;
+    // host:port of the owner
+    final String target;
+
+    Redirect(String target) {
+        super("moved to " + target);
+        this.target = target;
+    }
+}
+
+// Thrown by an Exchange when the server answered that it has no room for the request right now
+class Busy extends IOException {
+    private static final long serialVersionUID = 1L;
+    // Milliseconds after which the server may take the request
+    final long retryMillis;
+
+    Busy(long retryMillis) {
+        super("busy, retry after " + retryMillis + " ms");
+        this.retryMillis = retryMillis;
+    }
+}
+
+// One JokeServer address with its reply time and health, shared by the request threads of the client
+class Endpoint {
+    // Weight of the newest reply time in the moving average
+    private static final double ALPHA = 0.2;
+    private static final long MIN_BACKOFF_MILLIS = 500L;
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    final String host;
+    final int port;
+    // Open keep-alive session with this server in session mode, null otherwise
+    JokeClient.Session session;
+    // Open binary protocol connection with this server in binary mode, null otherwise
+    JokeClient.BinarySession binarySession;
+
+    // Average reply time in milliseconds, negative until the first reply
+    private double latencyMillis = -1;
+    private int consecutiveFailures;
+    private long downUntil;
+    private long requests;
+    private long failures;
+
+    Endpoint(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Parse "host" or "host:port", using defaultPort when there is no port
+    static Endpoint parse(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            return new Endpoint(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+        return new Endpoint(address, defaultPort);
+    }
+
+    synchronized void success(long nanos) {
+        double millis = nanos / 1e6;
+        latencyMillis = (latencyMillis < 0) ? millis : latencyMillis + ALPHA * (millis - latencyMillis);
+        consecutiveFailures = 0;
+        downUntil = 0;
+        requests++;
+    }
+
+    synchronized void failure() {
+        consecutiveFailures++;
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(16, consecutiveFailures - 1));
+        downUntil = System.currentTimeMillis() + backoff;
+        requests++;
+        failures++;
+    }
+
+    synchronized boolean isHealthy(long now) {
+        return now >= downUntil;
+    }
+
+    synchronized double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    synchronized long getDownUntil() {
+        return downUntil;
+    }
+
+    // One line of statistics, printed by the "s" command in balance mode
+    synchronized String describe() {
+        String latency = (latencyMillis < 0) ? "not measured" : String.format("%.1f ms", latencyMillis);
+        String health = (System.currentTimeMillis() >= downUntil) ? "up" : "down after " + consecutiveFailures + " failures";
+        return this + ": " + latency + ", " + requests + " requests, " + failures + " failed, " + health;
+    }
+
+    public String toString() {
+        return host + ":" + port;
+    }
+}
+
+class EndpointPool {
+    // One request against one endpoint, returns the text to show the user
+    interface Exchange {
+        String call(Endpoint endpoint) throws IOException;
+    }
+
+    // About one request in EXPLORE_ONE_IN goes to another healthy endpoint in balance mode
+    private static final int EXPLORE_ONE_IN = 20;
+    // Redirects followed for one request before giving up, cluster nodes that disagree could send it round in circles
+    private static final int MAX_REDIRECTS = 3;
+    // Busy answers waited out on one endpoint before moving on, and the longest wait worth it
+    private static final int MAX_BUSY_RETRIES = 3;
+    private static final long MAX_BUSY_WAIT_MILLIS = 5000L;
+
+    private final List<Endpoint> endpoints;
+    private final boolean balance;
+    private final long hedgeMillis;
+    // Runs hedged attempts, only created when hedging is on
+    private final ExecutorService hedgeExecutor;
+    // Endpoint the user is talking to when not balancing, moved on by "s" and by failover
+    private volatile int current;
+    // Cluster node that owns the user, learned from the last redirect, null if there was none
+    private volatile Endpoint owner;
+
+    EndpointPool(List<Endpoint> endpoints, boolean balance, long hedgeMillis) {
+        // Redirects may add endpoints while hedged attempts read the list
+        this.endpoints = new CopyOnWriteArrayList<>(endpoints);
+        this.balance = balance;
+        this.hedgeMillis = (endpoints.size() > 1) ? hedgeMillis : 0;
+        hedgeExecutor = (this.hedgeMillis > 0) ? Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "JokeClient-hedge");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    // Every endpoint, the ones given at start-up and the ones learned from redirects
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    Endpoint getCurrent() {
+        return endpoints.get(current);
+    }
+
+    // Move on to the next endpoint, the "s" command, which also forgets the owner learned from a redirect
+    Endpoint switchEndpoint() {
+        owner = null;
+        current = (current + 1) % endpoints.size();
+        return getCurrent();
+    }
+
+    /*
+    Run one request, trying the endpoints in order of preference until one answers. With hedging on, an idempotent
+    request starts a second attempt on the next endpoint if the first one is slow, see note d. Throws the last failure
+    if no endpoint answered.
+     */
+    String execute(Exchange exchange, boolean idempotent) throws IOException {
+        List<Endpoint> order = candidates();
+        if (idempotent && hedgeExecutor != null) {
+            return executeHedged(exchange, order);
+        }
+        IOException last = null;
+        for (Endpoint endpoint : order) {
+            try {
+                String reply = attempt(exchange, endpoint);
+                failedOverTo(order.get(0), endpoint);
+                return reply;
+            } catch (IOException ioe) {
+                last = ioe;
+            }
+        }
+        throw last;
+    }
+
+    // Run the request on one endpoint, following redirects to the owner of the user and waiting out busy answers
+    private String attempt(Exchange exchange, Endpoint endpoint) throws IOException {
+        int busyRetries = 0;
+        for (int redirects = 0; ; ) {
+            long start = System.nanoTime();
+            try {
+                String reply = exchange.call(endpoint);
+                endpoint.success(System.nanoTime() - start);
+                return reply;
+            } catch (Redirect redirect) {
+                // The server answered, just not with an item
+                endpoint.success(System.nanoTime() - start);
+                if (redirects++ == MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects, the last one to " + redirect.target);
+                }
+                endpoint = follow(redirect.target);
+            } catch (Busy busy) {
+                // Answered as well, the server asks us to come back later
+                endpoint.success(System.nanoTime() - start);
+                if (busyRetries++ == MAX_BUSY_RETRIES || busy.retryMillis > MAX_BUSY_WAIT_MILLIS) {
+                    throw busy;
+                }
+                try {
+                    Thread.sleep(busy.retryMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw busy;
+                }
+            } catch (IOException ioe) {
+                endpoint.failure();
+                throw ioe;
+            }
+        }
+    }
+
+    // The endpoint of a redirect target, added if it is new, remembered as the owner of the user
+    private synchronized Endpoint follow(String target) {
+        Endpoint found = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.toString().equals(target)) {
+                found = endpoint;
+            }
+        }
+        if (found == null) {
+            found = Endpoint.parse(target, 0);
+            endpoints.add(found);
+        }
+        owner = found;
+        return found;
+    }
+
+    // Without balancing, an answer from another endpoint than the first choice means we failed over to it
+    private void failedOverTo(Endpoint first, Endpoint endpoint) {
+        if (!balance && first != endpoint) {
+            System.out.println(first + " did not answer, now communicating with: " + endpoint.host + ", port " + endpoint.port);
+            current = endpoints.indexOf(endpoint);
+        }
+    }
+
+    // Send to the best endpoint, add the next one if no answer came within hedgeMillis, the first answer wins
+    private String executeHedged(Exchange exchange, List<Endpoint> order) throws IOException {
+        CompletionService<Object[]> attempts = new ExecutorCompletionService<>(hedgeExecutor);
+        int next = 0;
+        int running = 0;
+        IOException last = null;
+        attempts.submit(attemptTask(exchange, order.get(next++)));
+        running++;
+        try {
+            while (running > 0) {
+                // Wait for the hedge delay while another endpoint is left to hedge on, otherwise for the answer
+                Future<Object[]> done = (next < order.size()) ? attempts.poll(hedgeMillis, TimeUnit.MILLISECONDS) : attempts.take();
+                if (done == null) {
+                    attempts.submit(attemptTask(exchange, order.get(next++)));
+                    running++;
+                    continue;
+                }
+                running--;
+                try {
+                    // The attempt that answered first, slower ones finish in the background and only update statistics
+                    Object[] answer = done.get();
+                    if (!order.get(0).isHealthy(System.currentTimeMillis())) {
+                        // Only a failed first choice is a failover, a hedge that beat a slow server is not
+                        failedOverTo(order.get(0), (Endpoint) answer[0]);
+                    }
+                    return (String) answer[1];
+                } catch (ExecutionException ee) {
+                    last = (ee.getCause() instanceof IOException) ? (IOException) ee.getCause() : new IOException(ee.getCause());
+                    if (running == 0 && next < order.size()) {
+                        // Every attempt so far failed, fail over to the next endpoint right away
+                        attempts.submit(attemptTask(exchange, order.get(next++)));
+                        running++;
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a reply");
+        }
+        throw last;
+    }
+
+    // An attempt for the completion service, answers the endpoint together with the reply
+    private Callable<Object[]> attemptTask(Exchange exchange, Endpoint endpoint) {
+        return () -> new Object[]{endpoint, attempt(exchange, endpoint)};
+    }
+
+    /*
+    Endpoints in the order they should be tried: the owner of the user if a redirect told us and it is healthy, then
+    the healthy ones (by reply time in balance mode, starting with the current one otherwise), then the ones backing
+    off, the one that comes back first first, as a last resort.
+     */
+    private List<Endpoint> candidates() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> healthy = new ArrayList<>();
+        List<Endpoint> down = new ArrayList<>();
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get(balance ? i : (current + i) % endpoints.size());
+            (endpoint.isHealthy(now) ? healthy : down).add(endpoint);
+        }
+        if (balance) {
+            // Not measured yet sorts first (negative average), so every endpoint gets measured
+            healthy.sort((a, b) -> Double.compare(a.getLatencyMillis(), b.getLatencyMillis()));
+            if (healthy.size() > 1 && ThreadLocalRandom.current().nextInt(EXPLORE_ONE_IN) == 0) {
+                Collections.swap(healthy, 0, 1 + ThreadLocalRandom.current().nextInt(healthy.size() - 1));
+            }
+        }
+        Endpoint known = owner;
+        if (known != null && healthy.remove(known)) {
+            healthy.add(0, known);
+        }
+        down.sort((a, b) -> Long.compare(a.getDownUntil(), b.getDownUntil()));
+        healthy.addAll(down);
+        return healthy;
+    }
+}
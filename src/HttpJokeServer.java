@@ -0,0 +1,546 @@
+/*--------------------------------------------------------
+
+HttpJokeServer.java
+
+An HTTP/1.1 front end on its own port (-Djoke.http.port, off by default), so a web tier can ask for jokes/proverbs
+without a proxy that opens a new socket to the joke port for every hit. It serves the same ClientStatusTable and
+corpus as the joke port: a user gets the next items of the same cycles over HTTP, TCP or UDP.
+
+    GET /next?uuid=<UUID>&name=<username>[&mode=joke|proverb]
+        200 {"mode":"joke","title":"JA","name":"<username>","text":"..."}
+    GET /batch?uuid=<UUID>&name=<username>&count=<n>[&mode=joke|proverb]
+        200 {"items":[<n items like the one above>]}
+    GET /quit?uuid=<UUID>
+        200 {"dropped":"<UUID>"}, the user's cycles are forgotten like after "quit" in JokeClient
+POST is taken as well. Without mode the server mode decides, like on the joke port. A secondary server adds
+"server":"secondary" to every item. Errors are JSON too: 400 for a missing or bad parameter (a name with a control
+character among them, which would break the lines of the request log), 404, 405, 421 with the "owner" host:port (joke
+port) of a user that belongs to another cluster node, and 503 with Retry-After and "retry_ms" for a user over its rate
+limit or a server over its in-flight cap (see AdmissionControl.java).
+
+a. Connections are kept alive (HTTP/1.1 by default, HTTP/1.0 with "Connection: keep-alive") and requests may be
+   pipelined: the answers to every request that arrived in one read are queued and go out in one gathering write, in
+   order, once no complete request is left in the buffer (or after MAX_PIPELINED of them).
+b. The JSON is not built per request: each item has two ready-made fragments around the username (see Corpus.java),
+   and the header is shared bytes plus the digits of the body length, so a reply is a handful of byte buffers.
+c. Each connection is served by a task on an executor from WorkerPool, so -Djoke.workers picks a bounded pool
+   (-Djoke.http.threads, at least 128 by default, and -Djoke.http.queue), a thread per connection or virtual threads.
+   A kept-alive connection holds its thread until it is closed, so the pool size is the number of clients served at
+   once. Connections count towards -Djoke.inflight.max like those of the joke port.
+d. A request has -Djoke.request.timeout.ms from its first byte (or the accept) to its last reply byte and a kept-alive
+   connection the idle timeout between requests, both on the shared timer wheel (see TimerWheel.java).
+e. A drain closes the port and the connections between two requests, a connection in the middle of one gets its
+   answer with "Connection: close".
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+class HttpJokeServer implements Runnable {
+    private final ServerSocketChannel listener;
+    private final ExecutorService executor;
+
+    private HttpJokeServer(ServerSocketChannel listener, ExecutorService executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    // Bind the HTTP port and start accepting on a thread of its own
+    static HttpJokeServer start(int port) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            JokeServer.setReusePort(listener);
+            listener.bind(new InetSocketAddress(port), ServerConfig.backlog());
+        } catch (IOException x) {
+            listener.close();
+            throw x;
+        }
+        ExecutorService executor = WorkerPool.create("HttpJokeServer", ServerConfig.httpThreads(), ServerConfig.httpQueue());
+        HttpJokeServer server = new HttpJokeServer(listener, executor);
+        new Thread(server, "HttpJokeServer-acceptor").start();
+        System.out.println("JokeServer answers HTTP at port " + port + ".");
+        return server;
+    }
+
+    public void run() {
+        try {
+            while (JokeServer.isRunning()) {
+                SocketChannel channel = listener.accept();
+                if (!AdmissionControl.admitConnection()) {
+                    AdmissionControl.refuse(channel, HttpConnection.BUSY_RESPONSE);
+                    continue;
+                }
+                channel.socket().setTcpNoDelay(true);
+                executor.execute(new HttpConnection(channel.socket()));
+            }
+        } catch (ClosedChannelException closed) {
+            // Closed by a drain
+        } catch (IOException ioe) {
+            JokeLog.error("event=http-accept-error error=\"" + ioe + "\"");
+        }
+    }
+
+    // Called by a drain: stop accepting and close the connections waiting for their next request
+    void drain() {
+        try {
+            listener.close();
+        } catch (IOException ioe) {
+            // Not accepting anymore either way
+        }
+        HttpConnection.closeIdle();
+    }
+
+    // Called by a drain at its deadline
+    void closeAll() {
+        HttpConnection.closeAll();
+    }
+}
+
+/*
+One kept-alive HTTP connection, served on a thread of the HTTP executor until the client closes it, asks to close it,
+sends something we cannot make sense of, or runs past a deadline.
+ */
+class HttpConnection extends ConnectionTask {
+    // Answers queued before they are written, when a client pipelines more requests than that in one go
+    private static final int MAX_PIPELINED = 64;
+    // Largest request line or header line, and most header lines, we read
+    private static final int MAX_LINE_BYTES = 8192;
+    private static final int MAX_HEADERS = 100;
+    // Largest request body we read past, none of our requests needs one
+    private static final int MAX_BODY_BYTES = 65536;
+    private static final long REQUEST_TIMEOUT_MILLIS = ServerConfig.requestTimeoutMillis();
+    private static final long IDLE_TIMEOUT_MILLIS = ServerConfig.sessionIdleMillis();
+
+    private static final byte[] OK_HEADER = ascii("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: ");
+    private static final byte[] END_KEEP_ALIVE = ascii("\r\n\r\n");
+    // HTTP/1.0 closes unless told otherwise, so keeping a 1.0 connection open is said out loud
+    private static final byte[] END_KEEP_ALIVE_10 = ascii("\r\nConnection: keep-alive\r\n\r\n");
+    private static final byte[] END_CLOSE = ascii("\r\nConnection: close\r\n\r\n");
+    private static final byte[] ITEMS_OPEN = ascii("{\"items\":[");
+    private static final byte[] ITEMS_CLOSE = ascii("]}");
+    // The answer of a connection the server has no room for, see AdmissionControl.java
+    static final byte[] BUSY_RESPONSE = response(503, "Service Unavailable", "Retry-After: 1\r\n",
+            "{\"error\":\"busy\",\"retry_ms\":" + ServerConfig.busyRetryMillis() + "}", false, false);
+
+    // Every connection being served, so a drain can close the ones between two requests
+    private static final Set<HttpConnection> LIVE = ConcurrentHashMap.newKeySet();
+
+    // A line longer than MAX_LINE_BYTES, or too many of them
+    private static class HeaderTooLarge extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HeaderTooLarge() {
+            super("Request header too large");
+        }
+    }
+
+    private final long acceptedAt;
+    private final TimerWheel.Timeout deadline = JokeServer.getDeadlines().newTimeout(this::expire);
+    // True while the connection waits for its next request, it has nothing in flight then
+    private volatile boolean idle;
+    private volatile boolean expired;
+    // Bytes read and not parsed yet are buf[pos, limit)
+    private final byte[] buf = new byte[MAX_LINE_BYTES];
+    private int pos;
+    private int limit;
+    private InputStream in;
+    private final ReplyBuffer out = new ReplyBuffer();
+    // Answers queued since the last write
+    private int queued;
+    // True when the connection is closed after an error, with the rest of the request possibly still unread
+    private boolean lingering;
+
+    HttpConnection(Socket s) {
+        super(s);
+        acceptedAt = ServerMetrics.start();
+        ServerMetrics.ACCEPTED.increment();
+        ServerMetrics.ACTIVE.increment();
+        JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    // The executor is full, the client is answered 503 and the connection closed without being served
+    void reject() {
+        JokeServer.getDeadlines().cancel(deadline);
+        ServerMetrics.ACTIVE.decrement();
+        AdmissionControl.refuse(sock.getChannel(), BUSY_RESPONSE);
+    }
+
+    public void run() {
+        ServerMetrics.record(ServerMetrics.ACCEPT, acceptedAt);
+        LIVE.add(this);
+        SocketChannel channel = sock.getChannel();
+        try {
+            in = sock.getInputStream();
+            boolean keepAlive = true;
+            boolean first = true;
+            while (keepAlive) {
+                if (pos == limit) {
+                    // Every request that came in one go is answered, the answers go out before we wait for more
+                    flush(channel);
+                    pos = 0;
+                    limit = 0;
+                    if (!first) {
+                        // Marked idle before the check, so a drain either sees the mark and closes the socket or is seen here
+                        idle = true;
+                        if (!JokeServer.isRunning()) {
+                            break;
+                        }
+                        JokeServer.getDeadlines().arm(deadline, IDLE_TIMEOUT_MILLIS);
+                    }
+                    int read = in.read(buf, 0, buf.length);
+                    if (read < 0) {
+                        break;
+                    }
+                    limit = read;
+                    if (!first) {
+                        // The first bytes of the next request start its deadline
+                        idle = false;
+                        JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+                    }
+                }
+                first = false;
+                keepAlive = serveRequest();
+                if (queued >= MAX_PIPELINED) {
+                    flush(channel);
+                }
+            }
+            flush(channel);
+            if (lingering) {
+                discardInput();
+            }
+        } catch (HeaderTooLarge tooLarge) {
+            try {
+                out.add(response(431, "Request Header Fields Too Large", "", error("request header too large"), false, false));
+                flush(channel);
+                discardInput();
+            } catch (IOException x) {
+                // Closing anyway
+            }
+        } catch (IOException x) {
+            if (!expired && JokeServer.isRunning()) {
+                JokeLog.warn("event=http-read-error remote=" + sock.getRemoteSocketAddress() + " error=\"" + x + "\"");
+            }
+        } finally {
+            JokeServer.getDeadlines().cancel(deadline);
+            LIVE.remove(this);
+            closeQuietly();
+            ServerMetrics.ACTIVE.decrement();
+        }
+    }
+
+    // Read one request and queue its answer, false if the connection is to be closed after it
+    private boolean serveRequest() throws IOException {
+        String requestLine = readLine();
+        if (requestLine == null) {
+            return false;
+        }
+        if (requestLine.isEmpty()) {
+            // A stray line end between pipelined requests is allowed before a request line
+            return true;
+        }
+        String connection = null;
+        long contentLength = 0;
+        boolean chunked = false;
+        for (int headers = 0; ; headers++) {
+            String line = readLine();
+            if (line == null) {
+                return false;
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            if (headers == MAX_HEADERS) {
+                throw new HeaderTooLarge();
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection")) {
+                connection = value;
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException nfe) {
+                    contentLength = -1;
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = !value.equalsIgnoreCase("identity");
+            }
+        }
+        long parseStart = ServerMetrics.start();
+        ServerMetrics.HTTP_REQUESTS.increment();
+        queued++;
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            out.add(response(400, "Bad Request", "", error("malformed request line"), false, false));
+            lingering = true;
+            return false;
+        }
+        boolean http10 = parts[2].equals("HTTP/1.0");
+        boolean keepAlive = JokeServer.isRunning()
+                && (http10 ? "keep-alive".equalsIgnoreCase(connection) : !"close".equalsIgnoreCase(connection));
+        // A body we do not know the end of leaves the connection in an unknown state, so it is closed
+        if (chunked || contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+            out.add(response(chunked ? 501 : 413, chunked ? "Not Implemented" : "Payload Too Large", "",
+                    error("request bodies are not supported"), http10, false));
+            lingering = true;
+            return false;
+        }
+        skip(contentLength);
+
+        String method = parts[0];
+        String target = parts[1];
+        int question = target.indexOf('?');
+        String path = (question < 0) ? target : target.substring(0, question);
+        String query = (question < 0) ? "" : target.substring(question + 1);
+        if (!path.equals("/next") && !path.equals("/batch") && !path.equals("/quit")) {
+            out.add(response(404, "Not Found", "", error("unknown path " + path), http10, keepAlive));
+        } else if (!method.equals("GET") && !method.equals("POST")) {
+            out.add(response(405, "Method Not Allowed", "Allow: GET, POST\r\n", error("use GET or POST"), http10, keepAlive));
+        } else {
+            route(path, query, http10, keepAlive);
+        }
+        ServerMetrics.recordParse(parseStart, out);
+        return keepAlive;
+    }
+
+    // Answer /next, /batch or /quit from the parameters of the query string
+    private void route(String path, String query, boolean http10, boolean keepAlive) {
+        String uuidString = null;
+        String name = null;
+        String mode = null;
+        String countText = null;
+        try {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    continue;
+                }
+                String key = parameter.substring(0, equals);
+                String value = URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+                if (key.equals("uuid")) {
+                    uuidString = value;
+                } else if (key.equals("name")) {
+                    name = value;
+                } else if (key.equals("mode")) {
+                    mode = value;
+                } else if (key.equals("count")) {
+                    countText = value;
+                }
+            }
+        } catch (IllegalArgumentException | UnsupportedEncodingException badEscape) {
+            out.add(response(400, "Bad Request", "", error("malformed query string"), http10, keepAlive));
+            return;
+        }
+
+        UUID uuid;
+        try {
+            uuid = UUID.fromString((uuidString == null) ? "" : uuidString);
+        } catch (IllegalArgumentException badUuid) {
+            out.add(response(400, "Bad Request", "", error("uuid must be a UUID"), http10, keepAlive));
+            return;
+        }
+        // In a cluster, a user owned by another node is sent there
+        ClusterRing cluster = JokeServer.getCluster();
+        String owner = (cluster == null) ? null : cluster.ownerOf(uuid);
+        if (owner != null) {
+            ServerMetrics.REDIRECTS.increment();
+            out.add(response(421, "Misdirected Request", "",
+                    "{\"error\":\"moved\",\"owner\":\"" + Corpus.jsonEscape(owner) + "\"}", http10, keepAlive));
+            return;
+        }
+        if (path.equals("/quit")) {
+            Worker.dropClient(uuid, uuidString);
+            out.add(response(200, "OK", "", "{\"dropped\":\"" + uuid + "\"}", http10, keepAlive));
+            return;
+        }
+
+        if (name == null || name.isEmpty()) {
+            out.add(response(400, "Bad Request", "", error("name cannot be empty"), http10, keepAlive));
+            return;
+        }
+        if (JokeProtocol.hasControlCharacter(name)) {
+            out.add(response(400, "Bad Request", "", error("name cannot contain control characters"), http10, keepAlive));
+            return;
+        }
+        int listIndex;
+        if (mode == null) {
+            listIndex = JokeServer.getIsJoke() ? Corpus.JOKES : Corpus.PROVERBS;
+        } else if (mode.equals("joke")) {
+            listIndex = Corpus.JOKES;
+        } else if (mode.equals("proverb")) {
+            listIndex = Corpus.PROVERBS;
+        } else {
+            out.add(response(400, "Bad Request", "", error("mode must be joke or proverb"), http10, keepAlive));
+            return;
+        }
+        boolean batch = path.equals("/batch");
+        int count = 1;
+        if (batch) {
+            try {
+                count = Integer.parseInt((countText == null) ? "" : countText);
+            } catch (NumberFormatException nfe) {
+                count = 0;
+            }
+            if (count < 1 || count > ServerConfig.batchMax()) {
+                out.add(response(400, "Bad Request", "",
+                        error("count must be a number from 1 to " + ServerConfig.batchMax()), http10, keepAlive));
+                return;
+            }
+        }
+        // A user asking faster than its rate limit is told when to come back instead
+        long retryMillis = AdmissionControl.tryAcquire(uuid, count);
+        if (retryMillis > 0) {
+            out.add(response(503, "Service Unavailable", "Retry-After: " + ((retryMillis + 999) / 1000) + "\r\n",
+                    "{\"error\":\"busy\",\"retry_ms\":" + retryMillis + "}", http10, keepAlive));
+            return;
+        }
+
+        // Shared header bytes, the digits of the body length once the body is queued, then the body itself
+        out.add(OK_HEADER);
+        int length = out.reserve();
+        out.add(!keepAlive ? END_CLOSE : (http10 ? END_KEEP_ALIVE_10 : END_KEEP_ALIVE));
+        int mark = out.mark();
+        if (batch) {
+            out.add(ITEMS_OPEN);
+        }
+        byte[] nameJson = Corpus.jsonEscape(name).getBytes(StandardCharsets.UTF_8);
+        Worker.writeItems(name, nameJson, uuid, uuidString, count, listIndex, Worker.JSON, out);
+        if (batch) {
+            out.add(ITEMS_CLOSE);
+        }
+        out.set(length, ascii(Integer.toString(out.bytesSince(mark))));
+    }
+
+    // Write the queued answers, if there are any, and time the write
+    private void flush(SocketChannel channel) throws IOException {
+        if (out.hasRemaining()) {
+            long writeStart = ServerMetrics.start();
+            out.writeFully(channel);
+            ServerMetrics.record(ServerMetrics.WRITE, writeStart);
+            ServerMetrics.HTTP_WRITES.increment();
+        }
+        queued = 0;
+    }
+
+    // Next line of the request head without its line end, null if the client closed the connection first
+    private String readLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buf[scan] == '\n') {
+                    int end = (scan > pos && buf[scan - 1] == '\r') ? scan - 1 : scan;
+                    String line = new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1);
+                    pos = scan + 1;
+                    return line;
+                }
+            }
+            // Make room behind the part of the line we have
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                scan -= pos;
+                pos = 0;
+            }
+            if (limit == buf.length) {
+                throw new HeaderTooLarge();
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                return null;
+            }
+            limit += read;
+        }
+    }
+
+    // Read past a request body
+    private void skip(long length) throws IOException {
+        long inBuffer = Math.min(length, limit - pos);
+        pos += (int) inBuffer;
+        for (long left = length - inBuffer; left > 0; ) {
+            long skipped = in.skip(left);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Client closed in the middle of a request body");
+                }
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
+    /*
+    Read and drop what the client still sends after an answer that closes the connection, until it closes its side or
+    the deadline closes ours: closing a socket with unread data resets the connection, and the client could lose the
+    answer to the reset.
+     */
+    private void discardInput() throws IOException {
+        sock.shutdownOutput();
+        long left = MAX_BODY_BYTES;
+        int read;
+        while (left > 0 && (read = in.read(buf, 0, buf.length)) > 0) {
+            left -= read;
+        }
+    }
+
+    // Called by the timer wheel: the request or the wait for the next one is over its time
+    private void expire() {
+        expired = true;
+        ServerMetrics.EXPIRED.increment();
+        JokeLog.info("event=" + (idle ? "idle-close" : "deadline") + " remote=" + sock.getRemoteSocketAddress());
+        closeQuietly();
+    }
+
+    // Called by a drain: close the connections waiting for their next request
+    static void closeIdle() {
+        for (HttpConnection connection : LIVE) {
+            if (connection.idle) {
+                connection.closeQuietly();
+            }
+        }
+    }
+
+    // Called by a drain at its deadline: close every connection still open
+    static void closeAll() {
+        for (HttpConnection connection : LIVE) {
+            connection.closeQuietly();
+        }
+    }
+
+    // A whole answer other than the items, built as one array, these are the rare ones
+    private static byte[] response(int status, String reason, String headers, String json, boolean http10, boolean keepAlive) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        String connection = !keepAlive ? "Connection: close\r\n" : (http10 ? "Connection: keep-alive\r\n" : "");
+        byte[] head = ascii("HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: application/json\r\n" + headers
+                + connection + "Content-Length: " + body.length + "\r\n\r\n");
+        return ByteBuffer.allocate(head.length + body.length).put(head).put(body).array();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":\"" + Corpus.jsonEscape(message) + "\"}";
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
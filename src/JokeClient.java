@@ -5,7 +5,7 @@
 2. Java version used: build 1.8.0_102-b14
 
 3. Precise command-line compilation examples / instructions:
-> javac JokeClient.java
+> javac *.java
 
 4. Precise examples / instructions to run this program:
 In separate shell windows:
@@ -18,19 +18,58 @@ or
 > java JokeClient <IPAddr> <IPAddr>
 to connect to the server using user-defined primary address and primary port number (4545),
 and using user-defined secondary address and secondary port number (4546).
+or
+> java JokeClient <IPAddr>:<port> <IPAddr>:<port> <IPAddr>:<port> ...
+to use any number of servers, an address without a port uses 4545 for the first server and 4546 for the others.
+Add -Djoke.client.balance=latency to send every request to the fastest healthy server, and -Djoke.client.hedge.ms=<n>
+to also ask a second server when the first one has not answered "stats" within n ms, see EndpointPool.java. Requests
+for jokes/proverbs are never hedged, the slower server would still take an item from the user's cycle.
+Any node of a JokeServer cluster can be given, the client is redirected to the node that owns its UUID.
+Add -Djoke.client.protocol=binary to speak the compact binary protocol over one open connection per server, where
+"stats" also shows the state of the server, see BinaryProtocol.java.
+Add -Djoke.client.protocol=udp to ask for every joke/proverb with a single datagram, from servers started with
+-Djoke.udp=true, see UdpJokeServer.java.
+Add -Djoke.client.protocol=http to ask the HTTP front end of servers started with -Djoke.http.port=<port>, over one
+kept-alive connection per server; give that port as the server's port, see HttpJokeServer.java.
+Add -Djoke.client.session=true before the class name, for example
+> java -Djoke.client.session=true JokeClient
+to keep one connection per server open and ask for every joke/proverb over it instead of reconnecting each time.
+In a session, "subscribe <n>" has the current server push the next n jokes/proverbs over it, see JokeProtocol.java.
+or
+> java -Djoke.load.users=5000 -Djoke.load.rate=2000 JokeClient --load <IPAddr>:<port> ...
+to load-test the servers instead of asking for jokes/proverbs, see LoadGenerator.java.
 
 5. List of files needed for running the program:
 a. JokeServer.java
 b. JokeClient.java
 c. JokeClientAdmin.java
-d. JokeLog.txt
-e. checklist.html
+d. EndpointPool.java
+e. LoadGenerator.java
+f. LatencyHistogram.java
+g. JokeLog.txt
+h. checklist.html
 
 5. Notes:
-a. This JokeClient can connect to 1 or 2 servers at the same time, if a secondary server is in using, it can be switched
-   by entering "s".
+a. This JokeClient can connect to any number of servers, the next one is switched to by entering "s". If a server does not
+   answer, the request is retried on the next one right away, so a dead server no longer just prints "Socket error.".
 b. This JokeClient is capable to send request and receive jokes/proverbs from a JokeServer.
 c. The command "quit" can be used to quit the client and signal the server so it can delete the status of this client stored.
+d. The command "next <n>", for example "next 5", asks for the next n jokes/proverbs in one request and one reply.
+e. In session mode the client sends its username and UUID once per server and then only "NEXT" for every request. If the
+   server closed the session in the meantime (idle timeout, restart), the client reconnects and retries once.
+f. With --load as the first argument the client runs thousands of virtual users without asking for input, and reports
+   throughput, errors and latency percentiles, and whether any user saw a repeat within a cycle.
+g. A server that is overloaded, or a user asking faster than the server's rate limit, gets "#BUSY <ms>" back. The client
+   waits that long and asks again, see EndpointPool.java.
+h. A datagram request that gets no reply within -Djoke.client.udp.timeout.ms (200 by default) is sent again with the
+   same request id and twice the wait, up to 4 times, so a lost datagram costs a retry and never a skipped joke/proverb.
+   "next <n>" is not a single datagram and goes over TCP.
+i. Over HTTP every thread keeps a connection of its own per server, so the load test can use it with any concurrency.
+   The JSON reply is turned back into the same line the joke port answers. A user that belongs to another cluster node
+   is an error: the node is named by its joke port, whose HTTP port the client cannot know.
+j. A subscription starts with a window of credits (-Djoke.client.subscribe.window, 100 by default, at most n) and
+   grants credits back each time it has printed half a window of items, so the server never has more than a window
+   in flight and never waits for a credit while the client keeps up. After n items it cancels the stream.
 
 ----------------------------------------------------------*/
 
@@ -39,8 +78,14 @@ c. The command "quit" can be used to quit the client and signal the server so it
 import java.io.*;
 // Get the Java networking libraries
 import java.net.*;
-// Get the UUID API in Java utility libraries
+// Get the list and UUID APIs in Java utility libraries
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JokeClient {
     // Define default primary port number
@@ -49,79 +94,635 @@ public class JokeClient {
     private static final int DEFAULT_SECONDARY_SERVER_PORT = 4546;
     // Define default primary server address
     private static final String DEFAULT_SERVER_ADDR = "localhost";
+    // Answer of a cluster node that does not own our UUID, followed by the host:port of the node that does
+    private static final String MOVED = "#MOVED ";
+    // Answer of a server that has no room for the request, followed by the milliseconds to wait
+    private static final String BUSY = "#BUSY ";
+    // How the first servers are called when the client starts
+    private static final String[] SERVER_NUMBERS = {"one", "two"};
+    // Request ids of datagram requests, from a random start so two clients of the same user do not reuse each other's
+    private static final AtomicLong REQUEST_IDS = new AtomicLong(new Random().nextLong() >>> 1);
+    // First wait for the reply to a datagram, doubled for each of the retransmits
+    private static final int UDP_TIMEOUT_MILLIS = Integer.getInteger("joke.client.udp.timeout.ms", 200);
+    private static final int UDP_ATTEMPTS = 4;
+    // Credits a subscription starts with, and never has more of outstanding
+    private static final int SUBSCRIBE_WINDOW = Integer.getInteger("joke.client.subscribe.window", 100);
+    // Kept-alive HTTP connections of the current thread, one per server
+    private static final ThreadLocal<Map<Endpoint, HttpSession>> HTTP_SESSIONS = ThreadLocal.withInitial(HashMap::new);
 
-    static void getRemoteResponse(String username, String uuid, String serverName, int serverPort) {
+    /*
+    A keep-alive session with one server. The username and UUID are sent once when the session is opened,
+    after that every request is a single "NEXT" line answered by a single line.
+     */
+    static class Session {
         Socket sock;
         BufferedReader fromServer;
         PrintStream toServer;
-        String textFromServer;
-        try {
-            // Open socket using given server address and port number
+
+        // Open the connection and announce the session, the server confirms with "#OK <idle timeout>"
+        Session(String username, String uuid, String serverName, int serverPort) throws IOException {
             sock = new Socket(serverName, serverPort);
-            // Initialize the input stream of the socket as BufferedReader
             fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            // Initialize the output stream of the socket as PrintStream
             toServer = new PrintStream(sock.getOutputStream());
-            // Send user input server name to server for query.
+            toServer.println("#SESSION");
             toServer.println(username);
+            toServer.println(uuid);
+            toServer.flush();
+            String reply = fromServer.readLine();
+            if (reply == null || !reply.startsWith("#OK")) {
+                close();
+                checkStatus(reply);
+                throw new IOException("Server refused the session: " + reply);
+            }
+        }
+
+        // Send one command and return the whole answer, null if the server closed the session
+        String request(String command) throws IOException {
+            toServer.println(command);
+            toServer.flush();
+            if (toServer.checkError()) {
+                return null;
+            }
+            return readReply(fromServer);
+        }
+
+        void close() {
+            try {
+                sock.close();
+            } catch (IOException x) {
+                // Nothing to do for a session we are leaving anyway
+            }
+        }
+    }
+
+    /*
+    A connection speaking the binary protocol (see BinaryProtocol.java), kept open for every request. The frame layout
+    and the opcode and status values below are the ones of BinaryProtocol.
+     */
+    static class BinarySession {
+        static final byte MAGIC = (byte) 0xA5;
+        static final byte VERSION = 1;
+        static final byte OP_NEXT = 1;
+        static final byte OP_BATCH = 2;
+        static final byte OP_QUIT = 3;
+        static final byte OP_STATS = 4;
+        private static final byte STATUS_OK = 0;
+        private static final byte STATUS_MOVED = 2;
+        private static final byte STATUS_BUSY = 3;
+
+        Socket sock;
+        DataInputStream fromServer;
+        DataOutputStream toServer;
+        private int nextRequestId;
+
+        BinarySession(String serverName, int serverPort) throws IOException {
+            sock = new Socket(serverName, serverPort);
+            sock.setTcpNoDelay(true);
+            fromServer = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            toServer = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        }
+
+        // Send one request and return the answer, the items one per line, or "#ERROR <reason>" if the server refused it
+        synchronized String request(byte opcode, int count, byte[] usernameBytes, UUID uuid) throws IOException {
+            int requestId = ++nextRequestId;
+            int bodyLength = (opcode == OP_STATS) ? 0 : 16;
+            if (opcode == OP_NEXT || opcode == OP_BATCH) {
+                bodyLength += ((opcode == OP_BATCH) ? 2 : 0) + 2 + usernameBytes.length;
+            }
+            toServer.writeByte(MAGIC);
+            toServer.writeByte(VERSION);
+            toServer.writeByte(opcode);
+            toServer.writeInt(requestId);
+            toServer.writeInt(bodyLength);
+            if (opcode != OP_STATS) {
+                toServer.writeLong(uuid.getMostSignificantBits());
+                toServer.writeLong(uuid.getLeastSignificantBits());
+            }
+            if (opcode == OP_BATCH) {
+                toServer.writeShort(count);
+            }
+            if (opcode == OP_NEXT || opcode == OP_BATCH) {
+                toServer.writeShort(usernameBytes.length);
+                toServer.write(usernameBytes);
+            }
             toServer.flush();
+
+            // Header of the reply: magic, version, status, request id, body length
+            byte first = fromServer.readByte();
+            if (first == '#') {
+                // The text answer of a server that had no room for the connection, which it closed
+                close();
+                checkStatus("#" + readTextLine());
+                throw new IOException("Not a binary protocol reply");
+            }
+            if (first != MAGIC || fromServer.readByte() != VERSION) {
+                throw new IOException("Not a binary protocol reply");
+            }
+            byte status = fromServer.readByte();
+            if (fromServer.readInt() != requestId) {
+                throw new IOException("Reply to another request");
+            }
+            int replyLength = fromServer.readInt();
+            if (status == STATUS_OK && (opcode == OP_NEXT || opcode == OP_BATCH)) {
+                // Items, each with its length in front
+                StringBuilder items = new StringBuilder();
+                int itemCount = fromServer.readUnsignedShort();
+                for (int i = 0; i < itemCount; i++) {
+                    byte[] item = new byte[fromServer.readInt()];
+                    fromServer.readFully(item);
+                    items.append((i == 0) ? "" : System.lineSeparator()).append(new String(item, "UTF-8"));
+                }
+                return items.toString();
+            }
+            byte[] body = new byte[replyLength];
+            fromServer.readFully(body);
+            String text = new String(body, "UTF-8");
+            if (status == STATUS_MOVED) {
+                throw new Redirect(text);
+            }
+            if (status == STATUS_BUSY) {
+                throw new Busy(Long.parseLong(text.trim()));
+            }
+            return (status == STATUS_OK) ? text : "#ERROR " + text;
+        }
+
+        // The rest of a line of text, up to the end of the line or of the connection
+        private String readTextLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = fromServer.read()) >= 0 && b != '\n') {
+                line.write(b);
+            }
+            return new String(line.toByteArray(), "UTF-8").trim();
+        }
+
+        void close() {
+            try {
+                sock.close();
+            } catch (IOException x) {
+                // Nothing to do for a connection we are leaving anyway
+            }
+        }
+    }
+
+    /*
+    Read one reply from the server. A framed reply ("#ITEMS <k>" followed by k lines) is read completely and returned
+    without its header, one item per line. Any other reply is a single line. Returns null if the server closed.
+     */
+    static String readReply(BufferedReader fromServer) throws IOException {
+        String header = fromServer.readLine();
+        if (header == null || !header.startsWith("#ITEMS ")) {
+            return header;
+        }
+        int count = Integer.parseInt(header.substring("#ITEMS ".length()).trim());
+        StringBuilder items = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String item = fromServer.readLine();
+            if (item == null) {
+                throw new IOException("Server closed in the middle of a reply");
+            }
+            items.append((i == 0) ? "" : System.lineSeparator()).append(item);
+        }
+        return items.toString();
+    }
+
+    // Ask for the next count jokes/proverbs with a one-shot batch request, the reply comes back in one frame
+    static String getBatchResponse(int count, String username, String uuid, Endpoint endpoint) throws IOException {
+        // Open socket using given server address and port number
+        try (Socket sock = new Socket(endpoint.host, endpoint.port)) {
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            // Batch header first, then the same username and UUID lines as a normal request
+            toServer.println("#BATCH " + count);
+            toServer.println(username);
             toServer.println(uuid);
             toServer.flush();
-            // Read up to 3 lines from the reply of server and output them
+            String textFromServer = readReply(fromServer);
+            if (textFromServer == null) {
+                throw new IOException("Server closed the connection without a reply");
+            }
+            return checkStatus(textFromServer);
+        }
+    }
+
+    // Send a session command to the given server, opening the session first or re-opening it once if it was closed
+    static String getSessionResponse(String command, String username, String uuid, Endpoint endpoint) throws IOException {
+        try {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (endpoint.session == null) {
+                    endpoint.session = new Session(username, uuid, endpoint.host, endpoint.port);
+                }
+                String textFromServer = endpoint.session.request(command);
+                if (textFromServer != null) {
+                    // A redirect also ends the session, which is closed below, a busy answer leaves it open
+                    return checkStatus(textFromServer);
+                }
+                // Server closed the session, maybe because of the idle timeout, start a new one and retry
+                endpoint.session.close();
+                endpoint.session = null;
+            }
+            throw new IOException("Server closed the session");
+        } catch (Busy busy) {
+            // The session is still open, only this request has to wait
+            throw busy;
+        } catch (IOException x) {
+            if (endpoint.session != null) {
+                endpoint.session.close();
+                endpoint.session = null;
+            }
+            throw x;
+        }
+    }
+
+    /*
+    Subscribe over the session with the given server and print the next count jokes/proverbs as they are pushed,
+    handing credits back as they are printed, then cancel the stream. The session stays open for the next command.
+     */
+    static void printSubscription(int count, String username, String uuid, Endpoint endpoint) throws IOException {
+        int window = Math.max(1, Math.min(count, SUBSCRIBE_WINDOW));
+        try {
+            if (endpoint.session == null) {
+                endpoint.session = new Session(username, uuid, endpoint.host, endpoint.port);
+            }
+            Session session = endpoint.session;
+            String answer = session.request("SUBSCRIBE " + window);
+            if (answer == null || !answer.startsWith("#SUBSCRIBED")) {
+                checkStatus(answer);
+                throw new IOException("Server refused the stream: " + answer);
+            }
+            int granted = window;
+            int unacknowledged = 0;
+            for (int received = 0; received < count; received++) {
+                String item = checkStatus(session.fromServer.readLine());
+                if (item == null) {
+                    throw new IOException("Server closed the stream");
+                }
+                System.out.println(item);
+                // Credits go back in halves of the window, so the next ones arrive before the server runs out
+                if (++unacknowledged >= (window + 1) / 2 && granted < count) {
+                    int grant = Math.min(unacknowledged, count - granted);
+                    session.toServer.println("CREDIT " + grant);
+                    session.toServer.flush();
+                    granted += grant;
+                    unacknowledged = 0;
+                }
+            }
+            session.toServer.println("CANCEL");
+            session.toServer.flush();
+            // Every item granted was read, the end line is next
+            String line;
+            while ((line = session.fromServer.readLine()) != null && !line.equals("#END")) {
+                System.out.println(line);
+            }
+        } catch (IOException x) {
+            if (endpoint.session != null) {
+                endpoint.session.close();
+                endpoint.session = null;
+            }
+            throw x;
+        }
+    }
+
+    // Send a binary protocol request to the given server, opening the connection first or re-opening it once if it broke
+    static String getBinaryResponse(byte opcode, int count, String username, UUID uuid, Endpoint endpoint) throws IOException {
+        byte[] usernameBytes = username.getBytes("UTF-8");
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (endpoint.binarySession == null) {
+                    endpoint.binarySession = new BinarySession(endpoint.host, endpoint.port);
+                }
+                return endpoint.binarySession.request(opcode, count, usernameBytes, uuid);
+            } catch (Redirect redirect) {
+                // The connection is fine, the user just lives on another cluster node
+                throw redirect;
+            } catch (Busy busy) {
+                // A connection the server had no room for is closed, one over the rate limit is fine
+                if (endpoint.binarySession != null && endpoint.binarySession.sock.isClosed()) {
+                    endpoint.binarySession = null;
+                }
+                throw busy;
+            } catch (IOException x) {
+                if (endpoint.binarySession != null) {
+                    endpoint.binarySession.close();
+                    endpoint.binarySession = null;
+                }
+                // A connection the server closed, maybe because of the idle timeout, is opened again once
+                if (attempt == 1 || !(x instanceof EOFException || x instanceof SocketException)) {
+                    throw x;
+                }
+            }
+        }
+    }
+
+    static String getRemoteResponse(String username, String uuid, Endpoint endpoint) throws IOException {
+        StringBuilder reply = new StringBuilder();
+        // Open socket using given server address and port number
+        try (Socket sock = new Socket(endpoint.host, endpoint.port)) {
+            // Initialize the input stream of the socket as BufferedReader
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            // Initialize the output stream of the socket as PrintStream
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            // Send user input server name to server for query, both lines in one write so a server that turns us
+            // away right after the first one cannot reset the connection under the second
+            toServer.print(username + "\n" + uuid + "\n");
+            toServer.flush();
+            // Read up to 3 lines from the reply of server
             for (int i = 1; i <= 3; i++) {
-                textFromServer = fromServer.readLine();
-                if (textFromServer != null)
-                    System.out.println(textFromServer);
+                String textFromServer = fromServer.readLine();
+                if (textFromServer == null) {
+                    break;
+                }
+                reply.append((i == 1) ? "" : System.lineSeparator()).append(textFromServer);
+            }
+        }
+        if (reply.length() == 0) {
+            // The server accepted the connection but did not answer, let the next server try
+            throw new IOException("Server closed the connection without a reply");
+        }
+        return checkStatus(reply.toString());
+    }
+
+    /*
+    Ask for the next joke/proverb with a single datagram, see UdpJokeServer.java. A request without a reply in time is
+    sent again with the same request id, which the server answers with the same reply instead of the next item.
+     */
+    static String getDatagramResponse(String username, String uuid, Endpoint endpoint) throws IOException {
+        String requestId = Long.toString(REQUEST_IDS.incrementAndGet());
+        byte[] request = (requestId + "\n" + username + "\n" + uuid + "\n").getBytes();
+        // A socket of our own for each request, so a late reply to an earlier request can never be read as this one's
+        try (DatagramSocket sock = new DatagramSocket()) {
+            sock.connect(new InetSocketAddress(endpoint.host, endpoint.port));
+            DatagramPacket reply = new DatagramPacket(new byte[65507], 65507);
+            int timeout = UDP_TIMEOUT_MILLIS;
+            for (int attempt = 0; attempt < UDP_ATTEMPTS; attempt++, timeout *= 2) {
+                sock.send(new DatagramPacket(request, request.length));
+                sock.setSoTimeout(timeout);
+                try {
+                    sock.receive(reply);
+                } catch (SocketTimeoutException lost) {
+                    // The request or its reply was lost, or the first copy is still being answered
+                    continue;
+                }
+                // The request id line, then the same reply as a one-shot TCP request
+                String text = new String(reply.getData(), 0, reply.getLength());
+                int lineEnd = text.indexOf('\n');
+                if (lineEnd < 0 || !text.substring(0, lineEnd).trim().equals(requestId)) {
+                    throw new IOException("Not a reply to our datagram");
+                }
+                int end = text.length();
+                while (end > lineEnd + 1 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) {
+                    end--;
+                }
+                return checkStatus(text.substring(lineEnd + 1, end));
+            }
+            throw new IOException("No reply to " + UDP_ATTEMPTS + " datagrams");
+        }
+    }
+
+    /*
+    A kept-alive HTTP/1.1 connection with the HTTP front end of one server. Every request is a GET whose answer is read
+    up to its Content-Length, so the connection is ready for the next one right after.
+     */
+    static class HttpSession {
+        Socket sock;
+        InputStream fromServer;
+        OutputStream toServer;
+        String host;
+        // Status, Retry-After and body of the last answer
+        int status;
+        String body;
+        // True if the server said it closes the connection after the last answer
+        boolean closing;
+
+        HttpSession(String serverName, int serverPort) throws IOException {
+            sock = new Socket(serverName, serverPort);
+            sock.setTcpNoDelay(true);
+            fromServer = new BufferedInputStream(sock.getInputStream());
+            toServer = new BufferedOutputStream(sock.getOutputStream());
+            host = serverName + ":" + serverPort;
+        }
+
+        // Send one GET and read its answer into status and body
+        void request(String target) throws IOException {
+            toServer.write(("GET " + target + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes("ISO-8859-1"));
+            toServer.flush();
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Server closed the connection");
             }
-            // Close the socket
-            sock.close();
-            // In case the socket cannot be created for some reason
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Not an HTTP answer: " + statusLine);
+            }
+            status = Integer.parseInt(parts[1]);
+            int length = -1;
+            closing = false;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(line.substring(colon + 1).trim());
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    closing = line.substring(colon + 1).trim().equalsIgnoreCase("close");
+                }
+            }
+            if (line == null || length < 0) {
+                throw new IOException("Incomplete HTTP answer");
+            }
+            byte[] bytes = new byte[length];
+            new DataInputStream(fromServer).readFully(bytes);
+            body = new String(bytes, "UTF-8");
+        }
+
+        // One header line without its line end
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = fromServer.read()) >= 0 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return (c < 0 && line.length() == 0) ? null : line.toString();
+        }
+
+        void close() {
+            try {
+                sock.close();
+            } catch (IOException x) {
+                // Nothing to do for a connection we are leaving anyway
+            }
+        }
+    }
+
+    /*
+    Ask the HTTP front end of the server for the next count jokes/proverbs (count 0 asks it to drop our status table)
+    over this thread's connection to it, opening it first or re-opening it once if the server closed it meanwhile.
+     */
+    static String getHttpResponse(int count, String username, String uuid, Endpoint endpoint) throws IOException {
+        String target = (count == 0) ? "/quit?uuid=" + uuid
+                : ((count == 1) ? "/next" : "/batch") + "?uuid=" + uuid + "&name=" + URLEncoder.encode(username, "UTF-8")
+                + ((count == 1) ? "" : "&count=" + count);
+        Map<Endpoint, HttpSession> sessions = HTTP_SESSIONS.get();
+        HttpSession session = null;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                session = sessions.get(endpoint);
+                if (session == null) {
+                    session = new HttpSession(endpoint.host, endpoint.port);
+                    sessions.put(endpoint, session);
+                }
+                session.request(target);
+                break;
+            } catch (IOException x) {
+                if (session != null) {
+                    session.close();
+                    sessions.remove(endpoint);
+                }
+                // A connection the server closed, maybe because of the idle timeout, is opened again once
+                if (attempt == 1 || !(x instanceof EOFException || x instanceof SocketException)) {
+                    throw x;
+                }
+            }
+        }
+        if (session.closing) {
+            session.close();
+            sessions.remove(endpoint);
+        }
+        if (session.status == 503) {
+            throw new Busy(Long.parseLong(jsonValue(session.body, "retry_ms")));
+        }
+        if (session.status == 421) {
+            throw new IOException("User belongs to the cluster node with joke port " + jsonValue(session.body, "owner"));
+        }
+        if (session.status != 200) {
+            throw new IOException("HTTP " + session.status + ": " + jsonValue(session.body, "error"));
+        }
+        if (count == 0) {
+            return "ClientStatusTable for UUID " + jsonValue(session.body, "dropped") + " has been dropped, bye!";
+        }
+        // Every item as the line the joke port answers, "[<S2> ]<title> <username>: <text>"
+        StringBuilder reply = new StringBuilder();
+        for (int from = session.body.indexOf("\"mode\""); from >= 0; from = session.body.indexOf("\"mode\"", from + 1)) {
+            String item = session.body.substring(from, session.body.indexOf('}', from));
+            reply.append((reply.length() == 0) ? "" : System.lineSeparator())
+                    .append(item.contains("\"server\":\"secondary\"") ? "<S2> " : "")
+                    .append(jsonValue(item, "title")).append(' ').append(jsonValue(item, "name")).append(": ")
+                    .append(jsonValue(item, "text"));
+        }
+        return reply.toString();
+    }
+
+    // The first value of the given key in a JSON text, without its quotes and escapes, null if there is none
+    static String jsonValue(String json, String key) {
+        int at = json.indexOf("\"" + key + "\":");
+        if (at < 0) {
+            return null;
+        }
+        int i = at + key.length() + 3;
+        if (i >= json.length() || json.charAt(i) != '"') {
+            // A number
+            int end = i;
+            while (end < json.length() && json.charAt(end) != ',' && json.charAt(end) != '}') {
+                end++;
+            }
+            return json.substring(i, end).trim();
+        }
+        StringBuilder value = new StringBuilder();
+        for (i++; i < json.length() && json.charAt(i) != '"'; i++) {
+            char c = json.charAt(i);
+            if (c == '\\' && i + 1 < json.length()) {
+                c = json.charAt(++i);
+                if (c == 'u' && i + 4 < json.length()) {
+                    c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                    i += 4;
+                } else if (c == 'n') {
+                    c = '\n';
+                } else if (c == 'r') {
+                    c = '\r';
+                } else if (c == 't') {
+                    c = '\t';
+                } else if (c == 'b') {
+                    c = '\b';
+                } else if (c == 'f') {
+                    c = '\f';
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /*
+    Turn the answer of a cluster node that does not own our UUID into a Redirect and the answer of a server that has
+    no room for us into a Busy, any other reply is returned as it is.
+     */
+    static String checkStatus(String reply) throws IOException {
+        if (reply != null && reply.startsWith(MOVED)) {
+            throw new Redirect(reply.substring(MOVED.length()).trim());
+        }
+        if (reply != null && reply.startsWith(BUSY)) {
+            throw new Busy(Long.parseLong(reply.substring(BUSY.length()).trim()));
+        }
+        return reply;
+    }
+
+    // Run one request on the endpoint pool and print its reply, or an error if no server answered. Only an idempotent
+    // request may be hedged, see EndpointPool.java
+    static void printResponse(EndpointPool pool, EndpointPool.Exchange exchange, boolean idempotent) {
+        try {
+            System.out.println(pool.execute(exchange, idempotent));
         } catch (IOException x) {
-            System.out.println("Socket error.");
-            x.printStackTrace();
+            System.out.println("Socket error, no server answered: " + x.getMessage());
         }
     }
 
     public static void main(String args[]) {
-        // Create an array of Strings to store primary and secondary server addresses, 0 for primary and 1 for secondary
-        String[] serverNameList = new String[2];
-        // Assign default primary server address
-        serverNameList[0] = DEFAULT_SERVER_ADDR;
-        // Leave secondary server address blank
-        serverNameList[1] = null;
-        // Create an array of integers to store primary and secondary server ports, 0 for primary and 1 for secondary
-        int[] serverPortList = new int[2];
-        // Assign default primary server port
-        serverPortList[0] = DEFAULT_PRIMARY_SERVER_PORT;
-        // Assign default secondary server port
-        serverPortList[1] = DEFAULT_SECONDARY_SERVER_PORT;
-        // Boolean value indicating if we have secondary server
-        boolean hasSecondary = false;
-        // Boolean value indicating if we are using secondary server
-        boolean usingSecondary = false;
-        // If we are using secondary server, this index is 1, otherwise it is 0
-        int listIndex = (usingSecondary) ? 1 : 0;
+        // Every server we may talk to, the first one defaults to the primary port and the others to the secondary port
+        List<Endpoint> endpoints = new ArrayList<>();
+        // Load-test mode instead of the interactive client
+        boolean load = args.length > 0 && args[0].equalsIgnoreCase("--load");
+        for (int i = load ? 1 : 0; i < args.length; i++) {
+            endpoints.add(Endpoint.parse(args[i], endpoints.isEmpty() ? DEFAULT_PRIMARY_SERVER_PORT : DEFAULT_SECONDARY_SERVER_PORT));
+        }
+        if (endpoints.isEmpty()) {
+            // Assign default primary server address and port
+            endpoints.add(new Endpoint(DEFAULT_SERVER_ADDR, DEFAULT_PRIMARY_SERVER_PORT));
+        }
+        // Send every request to the fastest healthy server instead of the current one
+        boolean balance = System.getProperty("joke.client.balance", "").equalsIgnoreCase("latency");
+        EndpointPool pool = new EndpointPool(endpoints, balance, Long.getLong("joke.client.hedge.ms", 0L));
+        if (load) {
+            try {
+                // Exit code 1 when a request failed or a user saw a repeat, so a script can tell
+                System.exit(new LoadGenerator(pool).run() ? 0 : 1);
+            } catch (InterruptedException x) {
+                System.exit(1);
+            }
+        }
         // Generate a random UUID for client
         UUID uuid = UUID.randomUUID();
+        // Boolean value indicating if we keep one connection per server open instead of reconnecting for every request
+        boolean useSession = Boolean.getBoolean("joke.client.session");
+        // Boolean value indicating if we speak the binary protocol, which always keeps the connection open
+        boolean useBinary = System.getProperty("joke.client.protocol", "text").equalsIgnoreCase("binary");
+        // Boolean value indicating if we ask for single jokes/proverbs with a datagram instead of a TCP connection
+        boolean useUdp = System.getProperty("joke.client.protocol", "text").equalsIgnoreCase("udp");
+        // Boolean value indicating if we ask the HTTP front end over a kept-alive connection
+        boolean useHttp = System.getProperty("joke.client.protocol", "text").equalsIgnoreCase("http");
 
         System.out.println("Mingfei Shao's Joke Client.");
         System.out.println();
-        // Single argument, specifies user-defined primary server address
-        if (args.length == 1) {
-            serverNameList[0] = args[0];
-            // Multiple arguments, means we are using secondary server
-        } else if (args.length > 1) {
-            hasSecondary = true;
-            serverNameList[0] = args[0];
-            // Assign user-defined secondary server address
-            serverNameList[1] = args[1];
-        }
 
-        // Print primary server info
-        System.out.println("Server one: " + serverNameList[0] + ", Port: " + serverPortList[0]);
-        // Print secondary server info, if any
-        if (hasSecondary) {
-            System.out.println("Server two: " + serverNameList[1] + ", Port: " + serverPortList[1]);
+        // Print the info of every server
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get(i);
+            String number = (i < SERVER_NUMBERS.length) ? SERVER_NUMBERS[i] : String.valueOf(i + 1);
+            System.out.println("Server " + number + ": " + endpoint.host + ", Port: " + endpoint.port);
         }
 
         // Initialize input stream as a BufferedReader
@@ -141,37 +742,123 @@ public class JokeClient {
                     System.out.flush();
                 }
             } while (username.isEmpty());
+            final String user = username;
+            final String id = uuid.toString();
+            final UUID binaryId = uuid;
 
             // Print current server info
-            System.out.println("Now communicating with: " + serverNameList[listIndex] + ", port " + serverPortList[listIndex]);
+            if (balance) {
+                System.out.println("Sending every request to the fastest of " + endpoints.size() + " servers.");
+            } else {
+                System.out.println("Now communicating with: " + pool.getCurrent().host + ", port " + pool.getCurrent().port);
+            }
             // Print hints for user
-            System.out.println("In server query loop, press Enter for new joke/proverb, enter s to toggle server, enter quit to exit: ");
+            System.out.println("In server query loop, press Enter for new joke/proverb, enter next <n> for n of them at once, enter s to toggle server, enter quit to exit: ");
             // Flush output buffer to clean it
             System.out.flush();
             do {
                 // Get command from user, "quit" to exit, "s" to switch between servers, anything other than that are used as request signals
                 command = in.readLine();
+                if (command == null) {
+                    // End of input, leave like "quit" would
+                    command = "quit";
+                }
                 if (!command.equalsIgnoreCase("quit")) {
                     // Server switching command received
                     if (command.equalsIgnoreCase("s")) {
-                        // No secondary server has been specified
-                        if (serverNameList[1] == null) {
+                        if (endpoints.size() == 1) {
+                            // No secondary server has been specified
                             System.out.println("No secondary server being used.");
+                        } else if (balance) {
+                            // The servers are picked automatically, show how they are doing instead
+                            for (Endpoint endpoint : pool.getEndpoints()) {
+                                System.out.println(endpoint.describe());
+                            }
                         } else {
-                            // Change if we are using the secondary server
-                            usingSecondary = !usingSecondary;
-                            // Get new index, 1 for using secondary server, 0 for using primary server
-                            listIndex = (usingSecondary) ? 1 : 0;
-                            // Print current server info
-                            System.out.println("Now communicating with: " + serverNameList[listIndex] + ", port " + serverPortList[listIndex]);
+                            // Move on to the next server and print its info
+                            Endpoint next = pool.switchEndpoint();
+                            System.out.println("Now communicating with: " + next.host + ", port " + next.port);
                         }
+                    } else if (command.toLowerCase().startsWith("next ")) {
+                        // Batch command, ask for the next n jokes/proverbs in one go
+                        int count;
+                        try {
+                            count = Integer.parseInt(command.substring(5).trim());
+                        } catch (NumberFormatException nfe) {
+                            System.out.println("Usage: next <number of jokes/proverbs>");
+                            continue;
+                        }
+                        if (useBinary) {
+                            printResponse(pool, e -> getBinaryResponse(BinarySession.OP_BATCH, count, user, binaryId, e), false);
+                        } else if (useHttp) {
+                            printResponse(pool, e -> getHttpResponse(Math.max(1, count), user, id, e), false);
+                        } else if (useSession) {
+                            printResponse(pool, e -> getSessionResponse("NEXT " + count, user, id, e), false);
+                        } else {
+                            printResponse(pool, e -> getBatchResponse(count, user, id, e), false);
+                        }
+                    } else if (command.toLowerCase().startsWith("subscribe ")) {
+                        // Have the current server push the next n jokes/proverbs over the session
+                        int count;
+                        try {
+                            count = Integer.parseInt(command.substring(10).trim());
+                        } catch (NumberFormatException nfe) {
+                            System.out.println("Usage: subscribe <number of jokes/proverbs>");
+                            continue;
+                        }
+                        if (!useSession) {
+                            System.out.println("A subscription needs a session, start the client with -Djoke.client.session=true.");
+                            continue;
+                        }
+                        try {
+                            printSubscription(count, user, id, pool.getCurrent());
+                        } catch (IOException x) {
+                            System.out.println("Socket error, the stream broke off: " + x.getMessage());
+                        }
+                    } else if (useBinary && command.equalsIgnoreCase("stats")) {
+                        // Only the binary protocol has a stats request, which takes nothing from a cycle and may be hedged
+                        printResponse(pool, e -> getBinaryResponse(BinarySession.OP_STATS, 0, user, binaryId, e), true);
+                    } else if (useBinary) {
+                        // Ask for the next joke/proverb over the open binary connection
+                        printResponse(pool, e -> getBinaryResponse(BinarySession.OP_NEXT, 1, user, binaryId, e), false);
+                    } else if (useSession) {
+                        // Ask for the next joke/proverb over the open session
+                        printResponse(pool, e -> getSessionResponse("NEXT", user, id, e), false);
+                    } else if (useHttp) {
+                        // Ask for the next joke/proverb over the kept-alive HTTP connection
+                        printResponse(pool, e -> getHttpResponse(1, user, id, e), false);
+                    } else if (useUdp) {
+                        // Ask for the next joke/proverb with a datagram
+                        printResponse(pool, e -> getDatagramResponse(user, id, e), false);
                     } else {
                         // Send UUID and username to server, requesting new joke/proverb
-                        getRemoteResponse(username, uuid.toString(), serverNameList[listIndex], serverPortList[listIndex]);
+                        printResponse(pool, e -> getRemoteResponse(user, id, e), false);
+                    }
+                } else if (useBinary) {
+                    // "quit" command received, the binary protocol has its own quit request instead of an empty username
+                    printResponse(pool, e -> getBinaryResponse(BinarySession.OP_QUIT, 0, user, binaryId, e), false);
+                    for (Endpoint endpoint : pool.getEndpoints()) {
+                        if (endpoint.binarySession != null) {
+                            endpoint.binarySession.close();
+                        }
+                    }
+                } else if (useSession) {
+                    // "quit" command received, let the server delete our status table and close the sessions
+                    printResponse(pool, e -> getSessionResponse("QUIT", user, id, e), false);
+                    for (Endpoint endpoint : pool.getEndpoints()) {
+                        if (endpoint.session != null) {
+                            endpoint.session.close();
+                        }
                     }
+                } else if (useHttp) {
+                    // "quit" command received, the HTTP front end has its own path for it
+                    printResponse(pool, e -> getHttpResponse(0, user, id, e), false);
+                } else if (useUdp) {
+                    // "quit" command received, the empty username asks the server to delete our status table
+                    printResponse(pool, e -> getDatagramResponse("", id, e), false);
                 } else {
                     // "quit" command received, send null as customized signal to server to delete status table
-                    getRemoteResponse("", uuid.toString(), serverNameList[listIndex], serverPortList[listIndex]);
+                    printResponse(pool, e -> getRemoteResponse("", id, e), false);
                 }
             }
             // do-while to make sure the above logic will be executed at least once
@@ -18,6 +18,14 @@ or
 > java JokeClientAdmin <IPAddr> <IPAddr>
 to connect to the admin server using user-defined primary address and primary port number (5050),
 and using user-defined secondary address and secondary port number (5051).
+or
+> java JokeClientAdmin <IPAddr>:<port> <IPAddr>:<port> <IPAddr>:<port> ...
+to administer a whole fleet, an address without a port uses 5050 for the first server and 5051 for the others.
+An address can also be given as <IPAddr>:<port>, for servers started with -Djoke.admin.port or -Djoke.port
+(the admin port of a server is its joke port + 505, 5052 for a cluster node at 4547).
+or
+> java -Djoke.admin.command="mode joke" JokeClientAdmin <IPAddr>:<port> <IPAddr>:<port> ...
+to send one command to every server and exit, with exit code 1 if any of them did not answer.
 
 5. List of files needed for running the program:
 a. JokeServer.java
@@ -27,11 +35,20 @@ d. JokeLog.txt
 e. checklist.html
 
 5. Notes:
-a. This JokeClient can connect to 1 or 2 servers at the same time, if a secondary server is in using, it can be switched
-   by entering "s".
+a. This JokeClient can connect to any number of servers, the next one is switched to by entering "s".
 b. This JokeClient is capable to send server mode change command to the server, which can switch the server between joke
-   and proverb modes.
+   and proverb modes. "mode joke" and "mode proverb" put the server in that mode whatever it was before.
 c. The command "quit" can be used to quit the client.
+d. The command "stats" prints the runtime metrics of the server: connections, sessions, requests, users, threads and
+   the latency of the stages of a request.
+e. A command starting with "all", for example "all mode proverb" or "all stats", is sent to every server at once instead
+   of the current one. Every server gets -Djoke.admin.timeout.ms (2000 by default) to connect and answer, the answers
+   are printed server by server, then how many servers answered and, after a mode change, whether they all agree.
+   So a mode change reaches the whole fleet in about one round trip, and a dead server only costs its timeout.
+f. "shutdown" drains the server before it exits: requests in flight are answered and the users' cycles are written out.
+   "drain" also hands the users to a successor started with -Djoke.takeover=true ("drain <IPAddr>:<port>" for one that
+   is not at the usual takeover port on the same host), see RollingRestart.java. Both answer once the server is done,
+   so they get -Djoke.admin.drain.timeout.ms (60000 by default) instead of the usual timeout.
 
 ----------------------------------------------------------*/
 
@@ -40,6 +57,13 @@ c. The command "quit" can be used to quit the client.
 import java.io.*;
 // Get the Java networking libraries
 import java.net.*;
+// Get the list and map APIs in Java utility libraries
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+// Get the Java concurrency libraries
+import java.util.concurrent.*;
 
 public class JokeClientAdmin {
     // Define default primary port number
@@ -48,27 +72,66 @@ public class JokeClientAdmin {
     private static final int DEFAULT_SECONDARY_ADMIN_PORT = 5051;
     // Define default primary server address
     private static final String DEFAULT_PRIMARY_ADMIN_ADDR = "localhost";
+    // How the first servers are called when the client starts
+    private static final String[] SERVER_NUMBERS = {"one", "two"};
+    // Prefix of a command that goes to every server
+    private static final String ALL_PREFIX = "all";
+    // Time each server gets to connect and send its whole answer
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("joke.admin.timeout.ms", 2000);
+    // Time a server gets for a shutdown or drain, which only answers once the requests in flight are done
+    private static final int DRAIN_TIMEOUT_MILLIS = Integer.getInteger("joke.admin.drain.timeout.ms", 60000);
+    // Most servers talked to at the same time by a command sent to all of them
+    private static final int MAX_PARALLEL = 64;
 
-    static void sendSignal(String command, String serverName, int serverPort) {
-        Socket sock;
-        BufferedReader fromServer;
-        PrintStream toServer;
-        String textFromServer;
-        try {
+    /*
+    Send one command to one admin server and return every line of its answer, the server closes the connection once
+    it has sent all of them. The whole exchange, connect included, has to finish within timeoutMillis.
+     */
+    static List<String> exchange(String command, String serverName, int serverPort, int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<String> lines = new ArrayList<>();
+        try (Socket sock = new Socket()) {
             // Open socket using given server address and port number
-            sock = new Socket(serverName, serverPort);
+            sock.connect(new InetSocketAddress(serverName, serverPort), timeoutMillis);
             // Initialize the input stream of the socket as BufferedReader
-            fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
             // Initialize the output stream of the socket as PrintStream
-            toServer = new PrintStream(sock.getOutputStream());
-            // Send user input server name to server for query.
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            // Send the command to the server
             toServer.println(command);
             toServer.flush();
-            textFromServer = fromServer.readLine();
-            if (textFromServer != null)
+            while (true) {
+                // Each read may only wait for what is left of the time of this server
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new SocketTimeoutException("No complete answer within " + timeoutMillis + " ms");
+                }
+                sock.setSoTimeout((int) left);
+                String textFromServer = fromServer.readLine();
+                if (textFromServer == null) {
+                    return lines;
+                }
+                lines.add(textFromServer);
+            }
+        }
+    }
+
+    // A shutdown or drain, which the server answers when it is done
+    static boolean isDrain(String command) {
+        String lower = command.toLowerCase();
+        return lower.equals("shutdown") || lower.equals("drain") || lower.startsWith("drain ");
+    }
+
+    static int timeoutFor(String command) {
+        return isDrain(command) ? DRAIN_TIMEOUT_MILLIS : TIMEOUT_MILLIS;
+    }
+
+    static void sendSignal(String command, String serverName, int serverPort) {
+        try {
+            // Print every line of the answer
+            for (String textFromServer : exchange(command, serverName, serverPort, timeoutFor(command))) {
                 System.out.println(textFromServer);
-            // Close the socket
-            sock.close();
+            }
             // In case the socket cannot be created for some reason
         } catch (IOException x) {
             System.out.println("Socket error.");
@@ -76,79 +139,153 @@ public class JokeClientAdmin {
         }
     }
 
+    /*
+    Send one command to every admin server at the same time and print the answers server by server, in the order the
+    servers were given. Returns true if every server answered.
+     */
+    static boolean sendToAll(String command, List<String> serverNames, List<Integer> serverPorts) {
+        int count = serverNames.size();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, MAX_PARALLEL), r -> {
+            Thread t = new Thread(r, "JokeClientAdmin-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.currentTimeMillis();
+        List<Future<List<String>>> answers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String serverName = serverNames.get(i);
+            int serverPort = serverPorts.get(i);
+            answers.add(executor.submit(() -> exchange(command, serverName, serverPort, timeoutFor(command))));
+        }
+        int answered = 0;
+        // Servers by the mode they reported, to tell whether a mode change left the fleet consistent
+        Map<String, Integer> modes = new TreeMap<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                String server = serverNames.get(i) + ":" + serverPorts.get(i);
+                try {
+                    // Every exchange ends within its own timeout, so waiting for them in order costs no more than the slowest
+                    List<String> lines = answers.get(i).get();
+                    answered++;
+                    if (lines.isEmpty()) {
+                        System.out.println("[" + server + "] done");
+                    }
+                    for (int l = 0; l < lines.size(); l++) {
+                        System.out.println((l == 0) ? "[" + server + "] " + lines.get(l) : "    " + lines.get(l));
+                    }
+                    String mode = modeOf(lines);
+                    if (mode != null) {
+                        modes.merge(mode, 1, Integer::sum);
+                    }
+                } catch (ExecutionException x) {
+                    System.out.println("[" + server + "] no answer: " + x.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(answered + " of " + count + " admin servers answered in " + (System.currentTimeMillis() - start) + " ms.");
+        if (modes.size() == 1 && answered == count) {
+            System.out.println("All servers are in " + modes.keySet().iterator().next() + " mode.");
+        } else if (modes.size() == 1) {
+            System.out.println("The servers that answered are in " + modes.keySet().iterator().next() + " mode, "
+                    + (count - answered) + " did not answer.");
+        } else if (!modes.isEmpty()) {
+            StringBuilder split = new StringBuilder();
+            for (Map.Entry<String, Integer> mode : modes.entrySet()) {
+                split.append((split.length() == 0) ? "" : ", ").append(mode.getValue()).append(" in ").append(mode.getKey()).append(" mode");
+            }
+            System.out.println("Servers do not all agree: " + split + ".");
+        }
+        return answered == count;
+    }
+
+    // The mode in an answer "[<S2> ]Server running in <mode> mode.", null for any other answer
+    private static String modeOf(List<String> lines) {
+        if (lines.size() != 1) {
+            return null;
+        }
+        String line = lines.get(0);
+        int start = line.indexOf("Server running in ");
+        int end = line.lastIndexOf(" mode.");
+        return (start >= 0 && end > start) ? line.substring(start + "Server running in ".length(), end) : null;
+    }
+
     public static void main(String args[]) {
-        // Create an array of Strings to store primary and secondary server addresses, 0 for primary and 1 for secondary
-        String[] serverNameList = new String[2];
-        // Assign default primary server address
-        serverNameList[0] = DEFAULT_PRIMARY_ADMIN_ADDR;
-        // Leave secondary server address blank
-        serverNameList[1] = null;
-        // Create an array of integers to store primary and secondary server ports, 0 for primary and 1 for secondary
-        int[] serverPortList = new int[2];
-        // Assign default primary server port
-        serverPortList[0] = DEFAULT_PRIMARY_ADMIN_PORT;
-        // Assign default secondary server port
-        serverPortList[1] = DEFAULT_SECONDARY_ADMIN_PORT;
-        // Boolean value indicating if we have secondary server
-        boolean hasSecondary = false;
-        // Boolean value indicating if we are using secondary server
-        boolean usingSecondary = false;
-        // If we are using secondary server, this index is 1, otherwise it is 0
-        int listIndex = (usingSecondary) ? 1 : 0;
+        // Every admin server we may talk to, the first one defaults to the primary port and the others to the secondary port
+        List<String> serverNameList = new ArrayList<>();
+        List<Integer> serverPortList = new ArrayList<>();
+        for (String arg : args) {
+            int defaultPort = serverNameList.isEmpty() ? DEFAULT_PRIMARY_ADMIN_PORT : DEFAULT_SECONDARY_ADMIN_PORT;
+            // An address given as host:port overrides the default port
+            int colon = arg.lastIndexOf(':');
+            serverNameList.add((colon > 0) ? arg.substring(0, colon) : arg);
+            serverPortList.add((colon > 0) ? Integer.parseInt(arg.substring(colon + 1)) : defaultPort);
+        }
+        if (serverNameList.isEmpty()) {
+            // Assign default primary server address and port
+            serverNameList.add(DEFAULT_PRIMARY_ADMIN_ADDR);
+            serverPortList.add(DEFAULT_PRIMARY_ADMIN_PORT);
+        }
+        // Index of the admin server the commands go to
+        int listIndex = 0;
 
-        System.out.println("Mingfei Shao's Joke Admin Client.");
-        System.out.println();
-        if (args.length == 1) {
-            serverNameList[0] = args[0];
-            // Multiple arguments, means we are using secondary server
-        } else if (args.length > 1) {
-            hasSecondary = true;
-            serverNameList[0] = args[0];
-            // Assign user-defined secondary server address
-            serverNameList[1] = args[1];
+        // One command for every server given with -Djoke.admin.command, for scripts
+        String batchCommand = System.getProperty("joke.admin.command");
+        if (batchCommand != null) {
+            System.exit(sendToAll(batchCommand, serverNameList, serverPortList) ? 0 : 1);
         }
 
-        // Print primary server info
-        System.out.println("Admin server one: " + serverNameList[0] + ", Port: " + serverPortList[0]);
-        // Print secondary server info, if any
-        if (hasSecondary) {
-            System.out.println("Admin server two: " + serverNameList[1] + ", Port: " + serverPortList[1]);
+        System.out.println("Mingfei Shao's Joke Admin Client.");
+        System.out.println();
+        // Print the info of every server
+        for (int i = 0; i < serverNameList.size(); i++) {
+            String number = (i < SERVER_NUMBERS.length) ? SERVER_NUMBERS[i] : String.valueOf(i + 1);
+            System.out.println("Admin server " + number + ": " + serverNameList.get(i) + ", Port: " + serverPortList.get(i));
         }
 
         // Initialize input stream as a BufferedReader
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         // Print current server info
-        System.out.println("Now communicating with: " + serverNameList[listIndex] + ", port " + serverPortList[listIndex]);
+        System.out.println("Now communicating with: " + serverNameList.get(listIndex) + ", port " + serverPortList.get(listIndex));
 
         try {
             String command;
 
             // Print hints for user
-            System.out.print("Press Enter to change server mode, enter s to toggle server, enter shutdown to shutdown server, enter quit to exit: ");
+            System.out.print("Press Enter to change server mode, enter mode joke or mode proverb to set it, enter s to toggle server, enter stats for server metrics, enter shutdown to shutdown server, enter drain to hand it over to a successor, "
+                    + "start a command with all to send it to every server, enter quit to exit: ");
             // Flush output buffer to clean it
             System.out.flush();
             do {
                 command = in.readLine(); // Get command from user, "quit" to exit, "s" to switch between servers, anything other than that are used as toggling signals
+                if (command == null) {
+                    // End of input, leave like "quit" would
+                    command = "quit";
+                }
                 if (!command.equalsIgnoreCase("quit")) {
                     // Server switching command received
                     if (command.equalsIgnoreCase("s")) {
-                        if (serverNameList[1] == null) {
+                        if (serverNameList.size() == 1) {
                             System.out.println("No secondary server being used.");
                         } else {
-                            // Change if we are using the secondary server
-                            usingSecondary = !usingSecondary;
-                            // Get new index, 1 for using secondary server, 0 for using primary server
-                            listIndex = (usingSecondary) ? 1 : 0;
+                            // Move on to the next server
+                            listIndex = (listIndex + 1) % serverNameList.size();
                             // Print current server info
-                            System.out.println("Now communicating with: " + serverNameList[listIndex] + ", port " + serverPortList[listIndex]);
+                            System.out.println("Now communicating with: " + serverNameList.get(listIndex) + ", port " + serverPortList.get(listIndex));
                         }
+                    } else if (command.equalsIgnoreCase(ALL_PREFIX) || command.toLowerCase().startsWith(ALL_PREFIX + " ")) {
+                        // The rest of the line goes to every server, an empty rest toggles every server
+                        sendToAll(command.substring(ALL_PREFIX.length()).trim(), serverNameList, serverPortList);
+                    } else if (isDrain(command) || command.equalsIgnoreCase("stats") || command.toLowerCase().startsWith("mode ")) {
+                        sendSignal(command, serverNameList.get(listIndex), serverPortList.get(listIndex));
                         // Toggling signals
-                    }else if (command.equalsIgnoreCase("shutdown")){
-                        sendSignal(command, serverNameList[listIndex], serverPortList[listIndex]);
-                    } else{
-                        System.out.println("Server mode toggling signal sent to " + ((usingSecondary) ? "secondary" : "primary") + " Admin server.");
+                    } else {
+                        System.out.println("Server mode toggling signal sent to " + ((listIndex == 0) ? "primary" : "secondary") + " Admin server.");
                         // Send toggling command to server
-                        sendSignal(command, serverNameList[listIndex], serverPortList[listIndex]);
+                        sendSignal(command, serverNameList.get(listIndex), serverPortList.get(listIndex));
                     }
                 }
             }
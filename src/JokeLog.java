@@ -0,0 +1,294 @@
+/*--------------------------------------------------------
+
+JokeLog.java
+
+Asynchronous server log. Worker threads never write to System.out or to the disk themselves: they drop a record into a
+bounded lock-free ring buffer and go on. A single background thread drains the ring in batches, formats the records
+and writes each batch with one write call to JokeLog.txt (and to the console unless -Djoke.log.console=false).
+If the disk is slow and the ring fills up, new records are dropped and counted instead of blocking the worker.
+
+Request-level records are written as key=value pairs so they are easy to grep and to load into other tools.
+Switches:
+a. -Djoke.log.level=DEBUG|INFO|WARN|ERROR   lowest level that is recorded, INFO by default
+b. -Djoke.log.sample=<n>                    record only about one in n requests, 1 (every request) by default
+c. -Djoke.log.file=<path>                   log file, JokeLog.txt by default
+d. -Djoke.log.maxBytes=<n>                  roll the file over once it is bigger than this, 10 MB by default
+e. -Djoke.log.files=<n>                     number of rolled files kept (JokeLog.txt.1 ... JokeLog.txt.n), 5 by default
+f. -Djoke.log.buffer=<n>                    number of records the ring can hold, 65536 by default
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+class JokeLog implements Runnable {
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    // How long the writer sleeps when the ring is empty, records are never delayed by more than this
+    private static final long IDLE_PARK_NANOS = 10000000L;
+    // Most records written with one write call
+    private static final int MAX_BATCH = 1024;
+
+    private static final JokeLog INSTANCE = new JokeLog();
+
+    // One log record, formatted by the writer thread and not by the worker that created it
+    private static final class Record {
+        final long time;
+        final int level;
+        final String thread;
+        final String message;
+
+        Record(int level, String message) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+        }
+    }
+
+    private final int level = parseLevel(ServerConfig.getString("log.level", "INFO"));
+    private final int sample = Math.max(1, ServerConfig.getInt("log.sample", 1));
+    private final boolean console = ServerConfig.getBoolean("log.console", true);
+    private final File file = new File(ServerConfig.getString("log.file", "JokeLog.txt"));
+    private final long maxBytes = ServerConfig.getLong("log.maxBytes", 10L * 1024 * 1024);
+    private final int keepFiles = Math.max(1, ServerConfig.getInt("log.files", 5));
+
+    // The ring buffer: producers claim a sequence number on tail, the writer consumes in order from head
+    private final AtomicReferenceArray<Record> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    // Dropped count already reported in the log, so a full ring is reported once and not on every batch
+    private long reportedDropped;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private Writer out;
+    private long fileBytes;
+    private volatile boolean running;
+    private Thread writer;
+
+    private JokeLog() {
+        // Round the capacity up to a power of two so a slot is found with a mask instead of a division
+        int capacity = Integer.highestOneBit(Math.max(1024, ServerConfig.getInt("log.buffer", 65536)) - 1) << 1;
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    // Open the log file and start the writer thread, called once at server start-up
+    static synchronized void start() {
+        JokeLog log = INSTANCE;
+        if (log.running) {
+            return;
+        }
+        try {
+            log.openFile();
+        } catch (IOException ioe) {
+            System.out.println("Cannot open " + log.file + ", logging to the console only: " + ioe);
+        }
+        log.running = true;
+        log.writer = new Thread(log, "JokeServer-log-writer");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        // Whatever is still in the ring when the JVM exits gets written out
+        Runtime.getRuntime().addShutdownHook(new Thread(JokeLog::stop));
+    }
+
+    // Stop the writer thread after it wrote everything queued so far
+    static void stop() {
+        JokeLog log = INSTANCE;
+        Thread t = log.writer;
+        log.running = false;
+        if (t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // True if records of this level are recorded, check it before building an expensive message
+    static boolean isEnabled(int level) {
+        return level >= INSTANCE.level;
+    }
+
+    // Decide once per request whether its request-level records are written, honoring -Djoke.log.sample
+    static boolean sampleRequest() {
+        JokeLog log = INSTANCE;
+        return log.level <= INFO && (log.sample == 1 || ThreadLocalRandom.current().nextInt(log.sample) == 0);
+    }
+
+    static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    static void info(String message) {
+        log(INFO, message);
+    }
+
+    static void warn(String message) {
+        log(WARN, message);
+    }
+
+    static void error(String message) {
+        log(ERROR, message);
+    }
+
+    // Number of records dropped because the ring was full
+    static long droppedCount() {
+        return INSTANCE.dropped.sum();
+    }
+
+    // Queue one record, never blocks: a full ring drops the record
+    static void log(int level, String message) {
+        JokeLog log = INSTANCE;
+        if (level < log.level) {
+            return;
+        }
+        if (!log.running) {
+            // Not started (a tool or a test using the server classes), keep the old console behavior
+            System.out.println(message);
+            return;
+        }
+        log.offer(new Record(level, message));
+    }
+
+    private void offer(Record record) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        // The slot is ours, publish the record, the writer waits for it if it gets there first
+        ring.lazySet((int) seq & mask, record);
+    }
+
+    public void run() {
+        while (true) {
+            int written = drain();
+            if (written == 0) {
+                if (!running && head == tail.get()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        closeFile();
+    }
+
+    // Take up to MAX_BATCH records out of the ring, format them and write them in one go
+    private int drain() {
+        int count = 0;
+        long h = head;
+        while (count < MAX_BATCH) {
+            int slot = (int) h & mask;
+            Record record = ring.get(slot);
+            if (record == null) {
+                // Either empty or claimed but not published yet, pick it up next round
+                break;
+            }
+            ring.lazySet(slot, null);
+            h++;
+            format(record);
+            count++;
+        }
+        head = h;
+        if (count > 0) {
+            long droppedSoFar = dropped.sum();
+            if (droppedSoFar > reportedDropped && isEnabled(WARN)) {
+                batch.append("Log ring was full, ").append(droppedSoFar).append(" records dropped so far.")
+                        .append(System.lineSeparator());
+                reportedDropped = droppedSoFar;
+            }
+            flush();
+        }
+        return count;
+    }
+
+    private void format(Record record) {
+        batch.append(dateFormat.format(new Date(record.time))).append(' ')
+                .append(LEVEL_NAMES[record.level]).append(" [").append(record.thread).append("] ")
+                .append(record.message).append(System.lineSeparator());
+    }
+
+    // Write the formatted batch to the console and to the log file, rolling the file over when it got too big
+    private void flush() {
+        String text = batch.toString();
+        batch.setLength(0);
+        if (console) {
+            System.out.print(text);
+            System.out.flush();
+        }
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(text);
+            out.flush();
+            fileBytes += text.length();
+            if (fileBytes > maxBytes) {
+                roll();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Cannot write " + file + ": " + ioe);
+        }
+    }
+
+    private void openFile() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.defaultCharset()), 64 * 1024);
+        fileBytes = file.length();
+    }
+
+    // JokeLog.txt becomes JokeLog.txt.1, JokeLog.txt.1 becomes JokeLog.txt.2 and so on, the oldest one is deleted
+    private void roll() throws IOException {
+        closeFile();
+        for (int i = keepFiles; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            File newer = (i == 1) ? file : new File(file.getPath() + "." + (i - 1));
+            if (i == keepFiles) {
+                older.delete();
+            }
+            if (newer.exists()) {
+                newer.renameTo(older);
+            }
+        }
+        openFile();
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                // Nothing more we can do with the log file
+            }
+            out = null;
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+}
@@ -0,0 +1,356 @@
+/*--------------------------------------------------------
+
+JokeProtocol.java
+
+Per-connection state machine of the text protocol of the joke port, shared by the blocking Worker and the NIO engine
+so both speak exactly the same protocol. Connections starting with the binary magic byte go to BinaryProtocol instead. Each engine feeds it the lines it reads and sends back whatever it queued in the
+connection's ReplyBuffer.
+
+a. One-shot request (the original protocol, what every existing JokeClient sends):
+       username
+       uuid
+   The server answers with one line and closes the connection.
+
+b. Keep-alive session, so a client pays for the TCP handshake once instead of once per joke:
+       #SESSION
+       username
+       uuid
+   The server answers "#OK <idle timeout in ms>" and keeps the connection open. After that every line is a command:
+       NEXT (or an empty line)   one more joke/proverb, answered with one line
+       NEXT <n>                  the next n jokes/proverbs, answered with one framed reply (see d.)
+       QUIT                      drop the client's ClientStatusTable entry, answered with the bye line, then closed
+       CLOSE                     end the session but keep the client's cycle for later, closed without an answer
+       SUBSCRIBE <n>             start a stream of the next jokes/proverbs with n credits, see g.
+       CREDIT <n>                n more credits for the stream
+       CANCEL                    end the stream, answered with "#END" after the last streamed item
+   A session that stays silent for longer than the idle timeout (-Djoke.session.idle.ms) is closed by the server.
+
+c. One-shot batch request, the next n jokes/proverbs over one connection:
+       #BATCH <n>
+       username
+       uuid
+   The server answers with one framed reply and closes the connection.
+
+d. A framed reply is a header line "#ITEMS <k>" followed by exactly k result lines, so the client knows how many lines
+   to read without waiting for the connection to close. A malformed batch is answered with one "#ERROR <reason>" line.
+   A UUID line that is not a UUID, in any request, is answered with the line "#ERROR bad UUID" and the connection is
+   closed.
+
+e. On a cluster node (see ClusterRing.java), a request for a user owned by another node is answered with the single line
+       #MOVED host:port
+   and the connection is closed, in place of the item, the framed reply, the "#OK" of a session or the bye line of a
+   quit. A session whose user moves to another node while it is open gets the same answer to its next command.
+
+f. A request for more jokes/proverbs than the rate limit of the user allows right now is answered with the single line
+       #BUSY <ms>
+   in place of the item or the framed reply, <ms> being the time after which the client may ask again. A session stays
+   open. A connection the server has no room for gets the same line before anything is read, see AdmissionControl.java.
+
+g. A subscribed session gets the next jokes/proverbs pushed without asking for each, one line per item like NEXT. The
+   server answers "#SUBSCRIBED <window>" and then sends one item per credit, so it never pushes more than the client
+   granted: a slow client simply runs out of credits and the stream stops until "CREDIT <n>" grants more. At most
+   <window> credits (-Djoke.subscribe.window, 1000 by default) may be outstanding, a grant past that is answered
+   "#ERROR" and dropped. Items are queued STREAM_CHUNK at a time and only once the previous chunk is written, so a
+   client that grants credits but does not read holds one chunk on the server, the rest waits in its credits.
+   The stream is paced by the rate limit of the user: a chunk the bucket cannot pay for waits until it can instead of
+   being answered "#BUSY". NEXT is refused while subscribed, CANCEL first; QUIT and CLOSE end the session as usual.
+
+----------------------------------------------------------*/
+
+import java.util.UUID;
+
+class JokeProtocol {
+    // First line of a keep-alive session, a one-shot request starts with the username instead
+    static final String SESSION_MARKER = "#SESSION";
+    // First line of a one-shot batch request, followed by the number of items
+    static final String BATCH_MARKER = "#BATCH ";
+    // Header line of a framed reply, followed by the number of result lines
+    static final String ITEMS_HEADER = "#ITEMS ";
+    // Answer to SUBSCRIBE followed by the credit window, and the last line of a cancelled stream
+    static final String SUBSCRIBED = "#SUBSCRIBED ";
+    static final String STREAM_END = "#END";
+    // Items of a stream queued at a time
+    private static final int STREAM_CHUNK = 16;
+    private static final int STREAM_WINDOW = Math.max(1, ServerConfig.subscribeWindow());
+    // Answer for a user owned by another cluster node, followed by the host:port of that node
+    static final String MOVED = "#MOVED ";
+    // Answer to a UUID line that is not a UUID, in place of the joke/proverb or the "#OK" of a session
+    static final String BAD_UUID = "#ERROR bad UUID";
+
+    // Where we are in the conversation with the client
+    private static final int EXPECT_FIRST_LINE = 0;
+    private static final int EXPECT_UUID = 1;
+    private static final int EXPECT_SESSION_USERNAME = 2;
+    private static final int EXPECT_SESSION_UUID = 3;
+    private static final int IN_SESSION = 4;
+    private static final int FINISHED = 5;
+
+    private int state = EXPECT_FIRST_LINE;
+    private String username;
+    // Encoded once per connection, every reply line of a session reuses the same bytes
+    private byte[] usernameBytes;
+    // Parsed once per session so every following NEXT skips UUID.fromString
+    private UUID uuid;
+    private String uuidString;
+    // Number of items asked for by a one-shot batch request, 0 for a plain one-shot request
+    private int batchCount;
+    // True once this connection counts as an open session in ServerMetrics
+    private boolean sessionCounted;
+    // True while the session is subscribed, and the items the client still allows us to push
+    private boolean subscribed;
+    private int credits;
+
+    /*
+    Feed one line received from the client and queue whatever has to be sent back in out.
+    Once isFinished() returns true the engine closes the connection after writing any reply.
+     */
+    void onLine(String line, ReplyBuffer out) {
+        switch (state) {
+            case EXPECT_FIRST_LINE:
+                if (line.equals(SESSION_MARKER)) {
+                    state = EXPECT_SESSION_USERNAME;
+                } else if (line.startsWith(BATCH_MARKER)) {
+                    batchCount = parseCount(line.substring(BATCH_MARKER.length()));
+                    if (batchCount < 0) {
+                        state = FINISHED;
+                        out.addLine(badCount(line));
+                        return;
+                    }
+                    // The username and UUID follow just like after the session marker
+                    state = EXPECT_SESSION_USERNAME;
+                } else {
+                    username = line;
+                    state = EXPECT_UUID;
+                }
+                return;
+            case EXPECT_UUID:
+                // One-shot request, answer and we are done
+                state = FINISHED;
+                Worker.handleRequest(username, line, out);
+                return;
+            case EXPECT_SESSION_USERNAME:
+                username = line;
+                usernameBytes = line.getBytes(ReplyBuffer.CHARSET);
+                state = EXPECT_SESSION_UUID;
+                return;
+            case EXPECT_SESSION_UUID:
+                uuidString = line;
+                try {
+                    uuid = UUID.fromString(line);
+                } catch (IllegalArgumentException malformed) {
+                    state = FINISHED;
+                    out.addLine(BAD_UUID);
+                    return;
+                }
+                if (redirect(uuid, out)) {
+                    state = FINISHED;
+                    return;
+                }
+                if (batchCount > 0) {
+                    // One-shot batch, answer with the framed items and we are done
+                    state = FINISHED;
+                    if (!throttle(uuid, batchCount, out)) {
+                        writeFramed(batchCount, out);
+                    }
+                    return;
+                }
+                state = IN_SESSION;
+                sessionCounted = true;
+                ServerMetrics.SESSIONS.increment();
+                out.addLine("#OK " + ServerConfig.sessionIdleMillis());
+                return;
+            case IN_SESSION:
+                onCommand(line, out);
+                return;
+            default:
+                return;
+        }
+    }
+
+    // Handle one command of an open session
+    private void onCommand(String command, ReplyBuffer out) {
+        // The cluster may have moved the user to another node since the session was opened
+        if (redirect(uuid, out)) {
+            state = FINISHED;
+            return;
+        }
+        if (command.regionMatches(true, 0, "CREDIT ", 0, 7)) {
+            int grant = parseCredits(command.substring(7));
+            // Compared as the room left in the window, credits + grant overflows for a grant near Integer.MAX_VALUE
+            if (!subscribed || grant < 1 || grant > STREAM_WINDOW - credits) {
+                out.addLine("#ERROR credits must be granted to a stream, at most " + STREAM_WINDOW + " outstanding: " + command);
+            } else {
+                credits += grant;
+            }
+            return;
+        }
+        if (command.equalsIgnoreCase("SUBSCRIBE") || command.regionMatches(true, 0, "SUBSCRIBE ", 0, 10)) {
+            int grant = (command.length() > 9) ? parseCredits(command.substring(10)) : 0;
+            if (subscribed || grant < 0 || grant > STREAM_WINDOW) {
+                out.addLine("#ERROR a session has one stream of at most " + STREAM_WINDOW + " credits: " + command);
+            } else {
+                subscribed = true;
+                credits = grant;
+                ServerMetrics.SUBSCRIBERS.increment();
+                out.addLine(SUBSCRIBED + STREAM_WINDOW);
+            }
+            return;
+        }
+        if (command.equalsIgnoreCase("CANCEL")) {
+            // Whatever was streamed before is queued ahead of the end line
+            unsubscribe();
+            out.addLine(STREAM_END);
+            return;
+        }
+        if (subscribed && (command.isEmpty() || command.regionMatches(true, 0, "NEXT", 0, 4))) {
+            // An answer between the streamed items could not be told apart from them
+            out.addLine("#ERROR " + command + " is not allowed while subscribed, CANCEL first");
+            return;
+        }
+        if (command.isEmpty() || command.equalsIgnoreCase("NEXT")) {
+            if (!throttle(uuid, 1, out)) {
+                Worker.writeItems(username, usernameBytes, uuid, uuidString, 1, out);
+            }
+            return;
+        }
+        if (command.regionMatches(true, 0, "NEXT ", 0, 5)) {
+            int count = parseCount(command.substring(5));
+            // A bad count is answered but does not end the session
+            if (count < 0) {
+                out.addLine(badCount(command));
+            } else if (!throttle(uuid, count, out)) {
+                writeFramed(count, out);
+            }
+            return;
+        }
+        state = FINISHED;
+        if (command.equalsIgnoreCase("QUIT")) {
+            out.addLine(Worker.dropClient(uuid, uuidString));
+        }
+        // CLOSE, or anything we do not understand, ends the session
+    }
+
+    /*
+    True if the username has a control character. The username goes into the request log as user=<name>, so a line
+    break in it would write lines of its own into JokeLog.txt. The text protocol cannot carry one, a line ends there,
+    but the HTTP and binary front ends decode usernames from bytes and reject those.
+     */
+    static boolean hasControlCharacter(String username) {
+        for (int i = 0; i < username.length(); i++) {
+            if (Character.isISOControl(username.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Queue the "#MOVED" answer if the user belongs to another cluster node, true if it did
+    static boolean redirect(UUID uuid, ReplyBuffer out) {
+        ClusterRing cluster = JokeServer.getCluster();
+        String owner = (cluster == null) ? null : cluster.ownerOf(uuid);
+        if (owner == null) {
+            return false;
+        }
+        out.addLine(MOVED + owner);
+        ServerMetrics.REDIRECTS.increment();
+        return true;
+    }
+
+    // Queue the "#BUSY" answer if the rate limit of the user does not allow count more items right now, true if it did
+    static boolean throttle(UUID uuid, int count, ReplyBuffer out) {
+        long retryMillis = AdmissionControl.tryAcquire(uuid, count);
+        if (retryMillis == 0) {
+            return false;
+        }
+        out.addLine(AdmissionControl.BUSY + retryMillis);
+        return true;
+    }
+
+    /*
+    Queue the next chunk of a subscribed stream, as many items as the credits allow up to STREAM_CHUNK, each one line
+    like the answer to NEXT. The engine calls this whenever hasCredit() and the previous chunk is written. Returns 0,
+    or the milliseconds until the rate limit of the user allows the next item, in which case nothing was queued.
+     */
+    long stream(ReplyBuffer out) {
+        // The cluster may have moved the user to another node since the stream started
+        if (redirect(uuid, out)) {
+            state = FINISHED;
+            return 0;
+        }
+        int count = Math.min(credits, STREAM_CHUNK);
+        // A chunk the bucket cannot pay for in full goes out one item at a time
+        long retryMillis = AdmissionControl.tryAcquire(uuid, count);
+        if (retryMillis > 0 && count > 1) {
+            count = 1;
+            retryMillis = AdmissionControl.tryAcquire(uuid, count);
+        }
+        if (retryMillis > 0) {
+            return retryMillis;
+        }
+        credits -= count;
+        ServerMetrics.STREAMED.add(count);
+        Worker.writeItems(username, usernameBytes, uuid, uuidString, count, out);
+        return 0;
+    }
+
+    // True while a subscribed session has credits left, the engine keeps calling stream() then
+    boolean hasCredit() {
+        return state == IN_SESSION && subscribed && credits > 0;
+    }
+
+    private void unsubscribe() {
+        if (subscribed) {
+            subscribed = false;
+            credits = 0;
+            ServerMetrics.SUBSCRIBERS.decrement();
+        }
+    }
+
+    // Parse a number of credits, -1 if it is not a number from 0 up
+    private static int parseCredits(String text) {
+        try {
+            return Math.max(-1, Integer.parseInt(text.trim()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    // Parse the item count of a batch, -1 if it is not a number between 1 and the configured maximum
+    private static int parseCount(String text) {
+        try {
+            int count = Integer.parseInt(text.trim());
+            return (count >= 1 && count <= ServerConfig.batchMax()) ? count : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static String badCount(String line) {
+        return "#ERROR item count must be a number from 1 to " + ServerConfig.batchMax() + ": " + line;
+    }
+
+    // Queue a framed reply, the header line with the number of items followed by one line per item
+    private void writeFramed(int count, ReplyBuffer out) {
+        out.addLine(ITEMS_HEADER + count);
+        Worker.writeItems(username, usernameBytes, uuid, uuidString, count, out);
+    }
+
+    // True once the connection should be closed after the pending reply has been written
+    boolean isFinished() {
+        return state == FINISHED;
+    }
+
+    // Called by the engine once the connection is closed, however it ended
+    void onClose() {
+        unsubscribe();
+        if (sessionCounted) {
+            sessionCounted = false;
+            ServerMetrics.SESSIONS.decrement();
+        }
+    }
+
+    // True while the connection is a keep-alive session, which is when the idle timeout applies
+    boolean inSession() {
+        return state == IN_SESSION;
+    }
+}
@@ -5,7 +5,7 @@
 2. Java version used: build 1.8.0_102-b14
 
 3. Precise command-line compilation examples / instructions:
-> javac JokeServer.java
+> javac *.java
 
 4. Precise examples / instructions to run this program:
 In separate shell windows:
@@ -13,21 +13,106 @@ In separate shell windows:
 or
 > java JokeServer secondary
 if you want this server running as a secondary server.
+Start-up switches are passed as -Djoke.* system properties, see ServerConfig.java. For example:
+> java -Djoke.workers=pool -Djoke.workers.threads=32 -Djoke.workers.queue=512 JokeServer
+runs the connection handlers on a bounded pool of 32 threads with room for 512 waiting connections.
+> java -Djoke.engine=nio JokeServer
+serves the joke port from a few non-blocking selector threads instead of a thread per connection.
+> java CorpusBuilder jokes.txt jokes.jkc
+> java -Djoke.corpus=jokes.jkc JokeServer
+serves the jokes/proverbs of a corpus file instead of the built-in ones, see Corpus.java and CorpusBuilder.java.
+> java -Djoke.cluster=cluster.txt -Djoke.port=4547 JokeServer
+runs a node of a cluster at port 4547 (admin port 5052), cluster.txt lists the members, see ClusterRing.java.
+> java -Djoke.takeover=true JokeServer
+starts a successor that takes over the users of the running primary server once "drain" is sent to its admin port,
+see RollingRestart.java.
+> java -Djoke.udp=true JokeServer
+also answers single-datagram requests at UDP port 4545, see UdpJokeServer.java.
+> java -Djoke.http.port=8080 JokeServer
+also answers GET /next?uuid=<UUID>&name=<username> with JSON at HTTP port 8080, see HttpJokeServer.java.
 
 5. List of files needed for running the program:
 a. JokeServer.java
 b. JokeClient.java
 c. JokeClientAdmin.java
-d. JokeLog.txt
-e. checklist.html
+d. ServerConfig.java
+e. WorkerPool.java
+f. NioJokeServer.java
+g. JokeProtocol.java
+h. SessionEvictor.java
+i. JokeLog.java
+j. Corpus.java
+k. CorpusBuilder.java
+l. CyclePermutation.java
+m. CycleJournal.java
+n. CycleReplicator.java
+o. ClusterRing.java
+p. EndpointPool.java
+q. BinaryProtocol.java
+r. ServerMetrics.java
+s. LatencyHistogram.java
+t. RollingRestart.java
+u. AdmissionControl.java
+v. TimerWheel.java
+w. UdpJokeServer.java
+x. HttpJokeServer.java
+y. JokeLog.txt
+z. checklist.html
 
 5. Notes:
 a. This JokeServer can return 4 jokes and 4 proverbs in a random order to a client, and re-order them once a 4-item cycle has finished.
+   With -Djoke.corpus=<file> it serves the jokes/proverbs of a memory-mapped corpus file instead, a cycle then goes through the
+   whole catalog. A cycle is kept as a seed and a cursor, so a user costs the same memory for any catalog size.
 b. This JokeServer is capable to handle multiple clients at the same time. I've tested it with 5 clients.
 c. This JokeServer can run as a secondary server.
 d. This JokeServer can be controlled by a AdminClient, which can change the server mode and shutdown the server.
+   Besides the toggle, "mode joke" and "mode proverb" put the server in the given mode whatever it was before.
+   A shutdown is graceful: the joke port is closed, the requests in flight are answered and the journal is written out.
 e. When a client quit by a quit command, the server can delete its status table to free the memory. However, if the client is closed by
-   the close button, the server will not know it. I tried to implement a shutdown hook at the client side but it didn't work.
+   the close button, the server will not know it. Such users are dropped after -Djoke.session.ttl.ms of inactivity (one hour by
+   default, 0 keeps them forever), and at most -Djoke.session.max users are kept (one million by default), see SessionEvictor.java.
+f. Besides the one-shot request, a client can open a keep-alive session and ask for many jokes/proverbs over one connection,
+   see JokeProtocol.java. Idle sessions are closed after -Djoke.session.idle.ms (30 seconds by default).
+g. A client can ask for the next N jokes/proverbs at once and get them back in one framed reply, in a one-shot
+   request or inside a session. N is capped by -Djoke.batch.max (100 by default).
+h. Requests are not printed by the worker threads anymore. They are recorded as key=value lines by an asynchronous logger that
+   writes batches to JokeLog.txt and the console without ever blocking a worker, see JokeLog.java for level and sampling switches.
+i. With -Djoke.journal=true the cycles of every user are journaled to disk (-Djoke.journal.dir, JokeJournal-<port> by
+   default) and restored at start-up, so a restart does not send users back to the start of a new cycle. It is off by
+   default, so a plain "java JokeServer" writes nothing to the working directory, see CycleJournal.java.
+j. With -Djoke.replication=true on both, the primary and the secondary server stream the users' cycles to each other
+   (replication ports 4645 and 4646), so a client that switches servers with "s" keeps its cycle. It is off by default,
+   so a server started alone does not keep dialing a peer that is not there, see CycleReplicator.java.
+k. Several JokeServers can share the users as a cluster (-Djoke.cluster=<members file>). Each UUID is owned by one node
+   of a consistent-hash ring, the other nodes redirect its requests there, and users move to their new owner when
+   nodes join or leave the members file, see ClusterRing.java.
+l. Next to the text protocol, the joke port speaks a compact binary protocol with 16 byte UUIDs, opcodes and request ids,
+   recognized by its first byte, see BinaryProtocol.java. JokeClient uses it with -Djoke.client.protocol=binary.
+m. The server counts connections, sessions, requests and evictions and times the accept, parse, lookup and write stages
+   of every request. "stats" on the admin port prints them, and the metrics port (-Djoke.metrics.port, off by default
+   and local only) serves them to Prometheus, see ServerMetrics.java.
+n. A server can be restarted without losing a request or a cycle: "drain" on the admin port stops it accepting, lets
+   the requests in flight finish within -Djoke.drain.timeout.ms and hands every user to a successor started with
+   -Djoke.takeover=true, which binds the joke port next to it (SO_REUSEPORT, Java 9 and later), see RollingRestart.java.
+o. Overload is answered instead of queued: past -Djoke.inflight.max open connections, or past the rate limit of its
+   UUID (-Djoke.ratelimit.rate items per second), a client gets "#BUSY <ms>" and comes back after that time. The accept
+   backlog is -Djoke.backlog (128 by default) instead of 6, see AdmissionControl.java.
+   The rate limit is off by default and -Djoke.ratelimit.rate=<n> turns it on. The in-flight cap is on (1024 by default),
+   which changes the behaviour of an existing deployment: a server with more than 1024 open connections now answers
+   "#BUSY" where it used to serve them. Clients that predate "#BUSY" print it as a joke, so -Djoke.inflight.max should
+   be raised to the number of connections a deployment expects.
+p. Every connection of the joke port has a deadline: a request, from the accept or the first line of a session command
+   to the last byte of its reply, is cut after -Djoke.request.timeout.ms (10 seconds by default), so a client that
+   sends nothing or half a line no longer holds a thread forever. A session waiting for its next command is cut after
+   the idle timeout. The deadlines of all connections share one hashed timer wheel instead of a socket timeout each,
+   expired connections are closed and counted in "stats", see TimerWheel.java.
+q. With -Djoke.udp=true the joke port also takes a request as a single UDP datagram (request id, username, UUID) and
+   answers with one datagram, the same reply as the one-shot TCP request. A retransmit with the same request id gets
+   the same reply again instead of the next joke/proverb, see UdpJokeServer.java.
+r. With -Djoke.http.port=<port> a web tier can ask for jokes/proverbs as JSON over kept-alive, pipelined HTTP/1.1
+   connections, from the same cycles as the joke port, see HttpJokeServer.java.
+s. A session can subscribe ("SUBSCRIBE <n>") and get the next jokes/proverbs pushed over it, one per credit the client
+   grants, so a slow consumer stops the stream instead of piling up replies on the server, see JokeProtocol.java.
 
 ----------------------------------------------------------*/
 
@@ -36,17 +121,47 @@ e. When a client quit by a quit command, the server can delete its status table
 import java.io.*;
 // Get the Java networking libraries
 import java.net.*;
+// Get the Java NIO buffer and channel libraries
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 // Get the Java utility libraries
 import java.util.*;
+// Get the Java concurrency libraries
+import java.util.concurrent.*;
 
-// AdminWorker class to handle Admin client requests, each worker class will run on a new thread
-class AdminWorker extends Thread {
+/*
+Base class of the connection handlers. A ConnectionTask owns the socket of one accepted connection and runs on the
+executor created by WorkerPool. If the executor is saturated the task is rejected and simply closes its socket.
+ */
+abstract class ConnectionTask implements Runnable {
     Socket sock;
 
-    AdminWorker(Socket s) {
+    ConnectionTask(Socket s) {
         sock = s;
     }
 
+    // Called by the executor when there is no room left for this connection
+    void reject() {
+        closeQuietly();
+    }
+
+    // Close the socket, pooled threads outlive the connection so nothing else would release it
+    void closeQuietly() {
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            // Nothing more we can do for a connection we are done with anyway
+        }
+    }
+}
+
+// AdminWorker class to handle Admin client requests, each worker runs on the executor of AdminServer
+class AdminWorker extends ConnectionTask {
+
+    AdminWorker(Socket s) {
+        super(s);
+    }
+
     public void run() {
         PrintStream out;
         BufferedReader in;
@@ -59,44 +174,53 @@ class AdminWorker extends Thread {
             // Initialize the output stream of the socket as PrintStream
             out = new PrintStream(sock.getOutputStream());
             try {
-                // Received a toggling signal from Admin client, we don't care its actual content
+                // Received a command from Admin client: shutdown, drain, stats, mode joke/proverb, anything else toggles the mode
                 command = in.readLine();
 
                 /*
-                A very coarse-grained shutdown logic here.
-                Once received a shutdown command from the Admin Client, this logic will create an "internal socket" connection that connect to the JokeServer running on localhost.
-                The first pass socket connection will send a signal (empty username with empty UUID) to let the JokeServer to change its IS_RUNNING switch to false.
-                And then, to set the IS_RUNNING switch on the AdminServer side to false.
-                After that, this logic will send another shutdown signal from itself back to itself, to let the AdminServer to get out of the blocking waiting status and shut itself down
-                The second pass socket connection will also send the same signal, but this is just for the JokeServer to get out of the blocking waiting status and shut itself down.
-                It is not very fine-grained, but it works.
+                Shutdown and drain both stop the server gracefully, see RollingRestart.java: the joke port is closed,
+                the requests in flight are answered, the journal is written out and the process exits. A drain also
+                hands the users to the successor waiting at the takeover port, "drain host:port" names one elsewhere.
+                Either reports on this connection, and only returns if the drain could not start.
                  */
-                if(command.equalsIgnoreCase("shutdown")){
-                    int internalPort = JokeServer.getIsSecondary() ? 4546 : 4545;
-                    Socket internalSock = new Socket("localhost", internalPort);
-                    PrintStream toInternal = new PrintStream(internalSock.getOutputStream());
-                    toInternal.println();
-                    toInternal.flush();
-                    toInternal.println();
-                    toInternal.flush();
-                    internalSock.close();
-                    AdminServer.setIsRunningFalse();
-                    internalPort = JokeServer.getIsSecondary() ? 5051 : 5050;
-                    internalSock = new Socket("localhost", internalPort);
-                    toInternal = new PrintStream(internalSock.getOutputStream());
-                    toInternal.println("shutdown");
-                    toInternal.flush();
-                }else {
-
-                    // Change the mode of JokeServer
-                    JokeServer.toggleIsJoke();
+                if (command == null) {
+                    return;
+                } else if (command.equalsIgnoreCase("shutdown")) {
+                    out.println(RollingRestart.drain(null, out));
+                    out.flush();
+                } else if (command.equalsIgnoreCase("drain") || command.regionMatches(true, 0, "drain ", 0, 6)) {
+                    String successor = command.substring(5).trim();
+                    if (successor.isEmpty()) {
+                        successor = "localhost:" + (JokeServer.getPort() + RollingRestart.TAKEOVER_PORT_OFFSET);
+                    }
+                    out.println(RollingRestart.drain(successor, out));
+                    out.flush();
+                } else if (command.equalsIgnoreCase("stats")) {
+                    // Runtime metrics, several lines, the admin client reads until we close the connection
+                    out.print(ServerMetrics.report());
+                    out.flush();
+                } else {
+
+                    if (command.regionMatches(true, 0, "mode ", 0, 5)) {
+                        String mode = command.substring(5).trim();
+                        if (!mode.equalsIgnoreCase("joke") && !mode.equalsIgnoreCase("proverb")) {
+                            // A typo must not flip the mode of the server
+                            out.println("Unknown mode \"" + mode + "\", use mode joke or mode proverb.");
+                            out.flush();
+                            return;
+                        }
+                        // Put the JokeServer in the given mode, whatever it was, so one command sent to a whole fleet leaves every node alike
+                        JokeServer.setIsJoke(mode.equalsIgnoreCase("joke"));
+                    } else {
+                        // Change the mode of JokeServer
+                        JokeServer.toggleIsJoke();
+                    }
                     // Decide which state is JokeServer currently running at
                     state = (JokeServer.getIsJoke()) ? "joke" : "proverb";
                     // Compose result string that to be send back to Admin client
                     String result = "Server running in " + state + " mode.";
-                    // Print result string on server console for reference
-                    System.out.println(result);
-                    System.out.println();
+                    // Record the new mode in the server log for reference
+                    JokeLog.info("event=mode mode=" + state);
 
                     // If server is running as secondary servers
                     if (JokeServer.getIsSecondary()) {
@@ -110,14 +234,14 @@ class AdminWorker extends Thread {
                 }
                 // In case read from input stream fails
             } catch (IOException x) {
-                System.out.println("Server read error");
-                x.printStackTrace();
+                JokeLog.warn("event=admin-read-error error=\"" + x + "\"");
             }
-            // Close connection to client
-            sock.close();
         } catch (IOException ioe) {
             // In case anything wrong with the socket
-            System.out.println(ioe);
+            JokeLog.warn("event=admin-socket-error error=\"" + ioe + "\"");
+        } finally {
+            // Close connection to client
+            closeQuietly();
         }
     }
 }
@@ -128,27 +252,14 @@ This thread is created and executed in the main function of JokeServer. So in ot
 it will be initialized by JokeServer and running simultaneously with JokeServer on different threads.
  */
 class AdminServer implements Runnable {
-    // Define default primary port number for Admin server
-    private static final int DEFAULT_PRIMARY_ADMIN_PORT = 5050;
-    // Define default secondary port number for Admin server
-    private static final int DEFAULT_SECONDARY_ADMIN_PORT = 5051;
-    private static boolean IS_RUNNING = true;
-
-    public static void setIsRunningFalse(){
-        IS_RUNNING = false;
-    }
-
     public void run() {
-        int q_len = 6;
-        // Assign default primary port number
-        int port = DEFAULT_PRIMARY_ADMIN_PORT;
+        int q_len = ServerConfig.adminBacklog();
+        // 5050 for a primary and 5051 for a secondary server, unless -Djoke.admin.port says otherwise
+        int port = ServerConfig.adminPort(JokeServer.getPort());
         Socket sock;
 
-        // If server is running as secondary servers
-        if (JokeServer.getIsSecondary()) {
-            // Assign default secondary port number
-            port = DEFAULT_SECONDARY_ADMIN_PORT;
-        }
+        // Executor that runs the AdminWorkers, chosen at start-up
+        ExecutorService executor = WorkerPool.create("JokeAdminServer", ServerConfig.adminThreads(), ServerConfig.adminQueue());
 
         try {
             // Create server socket and print notification to user
@@ -162,23 +273,26 @@ class AdminServer implements Runnable {
                 System.out.println();
             }
 
-            while (IS_RUNNING) {
+            // Serve until the process exits, at the end of a shutdown or drain
+            while (true) {
                 // Blocking wait for client connection
                 sock = servsock.accept();
-                // Start AdminWorker thread to handle connected client
-                new AdminWorker(sock).start();
+                // Hand the connected client to an AdminWorker on the executor
+                executor.execute(new AdminWorker(sock));
             }
-            System.out.println("JokeAdminServer shutdown!");
         } catch (IOException ioe) {
             // In case anything wrong with the socket
             System.out.println(ioe);
+        } finally {
+            // Let the AdminWorkers already running finish, then release the threads
+            executor.shutdown();
         }
     }
 }
 
 /*
 Define a Data class to store the title and the text of a joke/proverb separately.
-Each joke/proverb will be save in one Data object.
+The server keeps its jokes/proverbs in a Corpus, Data objects are what goes into a Corpus and what comes out of it.
  */
 class Data {
     // Title of the joke/proverb
@@ -202,49 +316,279 @@ class Data {
     }
 }
 
+/*
+Define a ClientStatus to store the status of one user: two cycles, one for proverbs and one for jokes.
+A cycle is not a list of indexes but a seed and a cursor: the seed picks a random order of the catalog (see
+CyclePermutation.java) and the cursor counts the items already served, so a user costs the same few bytes whatever
+the size of the catalog.
+Every read or change of the cycles goes through the methods below, which synchronize on the ClientStatus itself.
+So two requests of the same user are serialized, while requests of different users never wait for each other.
+ */
+class ClientStatus {
+    // The user this status belongs to
+    final UUID uuid;
+    // Table this status belongs to, told about every change so the CycleJournal can record it
+    private final ClientStatusTable owner;
+    // Last time the user asked for something, read by the SessionEvictor to find idle users
+    volatile long lastAccess = System.currentTimeMillis();
+    // Number of items in each catalog of the corpus, a cycle goes through all of them
+    private final int[] catalogSizes;
+    // Index 0 is the cycle of proverbs, index 1 the cycle of jokes: the seed of the current order of each catalog
+    private final long[] seeds = new long[2];
+    // and the number of items of the current cycle already served
+    private final int[] cursors = new int[2];
+    // Number of cycles finished so far, with the cursor it tells which of two states of a user is the newer one
+    private final long[] cycles = new long[2];
+    // True while this status waits in the journal queue, so a busy user is queued once and not once per request
+    private boolean changed;
+    // True if a change made by this server (and not one replicated from the peer) is waiting in the journal queue
+    private boolean changedLocally;
+
+    ClientStatus(UUID uuid, int[] catalogSizes, ClientStatusTable owner) {
+        this.uuid = uuid;
+        this.catalogSizes = catalogSizes;
+        this.owner = owner;
+        // Start the first cycle for proverb
+        seeds[Corpus.PROVERBS] = ClientStatusTable.newCycleSeed();
+        // Start the first cycle for joke
+        seeds[Corpus.JOKES] = ClientStatusTable.newCycleSeed();
+    }
+
+    /*
+    Atomically take the next indexes.length items of the chosen cycle. Whenever a cycle has served every item a new
+    seed is drawn right away, so the next item starts the new cycle. Returns the number of cycles finished by this call.
+     */
+    synchronized int next(int listIndex, int[] indexes) {
+        int finishedCycles = 0;
+        int size = catalogSizes[listIndex];
+        lastAccess = System.currentTimeMillis();
+        for (int i = 0; i < indexes.length; i++) {
+            // The item at the cursor position of the current order
+            indexes[i] = CyclePermutation.index(seeds[listIndex], cursors[listIndex]++, size);
+            // The last item has been served, which means a cycle through the whole catalog has finished
+            if (cursors[listIndex] == size) {
+                seeds[listIndex] = ClientStatusTable.newCycleSeed();
+                cursors[listIndex] = 0;
+                cycles[listIndex]++;
+                finishedCycles++;
+            }
+        }
+        markChanged(true);
+        return finishedCycles;
+    }
+
+    // Start a new cycle, 0 for proverb and 1 for joke
+    synchronized void reset(int listIndex) {
+        seeds[listIndex] = ClientStatusTable.newCycleSeed();
+        cursors[listIndex] = 0;
+        cycles[listIndex]++;
+        markChanged(true);
+    }
+
+    /*
+    Queue this status for the journal unless it is queued already, also called once the user left the table.
+    Only local changes are replicated to the peer server, so a change never travels back to where it came from.
+     */
+    synchronized void markChanged(boolean local) {
+        if (!changed && owner.changed(this)) {
+            changed = true;
+        }
+        if (changed && local) {
+            changedLocally = true;
+        }
+    }
+
+    // Copy the state out for the journal writer and clear the changed marks in the same step, true if a change was local
+    synchronized boolean takeState(CycleRecord record) {
+        boolean local = changedLocally;
+        changed = false;
+        changedLocally = false;
+        copyState(record);
+        return local;
+    }
+
+    // Copy the state out, used for snapshots
+    synchronized void copyState(CycleRecord record) {
+        System.arraycopy(seeds, 0, record.seeds, 0, 2);
+        System.arraycopy(cycles, 0, record.cycles, 0, 2);
+        System.arraycopy(cursors, 0, record.cursors, 0, 2);
+    }
+
+    /*
+    Put back the state recorded by the journal. If the corpus changed size since, a cycle that no longer fits the
+    catalog starts over instead of serving positions that do not exist anymore.
+     */
+    synchronized void restore(CycleRecord record) {
+        for (int c = 0; c < 2; c++) {
+            take(c, record);
+        }
+    }
+
+    /*
+    Take the state another server sent for this user, catalog by catalog, where it is newer than ours: further in
+    its cycles, or further in the same cycle. Returns true if anything changed. local is true for a user handed off
+    by another cluster node, which is ours from now on, and false for a change replicated from the peer server.
+     */
+    synchronized boolean applyRemote(CycleRecord record, boolean local) {
+        boolean applied = false;
+        for (int c = 0; c < 2; c++) {
+            if (record.cycles[c] > cycles[c] || (record.cycles[c] == cycles[c] && record.cursors[c] > cursors[c])) {
+                take(c, record);
+                applied = true;
+            }
+        }
+        if (applied) {
+            // The user is active on the other server, which counts as activity here too
+            lastAccess = System.currentTimeMillis();
+            markChanged(local);
+        }
+        return applied;
+    }
+
+    private void take(int c, CycleRecord record) {
+        boolean fits = record.cursors[c] >= 0 && record.cursors[c] < catalogSizes[c];
+        seeds[c] = fits ? record.seeds[c] : ClientStatusTable.newCycleSeed();
+        cursors[c] = fits ? record.cursors[c] : 0;
+        cycles[c] = record.cycles[c];
+    }
+
+    // The indexes still left in one cycle, in the order they will be served. Computed on demand, so it costs O(catalog).
+    synchronized List<Integer> remaining(int listIndex) {
+        int size = catalogSizes[listIndex];
+        List<Integer> left = new ArrayList<>(size - cursors[listIndex]);
+        for (int position = cursors[listIndex]; position < size; position++) {
+            left.add(CyclePermutation.index(seeds[listIndex], position, size));
+        }
+        return left;
+    }
+}
+
 /*
 Define a ClientStatusTable to store the status of each user. Users are separated by their UUID.
-The data structure used for ClientStatusTable is a Hashtable, which uses UUID as a key to retrieve the status table of that UUID.
-The value part is an ArrayList of LinkedLists. Each ArrayList contains two LinkedLists, representing the status of joke and proverb respectively.
-The reason why to use an ArrayList is because it is easier to manipulate the content inside via its methods.
+The data structure used for ClientStatusTable is a ConcurrentHashMap, which uses UUID as a key to retrieve the ClientStatus of
+that UUID. Lookups never lock and updates only lock a small part of the map, so different users do not contend with each
+other, and each ClientStatus guards its own two status tables (see above).
+Users that never quit are dropped by a SessionEvictor once eviction is enabled.
  */
 class ClientStatusTable {
-    Hashtable<UUID, ArrayList<LinkedList<Integer>>> csTable;
+    ConcurrentHashMap<UUID, ClientStatus> csTable;
+    // Number of proverbs and jokes in the corpus, which is the length of a cycle
+    private final int[] catalogSizes;
+    // Drops idle users and keeps the table under its maximum size, null as long as eviction is not enabled
+    private SessionEvictor evictor;
+    private int maxSize;
+    // Records every change on disk, null as long as journaling is not enabled
+    private volatile CycleJournal journal;
+
+    // Initialize the ClientStatusTable as a ConcurrentHashMap, for a corpus of the given proverb and joke counts
+    ClientStatusTable(int proverbCount, int jokeCount) {
+        csTable = new ConcurrentHashMap<>();
+        catalogSizes = new int[]{proverbCount, jokeCount};
+    }
 
-    // Initialize the ClientStatusTable as a Hashtable
-    ClientStatusTable() {
-        csTable = new Hashtable<>();
+    // Start dropping users idle for longer than ttlMillis, and the least recently active ones past maxSize (0 for no limit)
+    public void enableEviction(long ttlMillis, int maxSize) {
+        this.maxSize = maxSize;
+        evictor = new SessionEvictor(this, ttlMillis, maxSize);
+        for (ClientStatus status : csTable.values()) {
+            evictor.schedule(status);
+        }
+        evictor.start();
+    }
+
+    // Start recording every change of a user's cycles, after the journal has been replayed into this table
+    public void enableJournal(CycleJournal journal) {
+        this.journal = journal;
+    }
+
+    // Called by a ClientStatus that changed, false if nobody records changes
+    boolean changed(ClientStatus status) {
+        CycleJournal j = journal;
+        if (j == null) {
+            return false;
+        }
+        j.changed(status);
+        return true;
+    }
+
+    // Put a user back with the cycles recorded by the journal, replacing what the table had for it
+    void restore(CycleRecord record) {
+        ClientStatus status = new ClientStatus(record.uuid, catalogSizes, this);
+        status.restore(record);
+        csTable.put(record.uuid, status);
+    }
+
+    // Merge the state of a user sent by the peer server, adding the user if it is new here
+    void applyRemote(CycleRecord record) {
+        add(record.uuid).applyRemote(record, false);
+    }
+
+    // Take a user handed off by another cluster node, its changes are ours from now on
+    void adopt(CycleRecord record) {
+        add(record.uuid).applyRemote(record, true);
+    }
+
+    // The user quit on the peer server, drop it here too
+    void removeRemote(UUID uuid) {
+        ClientStatus removed = csTable.remove(uuid);
+        if (removed != null) {
+            removed.markChanged(false);
+        }
+    }
+
+    // All users currently in the table, a live view used for snapshots
+    Collection<ClientStatus> statuses() {
+        return csTable.values();
     }
 
-    // Method to add a new user (UUID) into ClientStatusTable
-    public void add(UUID uuid) {
-        // Create the ArrayList to store 2 status tables
-        ArrayList<LinkedList<Integer>> wholeIndexTable = new ArrayList<>();
-        // Create the first status table for proverb
-        wholeIndexTable.add(initializeIndexTable());
-        // Create the second status table for joke
-        wholeIndexTable.add(initializeIndexTable());
-        // Associate the new status tables with UUID
-        csTable.put(uuid, wholeIndexTable);
+    // Number of items in one catalog, which is the length of a cycle
+    int getCatalogSize(int listIndex) {
+        return catalogSizes[listIndex];
     }
 
-    // Method to initialize status table
-    public LinkedList<Integer> initializeIndexTable() {
-        // Create the LinkedList to store 4 indexes
-        LinkedList<Integer> indexTable = new LinkedList<>();
-        for (int i = 0; i < 4; i++) {
-            // Add index 0, 1, 2, 3 into LinkedList sequentially
-            indexTable.add(i);
+    // Method to add a new user (UUID) into ClientStatusTable, a user that is already there keeps its status
+    public ClientStatus add(UUID uuid) {
+        ClientStatus status = csTable.get(uuid);
+        if (status == null) {
+            ClientStatus created = new ClientStatus(uuid, catalogSizes, this);
+            // putIfAbsent makes check-then-add atomic, two first requests of the same user create only one ClientStatus
+            status = csTable.putIfAbsent(uuid, created);
+            if (status == null) {
+                status = created;
+                if (evictor != null) {
+                    evictor.schedule(created);
+                    if (maxSize > 0 && csTable.size() > maxSize) {
+                        evictor.overflow();
+                    }
+                }
+            }
         }
-        // Randomize the order of indexes
-        Collections.shuffle(indexTable, new Random(System.currentTimeMillis()));
-        return indexTable;
+        return status;
+    }
+
+    /*
+    Method to pick the order of a new cycle. ThreadLocalRandom is seeded once per thread and never from the clock,
+    so users whose cycles start in the same millisecond still get different orders, and no thread waits for another.
+     */
+    public static long newCycleSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /*
+    Take the next indexes.length items of the user's cycle in one atomic step, adding the user first if it is new.
+    Returns the number of cycles that finished (and were re-randomized) while doing so.
+     */
+    public int nextIndexes(UUID uuid, int index, int[] indexes) {
+        return add(uuid).next(index, indexes);
     }
 
-    // Setter method to re-create the index table once a four-item cycle has finished
+    // Setter method to start a new cycle of the index table
     public void setIndexTable(UUID uuid, int index) {
-        // The index values indicates which status table should be re-created, 0 for proverb and 1 for joke
-        csTable.get(uuid).set(index, initializeIndexTable());
+        ClientStatus status = csTable.get(uuid);
+        if (status != null) {
+            // The index values indicates which status table should be re-created, 0 for proverb and 1 for joke
+            status.reset(index);
+        }
     }
 
     // Helper method to check if a UUID is in the ClientStatusTable already
@@ -252,130 +596,399 @@ class ClientStatusTable {
         return csTable.containsKey(uuid);
     }
 
-    // Getter method to retrieve the entry of status tables based on UUID
-    public ArrayList<LinkedList<Integer>> getIndexTable(UUID uuid) {
-        return csTable.get(uuid);
+    // Getter method to retrieve the indexes left in one cycle based on UUID, null if the user is unknown
+    public List<Integer> getIndexTable(UUID uuid, int index) {
+        ClientStatus status = csTable.get(uuid);
+        return (status == null) ? null : status.remaining(index);
     }
 
     // Method to remove a entry of status tables based on UUID
     public void removeIndexTable(UUID uuid) {
-        csTable.remove(uuid);
+        ClientStatus removed = csTable.remove(uuid);
+        if (removed != null) {
+            // Let the journal record that the user is gone, and the peer server drop it too
+            removed.markChanged(true);
+        }
     }
-}
 
-// Worker class to handle client requests, each worker class will run on a new thread
-class Worker extends Thread {
-    Socket sock;
+    // Number of users currently in the table
+    public int size() {
+        return csTable.size();
+    }
+
+    // True if this ClientStatus is still the one stored for its user, false once the user quit or was evicted
+    boolean isCurrent(ClientStatus status) {
+        return csTable.get(status.uuid) == status;
+    }
 
-    // Constructor to initialize socket
+    // Remove exactly this ClientStatus (evicted, or handed off to another cluster node), a newer entry of the same user is left alone
+    boolean remove(ClientStatus status) {
+        if (csTable.remove(status.uuid, status)) {
+            // Each server evicts its idle users on its own, an eviction or handoff is journaled but not replicated
+            status.markChanged(false);
+            return true;
+        }
+        return false;
+    }
+
+    // Number of users dropped because they were idle for longer than the time-to-live
+    public long getExpiredCount() {
+        return (evictor == null) ? 0 : evictor.getExpiredCount();
+    }
+
+    // Number of users dropped because the table was over its maximum size
+    public long getEvictedCount() {
+        return (evictor == null) ? 0 : evictor.getOverflowCount();
+    }
+}
+
+// Worker class to handle client requests, each worker runs on the executor of JokeServer
+class Worker extends ConnectionTask {
+    // How writeItems queues each item: a text line, a binary item with its length in front, or a JSON object
+    static final int TEXT = 0;
+    static final int BINARY = 1;
+    static final int JSON = 2;
+    private static final byte[] JSON_SEPARATOR = {','};
+    // Every connection being served, so a drain can close the ones waiting for a command and cut the rest at its deadline
+    private static final Set<Worker> LIVE = ConcurrentHashMap.newKeySet();
+    private static final long REQUEST_TIMEOUT_MILLIS = ServerConfig.requestTimeoutMillis();
+    private static final long IDLE_TIMEOUT_MILLIS = ServerConfig.sessionIdleMillis();
+    // When the connection was accepted, the start of its accept stage in ServerMetrics
+    private final long acceptedAt;
+    // Closes the socket when a request, or the wait of a session for its next command, takes too long
+    private final TimerWheel.Timeout deadline = JokeServer.getDeadlines().newTimeout(this::expire);
+    // True while a session or binary connection waits for its next command, it has nothing in flight then
+    private volatile boolean idle;
+    // Set by the timer wheel before it closes the socket, the read or write it breaks is not worth a warning
+    private volatile boolean expired;
+
+    // Constructor to initialize socket, called by the accept loop. The request deadline runs from here, so the time
+    // waiting for a worker thread counts as well.
     Worker(Socket s) {
-        sock = s;
+        super(s);
+        acceptedAt = ServerMetrics.start();
+        ServerMetrics.ACCEPTED.increment();
+        ServerMetrics.ACTIVE.increment();
+        JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    // The worker pool is full, the connection is answered busy and closed without being served
+    void reject() {
+        JokeServer.getDeadlines().cancel(deadline);
+        ServerMetrics.ACTIVE.decrement();
+        AdmissionControl.refuse(sock.getChannel());
     }
 
     // Define the behavior of a running thread
     public void run() {
-        PrintStream out = null;
         BufferedReader in = null;
-        // Decide the value of list index based on the mode of JokerServer, this determine which ClientStatusTable will be used
-        int listIndex = (JokeServer.getIsJoke()) ? 1 : 0;
-        String username = null;
-        UUID uuid = null;
-        String uuidString = null;
-        String result = null;
+        String line;
+        // Protocol state of this connection, a one-shot request or a keep-alive session
+        JokeProtocol protocol = new JokeProtocol();
+        // Replies are queued here as byte segments and written with gathering writes on the socket channel
+        ReplyBuffer out = new ReplyBuffer();
+        ServerMetrics.record(ServerMetrics.ACCEPT, acceptedAt);
+        LIVE.add(this);
 
         try {
+            // The socket was accepted from a ServerSocketChannel, so it has a channel for gathering writes
+            SocketChannel channel = sock.getChannel();
+            // Peek at the first byte: the magic byte of the binary protocol, or the first character of a text request
+            InputStream input = new BufferedInputStream(sock.getInputStream());
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+            if (first == (BinaryProtocol.MAGIC & 0xFF)) {
+                serveBinary(new DataInputStream(input), channel, out);
+                return;
+            }
             // Initialize the input stream of the socket as BufferedReader
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            // Initialize the output stream of the socket as PrintStream
-            out = new PrintStream(sock.getOutputStream());
-            // Get whole ClientStatusTable
-            ClientStatusTable currentCSTable = JokeServer.getClientStatusTable();
+            in = new BufferedReader(new InputStreamReader(input));
 
             try {
-                // Read first line of input from input stream as username
-                username = in.readLine();
-                // Read second line of input from input stream as user's UUID in string format
-                uuidString = in.readLine();
-
-                if(username.isEmpty() && uuidString.isEmpty()){
-                    JokeServer.setIsRunningFalse();
-                    return;
+                // Keep reading lines until the request is answered, the session ends or the client goes away.
+                // A drain ends a session after the command it is answering.
+                while (!protocol.isFinished() && !(protocol.inSession() && !JokeServer.isRunning())) {
+                    // A subscribed session pushes its next chunk, unless a command came in that may change its credits
+                    if (protocol.hasCredit() && !in.ready()) {
+                        idle = false;
+                        JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+                        long retryMillis = protocol.stream(out);
+                        // Blocks while the client does not read, the credits it has left stay with us meanwhile
+                        writeReply(out, channel);
+                        if (retryMillis > 0 || !protocol.hasCredit()) {
+                            // Nothing in flight while the rate limit paces the stream or the client owes us credits
+                            JokeServer.getDeadlines().arm(deadline, IDLE_TIMEOUT_MILLIS);
+                            idle = true;
+                        }
+                        if (retryMillis > 0) {
+                            try {
+                                Thread.sleep(retryMillis);
+                            } catch (InterruptedException interrupted) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                        continue;
+                    }
+                    if ((line = in.readLine()) == null) {
+                        break;
+                    }
+                    if (idle) {
+                        // A command of a session, it gets the request deadline for its processing and reply
+                        idle = false;
+                        JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+                    }
+                    long parseStart = ServerMetrics.start();
+                    protocol.onLine(line, out);
+                    ServerMetrics.recordParse(parseStart, out);
+                    // Send whatever the line produced back to client
+                    writeReply(out, channel);
+                    // A keep-alive session must not hold this thread forever, give up after the idle timeout
+                    if (protocol.inSession()) {
+                        JokeServer.getDeadlines().arm(deadline, IDLE_TIMEOUT_MILLIS);
+                        idle = true;
+                    }
                 }
+            } catch (IOException x) {
+                logReadError(x);
+            }
+        } catch (IOException ioe) {
+            logReadError(ioe);
+        } catch (RuntimeException re) {
+            // A broken request only ever costs its own connection, never the pooled worker thread
+            JokeLog.warn("event=request-error remote=" + sock.getRemoteSocketAddress() + " error=\"" + re + "\"");
+        } finally {
+            // Always close the socket, also on the quit and shutdown paths that return early
+            JokeServer.getDeadlines().cancel(deadline);
+            LIVE.remove(this);
+            protocol.onClose();
+            closeQuietly();
+            ServerMetrics.ACTIVE.decrement();
+        }
+    }
 
-                // Convert the UUID string into UUID
-                uuid = UUID.fromString(uuidString);
-                // Received empty username from client, this is a signal for client quit, delete entries related to that client in ClientStatusTable
-                if (username.isEmpty()) {
-                    if (currentCSTable.containsUUID(uuid)) {
-                        currentCSTable.removeIndexTable(uuid);
-                    }
-                    System.out.println("User left, ClientStatusTable for UUID " + uuidString + " has been dropped, bye!");
-                    out.println("ClientStatusTable for UUID " + uuidString + " has been dropped, bye!");
-                    out.flush();
-                    // End handling
+    // Called by the timer wheel: the request or the idle wait is over its time, closing the socket ends any blocked read or write
+    private void expire() {
+        expired = true;
+        ServerMetrics.EXPIRED.increment();
+        JokeLog.info("event=" + (idle ? "idle-close" : "deadline") + " remote=" + sock.getRemoteSocketAddress());
+        closeQuietly();
+    }
+
+    // A drain or a deadline closing the socket under a waiting read is expected, anything else is worth a warning
+    private void logReadError(IOException x) {
+        if (expired) {
+            return;
+        }
+        if (!JokeServer.isRunning()) {
+            JokeLog.info("event=drain-close remote=" + sock.getRemoteSocketAddress());
+        } else {
+            JokeLog.warn("event=read-error remote=" + sock.getRemoteSocketAddress() + " error=\"" + x + "\"");
+        }
+    }
+
+    // Called by a drain: close the connections waiting for their next command, their clients reconnect elsewhere
+    static void closeIdle() {
+        for (Worker worker : LIVE) {
+            if (worker.idle) {
+                worker.closeQuietly();
+            }
+        }
+    }
+
+    // Called by a drain at its deadline: close every connection still open
+    static void closeAll() {
+        for (Worker worker : LIVE) {
+            worker.closeQuietly();
+        }
+    }
+
+    // Write the queued reply, if there is one, and time the write
+    private static void writeReply(ReplyBuffer out, SocketChannel channel) throws IOException {
+        if (out.hasRemaining()) {
+            long writeStart = ServerMetrics.start();
+            out.writeFully(channel);
+            ServerMetrics.record(ServerMetrics.WRITE, writeStart);
+        }
+    }
+
+    /*
+    Serve a binary protocol connection: read whole frames, answer each one, until the client closes the connection,
+    stays silent for longer than the idle timeout or sends a frame we cannot make sense of.
+     */
+    private void serveBinary(DataInputStream input, SocketChannel channel, ReplyBuffer out) throws IOException {
+        BinaryProtocol protocol = new BinaryProtocol();
+        // Room for the largest frame we accept, reused for every frame of the connection
+        byte[] frame = new byte[BinaryProtocol.HEADER_BYTES + BinaryProtocol.MAX_BODY_BYTES];
+        try {
+            // A drain ends the connection after the frame it is answering, a connection it accepted from the queue after
+            // its first frame. Marked idle before the check, so a drain either sees the mark and closes the socket or is
+            // seen here.
+            idle = true;
+            boolean first = true;
+            while (!protocol.isFinished() && (JokeServer.isRunning() || first)) {
+                first = false;
+                // A binary connection is kept open like a session, so the idle timeout applies between frames
+                JokeServer.getDeadlines().arm(deadline, IDLE_TIMEOUT_MILLIS);
+                try {
+                    input.readFully(frame, 0, BinaryProtocol.HEADER_BYTES);
+                } catch (EOFException eof) {
+                    // Client closed the connection between two frames
                     return;
                 }
+                // The rest of the frame, its processing and its reply get the request deadline
+                idle = false;
+                JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+                int length = BinaryProtocol.frameLength(ByteBuffer.wrap(frame, 0, BinaryProtocol.HEADER_BYTES));
+                input.readFully(frame, BinaryProtocol.HEADER_BYTES, length - BinaryProtocol.HEADER_BYTES);
+                long parseStart = ServerMetrics.start();
+                protocol.onFrame(ByteBuffer.wrap(frame, 0, length), out);
+                ServerMetrics.recordParse(parseStart, out);
+                writeReply(out, channel);
+                idle = true;
+            }
+        } finally {
+            protocol.onClose();
+        }
+    }
 
-                // Print client info
-                System.out.println("Request received from user: " + username + ", UUID: " + uuidString);
-                // If user is new, which means no data in current ClientStatusTable
-                if (!currentCSTable.containsUUID(uuid)) {
-                    // Add new entries to ClientStatusTable
-                    currentCSTable.add(uuid);
-                }
+    /*
+    Handle one request of the two-line protocol (username, then UUID) and queue the reply for the client.
+    This is shared by the blocking Worker and the NIO engine, so both serve exactly the same protocol.
+    Nothing is queued for two empty lines or a client that disconnected before sending both lines.
+     */
+    static void handleRequest(String username, String uuidString, ReplyBuffer out) {
+        // The client went away before finishing its request
+        if (username == null || uuidString == null) {
+            return;
+        }
 
-                // Get the index table based on UUID and current JokeServer mode
-                LinkedList<Integer> currentIndexTable = currentCSTable.getIndexTable(uuid).get(listIndex);
-                // Pop out the index value at the top
-                int currentIndex = currentIndexTable.pop();
-                // Get the joke/proverb list based on current JokeServer mode
-                LinkedList<Data> currentList = JokeServer.getWholeList().get(listIndex);
-
-                // Compose result string
-                result = makeReturnString(currentList, currentIndex, username);
-                // Print info to user
-                System.out.println("Send result string below back to user: " + username + ", UUID: " + uuidString);
-                // Print result string on server console for reference
-                System.out.println(result);
-                System.out.println();
+        // Two empty lines used to be the internal shutdown signal, a drain stops the server now and they are ignored
+        if (username.isEmpty() && uuidString.isEmpty()) {
+            return;
+        }
 
-                // If server is running as secondary servers
-                if (JokeServer.getIsSecondary()) {
-                    // Add appropriate header to result string
-                    result = "<S2> " + result;
-                }
+        // Convert the UUID string into UUID, a client sending anything else gets an error line instead of a joke/proverb
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(uuidString);
+        } catch (IllegalArgumentException malformed) {
+            out.addLine(JokeProtocol.BAD_UUID);
+            return;
+        }
+        // In a cluster, a user owned by another node is sent there
+        if (JokeProtocol.redirect(uuid, out)) {
+            return;
+        }
+        // Received empty username from client, this is a signal for client quit, delete entries related to that client in ClientStatusTable
+        if (username.isEmpty()) {
+            out.addLine(dropClient(uuid, uuidString));
+            return;
+        }
+        // A user asking faster than its rate limit is told when to come back instead
+        if (JokeProtocol.throttle(uuid, 1, out)) {
+            return;
+        }
+        writeItems(username, username.getBytes(ReplyBuffer.CHARSET), uuid, uuidString, 1, out);
+    }
+
+    // Delete entries related to a client that quit, and return the bye line for it
+    static String dropClient(UUID uuid, String uuidString) {
+        // Get whole ClientStatusTable
+        ClientStatusTable currentCSTable = JokeServer.getClientStatusTable();
+        currentCSTable.removeIndexTable(uuid);
+        ServerMetrics.QUITS.increment();
+        JokeLog.info("event=quit uuid=" + uuidString);
+        return "ClientStatusTable for UUID " + uuidString + " has been dropped, bye!";
+    }
 
-                // Send result string back to client
-                out.println(result);
-                out.flush();
-
-                // If the index table is empty, so the last index has been poped out, which means a four-item cycle has finished
-                if (currentIndexTable.isEmpty()) {
-                    // Print some info on server console for reference
-                    String state = (JokeServer.getIsJoke()) ? "joke" : "proverb";
-                    System.out.println("UUID: " + uuidString + " Has finished a four-item " + state + " cycle.");
-                    System.out.println("List of " + state + " re-randomized for UUID: " + uuidString);
-                    System.out.println();
-                    // Re-initialize the empty index table with 4 indexes
-                    currentCSTable.setIndexTable(uuid, listIndex);
+    /*
+    Serve the next count jokes/proverbs of the client's cycle and queue one reply line for each of them.
+    The indexes are taken from the ClientStatusTable in one atomic step, so concurrent requests of the same client
+    never get the same item twice, and a batch that crosses the end of a cycle carries on with the
+    re-randomized cycle exactly like count separate requests would.
+    Each line is queued as the encoded prefix and suffix of the item, straight from the Corpus buffer, around the
+    username bytes: the same bytes makeReturnString would produce, without building or encoding a string.
+     */
+    static void writeItems(String username, byte[] usernameBytes, UUID uuid, String uuidString, int count, ReplyBuffer out) {
+        writeItems(username, usernameBytes, uuid, uuidString, count, false, out);
+    }
+
+    /*
+    Same for either protocol: binary queues every item with a length in front (see BinaryProtocol.java) instead of as
+    a line. uuidString may be null, it is only needed when the request is logged.
+     */
+    static void writeItems(String username, byte[] usernameBytes, UUID uuid, String uuidString, int count, boolean binary, ReplyBuffer out) {
+        // Decide the value of list index based on the mode of JokerServer, this determine which ClientStatusTable will be used
+        int listIndex = (JokeServer.getIsJoke()) ? 1 : 0;
+        writeItems(username, usernameBytes, uuid, uuidString, count, listIndex, binary ? BINARY : TEXT, out);
+    }
+
+    /*
+    Same from a given catalog instead of the one of the server mode, in any format. For JSON the items are separated
+    by commas and usernameBytes is the username escaped for a JSON string, see HttpJokeServer.java.
+     */
+    static void writeItems(String username, byte[] usernameBytes, UUID uuid, String uuidString, int count, int listIndex, int format, ReplyBuffer out) {
+        // The proverbs and jokes are catalog 0 and 1 of the corpus, the same numbering as the list index
+        Corpus corpus = JokeServer.getCorpus();
+        boolean secondary = JokeServer.getIsSecondary();
+        int[] indexes = new int[count];
+        // Decide once whether this request goes to the server log, so a sampled request is logged completely
+        boolean logged = JokeLog.sampleRequest();
+        String state = (listIndex == 1) ? "joke" : "proverb";
+
+        if (logged) {
+            if (uuidString == null) {
+                uuidString = uuid.toString();
+            }
+            JokeLog.info("event=request user=" + username + " uuid=" + uuidString + " mode=" + state + " items=" + count);
+        }
+        // Take the next indexes of the user's cycle, adding the user first if it is new
+        long lookupStart = ServerMetrics.start();
+        int finishedCycles = JokeServer.getClientStatusTable().nextIndexes(uuid, listIndex, indexes);
+        ServerMetrics.recordLookup(lookupStart, out);
+        ServerMetrics.REQUESTS.increment();
+        ServerMetrics.ITEMS.add(count);
+
+        for (int i = 0; i < count; i++) {
+            // Title (with the <S2> header on a secondary server), username, then text
+            if (format == BINARY) {
+                corpus.writeBinaryItem(listIndex, indexes[i], secondary, usernameBytes, out);
+            } else if (format == JSON) {
+                if (i > 0) {
+                    out.add(JSON_SEPARATOR);
                 }
-            } catch (IOException x) {
-                x.printStackTrace();
+                corpus.writeJsonItem(listIndex, indexes[i], secondary, usernameBytes, out);
+            } else {
+                corpus.writeItem(listIndex, indexes[i], secondary, usernameBytes, out);
+            }
+            if (logged && JokeLog.isEnabled(JokeLog.DEBUG)) {
+                // The full text is only worth recording when debugging
+                JokeLog.debug("event=result uuid=" + uuidString + " text=\"" + makeReturnString(corpus, listIndex, indexes[i], username) + "\"");
+            }
+        }
+
+        if (logged) {
+            // Record which items were sent, the titles are enough to follow a user's cycle
+            StringBuilder sent = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sent.append((i == 0) ? "" : ",").append(corpus.getTitle(listIndex, indexes[i]));
+            }
+            JokeLog.info("event=reply user=" + username + " uuid=" + uuidString + " items=" + sent);
+            // One or more cycles have finished and were re-randomized
+            if (finishedCycles > 0) {
+                JokeLog.info("event=cycle-finished uuid=" + uuidString + " mode=" + state + " cycles=" + finishedCycles);
             }
-            // Close the socket
-            sock.close();
-        } catch (IOException ioe) {
-            // In case anything wrong with the socket
-            System.out.println(ioe);
         }
     }
 
     // Method to compose the result string that will be send back to client
-    static String makeReturnString(LinkedList<Data> list, int index, String username) {
+    static String makeReturnString(Corpus corpus, int listIndex, int index, String username) {
         // Use a StringBuffer to manipulate Strings
         StringBuffer result = new StringBuffer();
-        // Get the joke/proverb from the joke/proverb list based on the index
-        Data currentEntry = list.get(index);
+        // Get the joke/proverb from the chosen catalog of the corpus based on the index
+        Data currentEntry = corpus.get(listIndex, index);
         // Title of the joke/proverb comes first
         result.append(currentEntry.getTitle());
         result.append(" ");
@@ -389,29 +1002,54 @@ class Worker extends Thread {
 }
 
 public class JokeServer {
-    // Define default primary port number
-    private static final int DEFAULT_PRIMARY_PORT = 4545;
-    // Define default secondary port number
-    private static final int DEFAULT_SECONDARY_PORT = 4546;
-    // Boolean value indicating if the server is running in joke mode
-    private static boolean IS_JOKE = true;
+    // The replication port is the joke port plus this, 4645 for the primary and 4646 for the secondary
+    static final int REPLICATION_PORT_OFFSET = 100;
+    // Boolean value indicating if the server is running in joke mode, set by the admin threads and read by every worker
+    private static volatile boolean IS_JOKE = true;
     // Boolean value indicating if the server is a secondary server
     private static boolean IS_SECONDARY = false;
-    // LinkedList to store all jokes
-    private static LinkedList<Data> JOKE_LIST = new LinkedList<>();
-    // LinkedList to store all proverbs
-    private static LinkedList<Data> PROVERB_LIST = new LinkedList<>();
-    // ArrayList of LinkedList that will put above two LinkedLists together
-    private static ArrayList<LinkedList<Data>> WHOLE_LIST = new ArrayList<>();
+    // All jokes/proverbs, proverbs in catalog 0 and jokes in catalog 1
+    private static Corpus CORPUS;
     // Global ClientStatusTable
     private static ClientStatusTable CLIENT_STATUS_TABLE;
-    private static boolean IS_RUNNING = true;
+    // Consistent-hash ring of the cluster this server is a node of, null when it runs on its own
+    private static ClusterRing CLUSTER;
+    // Replication with the peer server, null when it is turned off
+    private static CycleReplicator REPLICATOR;
+    // Journal of the users' cycles, null when neither journaling nor replication is on, written out by a drain
+    private static CycleJournal JOURNAL;
+    // Listener of the joke port, non-blocking in ACCEPT_SELECTOR and closed by its acceptor once a drain started
+    private static ServerSocketChannel LISTENER;
+    private static Selector ACCEPT_SELECTOR;
+    // Opened once the acceptor took the connections queued at the joke port and closed it
+    private static final CountDownLatch LISTENER_CLOSED = new CountDownLatch(1);
+    // How long a drain waits for the acceptor before it closes the joke port itself
+    private static final long ACCEPT_DRAIN_MILLIS = 1000L;
+    // The NIO engine, null when the blocking engine serves the joke port
+    private static NioJokeServer NIO_SERVER;
+    // The UDP side of the joke port, null unless -Djoke.udp=true
+    private static UdpJokeServer UDP_SERVER;
+    // The HTTP front end, null unless -Djoke.http.port is set
+    private static HttpJokeServer HTTP_SERVER;
+    // SO_REUSEPORT only exists from Java 9 on, so it is looked up by name and null on Java 8
+    private static final SocketOption<Boolean> REUSE_PORT = reusePortOption();
+    // Request and idle deadlines of every connection of the joke port, ticks of 100 ms on 512 slots (51 s a turn)
+    private static final TimerWheel DEADLINES = new TimerWheel("JokeServer-deadlines", 100, 512);
+    // Joke port of this server
+    private static int PORT;
+    // True until a shutdown or drain starts, set by an admin thread and read by the accept loops and the workers
+    private static volatile boolean IS_RUNNING = true;
 
     // Method to change the server mode indicator
     public static void toggleIsJoke() {
         IS_JOKE = !IS_JOKE;
     }
 
+    // Method to put the server in a given mode, true for joke and false for proverb
+    public static void setIsJoke(boolean joke) {
+        IS_JOKE = joke;
+    }
+
     // Getter method of the server mode indicator
     public static boolean getIsJoke() {
         return IS_JOKE;
@@ -422,8 +1060,148 @@ public class JokeServer {
         return IS_SECONDARY;
     }
 
-    public static void setIsRunningFalse(){
+    // Getter method of the running indicator, checked by the accept loop and the sessions of either engine
+    public static boolean isRunning() {
+        return IS_RUNNING;
+    }
+
+    // First step of a drain: stop accepting and close the connections waiting for a command, see RollingRestart.java
+    static void startDrain() {
         IS_RUNNING = false;
+        // The acceptor takes what is queued at the joke port and closes it, before the idle connections are looked at
+        ACCEPT_SELECTOR.wakeup();
+        try {
+            if (!LISTENER_CLOSED.await(ACCEPT_DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+                LISTENER.close();
+            }
+        } catch (InterruptedException | IOException x) {
+            // Not accepting anymore either way
+        }
+        // Datagrams sent meanwhile are lost and retransmitted by their clients, to the successor
+        if (UDP_SERVER != null) {
+            UDP_SERVER.close();
+        }
+        if (HTTP_SERVER != null) {
+            HTTP_SERVER.drain();
+        }
+        if (NIO_SERVER != null) {
+            NIO_SERVER.drain();
+        } else {
+            Worker.closeIdle();
+        }
+    }
+
+    // Last step of a drain that ran out of time: close every connection still open
+    static void closeConnections() {
+        if (HTTP_SERVER != null) {
+            HTTP_SERVER.closeAll();
+        }
+        if (NIO_SERVER != null) {
+            NIO_SERVER.stop();
+        } else {
+            Worker.closeAll();
+        }
+    }
+
+    // Getter method of the timer wheel that holds the deadlines of every connection of either engine
+    static TimerWheel getDeadlines() {
+        return DEADLINES;
+    }
+
+    // Getter method of the journal, null when neither journaling nor replication is on
+    static CycleJournal getJournal() {
+        return JOURNAL;
+    }
+
+    // Bring back every user's cycles from the journal of the last run, then record the changes of this run
+    static void recoverJournal(CycleJournal journal) throws IOException {
+        if (journal != null) {
+            journal.recover();
+            CLIENT_STATUS_TABLE.enableJournal(journal);
+        }
+    }
+
+    // Bind the joke port, but never next to a JokeServer that serves it already, which SO_REUSEPORT would allow
+    static ServerSocketChannel openListener(int port, int backlog) throws IOException {
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 500);
+            throw new BindException("Port " + port + " is served by a running JokeServer, start with -Djoke.takeover=true to take over from it");
+        } catch (ConnectException | SocketTimeoutException free) {
+            // Nobody is listening
+        }
+        ServerSocketChannel listener = tryOpenListener(port, backlog);
+        if (listener == null) {
+            throw new BindException("Port " + port + " is in use");
+        }
+        return listener;
+    }
+
+    /*
+    Next connection of the joke port for the acceptor of either engine, null once a drain started and the accept queue
+    is empty. With SO_REUSEPORT the kernel keeps queueing connections at this listener until it is closed, and closing it
+    resets every connection still queued. So the acceptor waits in a selector, which a drain can wake up without closing
+    the port, takes what is queued like any other connection and only then closes the port.
+     */
+    static SocketChannel acceptConnection(ServerSocketChannel listener) throws IOException {
+        while (true) {
+            SocketChannel channel = listener.accept();
+            if (channel != null) {
+                return channel;
+            }
+            if (!IS_RUNNING) {
+                listener.close();
+                ACCEPT_SELECTOR.close();
+                LISTENER_CLOSED.countDown();
+                return null;
+            }
+            ACCEPT_SELECTOR.select();
+            ACCEPT_SELECTOR.selectedKeys().clear();
+        }
+    }
+
+    // Bind the joke port with SO_REUSEPORT where the runtime has it, so a successor can bind next to us; null if taken
+    static ServerSocketChannel tryOpenListener(int port, int backlog) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            setReusePort(listener);
+            listener.bind(new InetSocketAddress(port), backlog);
+            return listener;
+        } catch (BindException taken) {
+            listener.close();
+            return null;
+        }
+    }
+
+    // Let another process bind the same port next to this channel, where the platform allows it
+    static void setReusePort(NetworkChannel channel) throws IOException {
+        if (REUSE_PORT != null && channel.supportedOptions().contains(REUSE_PORT)) {
+            channel.setOption(REUSE_PORT, true);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException noSuchOption) {
+            return null;
+        }
+    }
+
+    // Getter method of the joke port, also used by the admin server to reach this server
+    public static int getPort() {
+        return PORT;
+    }
+
+    // Getter method of the cluster ring, null when this server is not part of a cluster
+    public static ClusterRing getCluster() {
+        return CLUSTER;
+    }
+
+    // Getter method of the replicator, null when replication is turned off
+    public static CycleReplicator getReplicator() {
+        return REPLICATOR;
     }
 
     // Getter method of the global ClientStatusTable
@@ -431,13 +1209,23 @@ public class JokeServer {
         return CLIENT_STATUS_TABLE;
     }
 
-    // Getter method of the Array of all jokes/proverbs
-    public static ArrayList<LinkedList<Data>> getWholeList() {
-        return WHOLE_LIST;
+    // Getter method of the corpus of all jokes/proverbs
+    public static Corpus getCorpus() {
+        return CORPUS;
     }
 
-    // Method to initialize all jokes/proverbs
-    public static void initializeData() {
+    // Method to initialize all jokes/proverbs: map the corpus file if there is one, otherwise use the built-in ones
+    public static void initializeData() throws IOException {
+        String corpusFile = ServerConfig.corpusFile();
+        if (!corpusFile.isEmpty()) {
+            long start = System.currentTimeMillis();
+            CORPUS = Corpus.map(new File(corpusFile));
+            System.out.println("Mapped " + CORPUS.size(Corpus.PROVERBS) + " proverbs and " + CORPUS.size(Corpus.JOKES)
+                    + " jokes from " + corpusFile + " in " + (System.currentTimeMillis() - start) + " ms.");
+            return;
+        }
+        LinkedList<Data> JOKE_LIST = new LinkedList<>();
+        LinkedList<Data> PROVERB_LIST = new LinkedList<>();
         JOKE_LIST.add(new Data("JA", "Apparently I snore so loudly that it scares everyone in the car I'm driving."));
         JOKE_LIST.add(new Data("JB", "Relationships are a lot like algebra. Have you ever looked at your X and wondered Y?"));
         JOKE_LIST.add(new Data("JC", "I started out with nothing, and I still have most of it."));
@@ -446,16 +1234,13 @@ public class JokeServer {
         PROVERB_LIST.add(new Data("PB", "Hope for the best, but prepare for the worst."));
         PROVERB_LIST.add(new Data("PC", "The early bird catches the worm."));
         PROVERB_LIST.add(new Data("PD", "You can't judge a book by its cover."));
-        // List of proverbs placed at index 0
-        WHOLE_LIST.add(PROVERB_LIST);
-        // List of jokes placed at index 1
-        WHOLE_LIST.add(JOKE_LIST);
+        // Proverbs placed at index 0, jokes at index 1
+        CORPUS = Corpus.fromItems(PROVERB_LIST, JOKE_LIST);
     }
 
     public static void main(String[] args) throws IOException {
-        int q_len = 6;
-        // Assign default primary server port
-        int port = DEFAULT_PRIMARY_PORT;
+        // Connections the kernel may complete before we accept them, see AdmissionControl.java
+        int q_len = ServerConfig.backlog();
 
         // If user what to run in secondary mode
         if ((args.length == 1) && (args[0].equalsIgnoreCase("secondary"))) {
@@ -463,10 +1248,59 @@ public class JokeServer {
             IS_SECONDARY = true;
         }
 
-        // If we are running as secondary
-        if (IS_SECONDARY) {
-            // Assign default secondary server port
-            port = DEFAULT_SECONDARY_PORT;
+        // 4545 for a primary and 4546 for a secondary server, unless -Djoke.port says otherwise
+        int port = ServerConfig.port(IS_SECONDARY);
+        PORT = port;
+
+        // Start the asynchronous server log before any worker can write to it
+        JokeLog.start();
+        // Initialize all jokes/proverbs
+        initializeData();
+        // Initialize global ClientStatusTable
+        CLIENT_STATUS_TABLE = new ClientStatusTable(CORPUS.size(Corpus.PROVERBS), CORPUS.size(Corpus.JOKES));
+        // Stream the users' cycles to the peer server and take its stream, so clients can switch servers with "s"
+        CycleReplicator replicator = null;
+        if (ServerConfig.replicationEnabled()) {
+            String peer = ServerConfig.replicationPeer(IS_SECONDARY);
+            int colon = peer.lastIndexOf(':');
+            replicator = new CycleReplicator(CLIENT_STATUS_TABLE, port + REPLICATION_PORT_OFFSET,
+                    peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        }
+        // The journal writer also feeds the replicator, so it runs without a directory if only replication is on
+        CycleJournal journal = null;
+        if (ServerConfig.journalEnabled() || replicator != null) {
+            File journalDir = ServerConfig.journalEnabled() ? new File(ServerConfig.journalDir(port)) : null;
+            journal = new CycleJournal(journalDir, CLIENT_STATUS_TABLE, replicator);
+        }
+        if (ServerConfig.takeover()) {
+            // Wait for the running server to drain and hand over its users, it has the journal until then
+            LISTENER = RollingRestart.takeOver(port, q_len, journal);
+            // Its other ports are released when it exits, right after the handoff
+            RollingRestart.awaitFree(ServerConfig.adminPort(port));
+            if (replicator != null) {
+                RollingRestart.awaitFree(port + REPLICATION_PORT_OFFSET);
+            }
+            if (!ServerConfig.clusterFile().isEmpty()) {
+                RollingRestart.awaitFree(port + ClusterRing.HANDOFF_PORT_OFFSET);
+            }
+            if (ServerConfig.metricsPort() > 0) {
+                RollingRestart.awaitFree(ServerConfig.metricsPort());
+            }
+            if (ServerConfig.httpPort() > 0) {
+                RollingRestart.awaitFree(ServerConfig.httpPort());
+            }
+        } else {
+            // Bring back every user's cycles from the journal of the last run, then record the changes of this run
+            recoverJournal(journal);
+            LISTENER = openListener(port, q_len);
+        }
+        // Accepted in a selector, before the admin port is up to start a drain
+        LISTENER.configureBlocking(false);
+        ACCEPT_SELECTOR = Selector.open();
+        LISTENER.register(ACCEPT_SELECTOR, SelectionKey.OP_ACCEPT);
+        if (journal != null) {
+            journal.start();
+            JOURNAL = journal;
         }
 
         // Create an new Admin server object
@@ -476,14 +1310,32 @@ public class JokeServer {
         // Execute the Admin server thread
         t.start();
 
-        // Initialize all jokes/proverbs
-        initializeData();
-        // Initialize global ClientStatusTable
-        CLIENT_STATUS_TABLE = new ClientStatusTable();
+        if (replicator != null) {
+            replicator.start();
+            REPLICATOR = replicator;
+        }
+        // Join the cluster, from now on users owned by other nodes are redirected and handed off to them
+        if (!ServerConfig.clusterFile().isEmpty()) {
+            CLUSTER = new ClusterRing(CLIENT_STATUS_TABLE, ServerConfig.clusterSelf(port),
+                    new File(ServerConfig.clusterFile()), ServerConfig.clusterVnodes());
+            CLUSTER.start();
+        }
+        // Drop users that went away without quitting, unless turned off with a time-to-live of 0
+        if (ServerConfig.sessionTtlMillis() > 0) {
+            CLIENT_STATUS_TABLE.enableEviction(ServerConfig.sessionTtlMillis(), ServerConfig.sessionMax());
+        }
+
+        // Serve the metrics to Prometheus if -Djoke.metrics.port gives a port
+        ServerMetrics.startHttp(ServerConfig.metricsPort());
+        // Single-datagram requests next to the TCP joke port, after a takeover the predecessor has closed it already
+        if (ServerConfig.udpEnabled()) {
+            UDP_SERVER = UdpJokeServer.start(port);
+        }
+        // JSON over HTTP for the web tier, unless turned off with port 0
+        if (ServerConfig.httpPort() > 0) {
+            HTTP_SERVER = HttpJokeServer.start(ServerConfig.httpPort());
+        }
 
-        Socket sock;
-        // Initialize a new server type socket using port number and queue length
-        ServerSocket servSock = new ServerSocket(port, q_len);
         // Print server info
         System.out.println("Mingfei Shao's Joke server starting up, listening at port " + port + ".");
         // If we are running as secondary
@@ -493,13 +1345,35 @@ public class JokeServer {
         }
         System.out.println();
 
-        // Stick here to serve any incoming clients
-        while (IS_RUNNING) {
-            // Wait for client to connect
-            sock = servSock.accept();
-            // After connected, start a new worker thread to handle client's request, and main thread stays in the loop, waiting for next client
-            new Worker(sock).start();
+        // The NIO engine serves the same protocol from a handful of selector threads instead of a thread per client
+        if (ServerConfig.engine().equalsIgnoreCase("nio")) {
+            NIO_SERVER = new NioJokeServer(ServerConfig.nioSelectors());
+            NIO_SERVER.serve(LISTENER);
+            System.out.println("JokeServer shutdown!");
+            return;
+        }
+
+        // Executor that runs the Workers, chosen at start-up
+        ExecutorService executor = WorkerPool.create("JokeServer", ServerConfig.workerThreads(), ServerConfig.workerQueue());
+
+        // Stick here to serve any incoming clients, until a drain started and the accept queue is empty. Every accepted
+        // socket has a channel, in blocking mode, which the Workers use for gathering writes
+        try {
+            SocketChannel channel;
+            while ((channel = acceptConnection(LISTENER)) != null) {
+                // Past the in-flight cap the client is told to come back later, right here and without a worker
+                if (!AdmissionControl.admitConnection()) {
+                    AdmissionControl.refuse(channel);
+                    continue;
+                }
+                // After connected, hand the client's request to a worker, and main thread stays in the loop, waiting for next client
+                executor.execute(new Worker(channel.socket()));
+            }
+        } catch (ClosedChannelException closed) {
+            // Closed by a drain that could not wait for us, which lets the Workers finish and ends the process
         }
+        // Let the Workers already running finish, then release the threads
+        executor.shutdown();
         System.out.println("JokeServer shutdown!");
 
     }
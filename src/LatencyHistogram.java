@@ -0,0 +1,102 @@
+/*--------------------------------------------------------
+
+LatencyHistogram.java
+
+A high-dynamic-range histogram of latencies (or any other non-negative long), safe to record into from many threads.
+
+Values below 128 get a bucket each. Above that, every power of two is split into 64 buckets, so any value is counted
+in a bucket less than 1.6% wider than the value itself, from 1 up to 2^37 (in microseconds, more than a day).
+Bigger values are counted in the last bucket, the exact maximum is kept on the side. That is 2112 counters whatever
+the number of values recorded, so recording costs the same for the millionth value as for the first.
+
+Each bucket is a LongAdder, so threads recording similar values do not fight over one cache line.
+A percentile is answered with the highest value of the bucket it falls in, so it is never reported lower than it was.
+
+----------------------------------------------------------*/
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+class LatencyHistogram {
+    // Each power of two above SUB_BUCKETS is split into SUB_BUCKETS / 2 buckets
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+    // Largest shift kept apart, values of 2^37 and more share the last bucket
+    private static final int MAX_SHIFT = 31;
+    private static final int BUCKETS = (MAX_SHIFT + 1) * HALF_BUCKETS + HALF_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    // Count one value, negative values count as 0
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts[bucket(v)].increment();
+        total.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long count = total.sum();
+        return (count == 0) ? 0 : (double) sum.sum() / count;
+    }
+
+    // The value below which the given fraction (0.5 for the median, 0.999 for p99.9) of the values fall
+    long percentile(double fraction) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) {
+                // Never above the largest value recorded, the last bucket is open-ended
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Math.min(MAX_SHIFT, 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1));
+        long subBucket = Math.min(SUB_BUCKETS - 1, value >>> shift);
+        return shift * HALF_BUCKETS + (int) subBucket;
+    }
+
+    // Highest value that falls in bucket i
+    private static long highestValue(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = i / HALF_BUCKETS - 1;
+        long subBucket = i - shift * HALF_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
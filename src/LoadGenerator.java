@@ -0,0 +1,249 @@
+/*--------------------------------------------------------
+
+LoadGenerator.java
+
+The load-test mode of JokeClient, started with
+> java JokeClient --load <IPAddr>:<port> ...
+Many virtual users, each with its own username and UUID, ask for jokes/proverbs with the one-shot requests of
+JokeClient.getRemoteResponse, through the same EndpointPool as the interactive client (failover, balance, redirects).
+
+a. Closed loop (the default): -Djoke.load.concurrency=<n> threads each send a request, wait for the reply and send the
+   next one. This finds the throughput the servers can sustain, but a slow reply also delays the requests behind it,
+   so the latencies it reports are too good whenever the servers stall (coordinated omission).
+b. Open loop: with -Djoke.load.rate=<n> requests are scheduled at n per second whatever happens to the earlier ones,
+   and up to -Djoke.load.concurrency of them run at once. The latency of a request is counted from the time it was
+   scheduled, not from the time a thread got round to sending it, so a stall shows up in every request it delayed.
+c. -Djoke.load.users=<n> virtual users (1000 by default) take turns, -Djoke.load.seconds=<n> is the length of the test
+   (30 by default). A progress line is printed every 5 seconds, and at the end the throughput, the errors by kind and
+   the p50/p99/p99.9/max latencies from a LatencyHistogram.
+d. Every reply is checked: no user may see the same item twice within a cycle. The requests of one user are sent one
+   at a time, so the client knows the order of the items and checks every block of -Djoke.load.cycle=<n> items
+   (the catalog size, 4 for the built-in catalogs) for repeats. This assumes the server mode is not switched during
+   the test and the users are new, which they are since their UUIDs are random.
+e. Requests for items are never hedged (see EndpointPool.java), so a repeat or a skip seen here is the server's.
+   The exit code is 1 if any request failed or any repeat was seen, so the mode can gate a script.
+f. -Djoke.load.protocol=udp sends the requests as single datagrams (JokeClient.getDatagramResponse) to servers started
+   with -Djoke.udp=true. Retransmits carry the request id of the first copy, so they must not show up as skips either.
+   -Djoke.load.protocol=http sends them as GET /next over a kept-alive connection per thread and server
+   (JokeClient.getHttpResponse), to the HTTP port of servers started with -Djoke.http.port.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+class LoadGenerator {
+    // Seconds between two progress lines
+    private static final int PROGRESS_SECONDS = 5;
+    // Repeats printed one by one, the rest are only counted
+    private static final int REPEATS_SHOWN = 10;
+    // How long the requests still queued at the end of an open-loop test may take to finish
+    private static final long DRAIN_SECONDS = 60;
+
+    // One simulated user, its requests are sent one at a time (the lock is the VirtualUser itself)
+    static class VirtualUser {
+        final String username;
+        final String uuid;
+        // Items seen in the current cycle
+        final Set<String> seen = new HashSet<>();
+
+        VirtualUser(int number) {
+            username = "user" + number;
+            uuid = UUID.randomUUID().toString();
+        }
+    }
+
+    private final EndpointPool pool;
+    private final int userCount = Integer.getInteger("joke.load.users", 1000);
+    private final int concurrency = Integer.getInteger("joke.load.concurrency", 64);
+    private final double rate = Double.parseDouble(System.getProperty("joke.load.rate", "0"));
+    private final long seconds = Long.getLong("joke.load.seconds", 30L);
+    private final int cycleSize = Integer.getInteger("joke.load.cycle", 4);
+    private final boolean udp = System.getProperty("joke.load.protocol", "text").equalsIgnoreCase("udp");
+    private final boolean http = System.getProperty("joke.load.protocol", "text").equalsIgnoreCase("http");
+
+    private final VirtualUser[] users;
+    // Picks the user of the next request, round robin
+    private final AtomicLong nextUser = new AtomicLong();
+    // Latency of every answered request in microseconds
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder ok = new LongAdder();
+    // Failed requests by kind of failure
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder repeats = new LongAdder();
+
+    LoadGenerator(EndpointPool pool) {
+        this.pool = pool;
+        users = new VirtualUser[Math.max(1, userCount)];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new VirtualUser(i + 1);
+        }
+    }
+
+    // Run the test and print the report, returns false if any request failed or any repeat was seen
+    boolean run() throws InterruptedException {
+        boolean openLoop = rate > 0;
+        int threads = Math.max(1, concurrency);
+        if (openLoop) {
+            System.out.println("Open loop at " + rate + " requests/s, up to " + threads + " in flight, " + users.length
+                    + " users, " + seconds + " s. Latency counts from the time a request was scheduled.");
+        } else {
+            System.out.println("Closed loop with " + threads + " concurrent requests, " + users.length + " users, "
+                    + seconds + " s.");
+        }
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread progress = startProgress(start);
+
+        if (openLoop) {
+            runOpenLoop(threads, start, end);
+        } else {
+            runClosedLoop(threads, end);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        progress.interrupt();
+        return report(openLoop, elapsed);
+    }
+
+    // Every thread sends its next request as soon as the previous one is answered
+    private void runClosedLoop(int threads, long end) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    send(System.nanoTime());
+                }
+            }, "JokeClient-load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Schedule requests at a fixed rate, a request waiting for a free thread is already late and counted as such
+    private void runOpenLoop(int threads, long start, long end) throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "JokeClient-load"));
+        double intervalNanos = 1e9 / rate;
+        for (long i = 0; ; i++) {
+            long scheduled = start + (long) (i * intervalNanos);
+            if (scheduled >= end) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            executor.execute(() -> send(scheduled));
+        }
+        executor.shutdown();
+        // Requests still waiting are part of the test, dropping them would hide the latency of a stall
+        if (!executor.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+            int unfinished = executor.shutdownNow().size();
+            errors.computeIfAbsent("not sent before the end of the test", k -> new LongAdder()).add(unfinished);
+        }
+    }
+
+    // Send one request for the next user and record its latency from startNanos, or its failure
+    private void send(long startNanos) {
+        VirtualUser user = users[(int) (nextUser.getAndIncrement() % users.length)];
+        // One request at a time per user, so the items arrive in the order the server handed them out
+        synchronized (user) {
+            String reply;
+            try {
+                reply = pool.execute(e -> udp ? JokeClient.getDatagramResponse(user.username, user.uuid, e)
+                        : http ? JokeClient.getHttpResponse(1, user.username, user.uuid, e)
+                        : JokeClient.getRemoteResponse(user.username, user.uuid, e), false);
+            } catch (IOException x) {
+                errors.computeIfAbsent(x.getClass().getSimpleName(), k -> new LongAdder()).increment();
+                return;
+            }
+            latencies.record((System.nanoTime() - startNanos) / 1000);
+            String item = itemOf(reply, user.username);
+            if (item == null) {
+                errors.computeIfAbsent("unexpected reply", k -> new LongAdder()).increment();
+                return;
+            }
+            ok.increment();
+            check(user, item);
+        }
+    }
+
+    // The title of the item in a reply line "[<S2> ]<title> <username>: <text>", null if it is not such a line
+    static String itemOf(String reply, String username) {
+        String line = reply.startsWith("<S2> ") ? reply.substring("<S2> ".length()) : reply;
+        int end = line.indexOf(" " + username + ": ");
+        return (end > 0) ? line.substring(0, end) : null;
+    }
+
+    // Count a repeat if the user already saw the item in this cycle, called with the user's lock held
+    private void check(VirtualUser user, String item) {
+        if (!user.seen.add(item)) {
+            repeats.increment();
+            if (repeats.sum() <= REPEATS_SHOWN) {
+                System.out.println("Repeat within a cycle: " + user.username + " (" + user.uuid + ") got " + item + " twice");
+            }
+        }
+        if (user.seen.size() >= cycleSize) {
+            user.seen.clear();
+            cycles.increment();
+        }
+    }
+
+    // Print the requests so far every PROGRESS_SECONDS until interrupted
+    private Thread startProgress(long start) {
+        Thread progress = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(PROGRESS_SECONDS);
+                    double elapsed = (System.nanoTime() - start) / 1e9;
+                    long answered = latencies.getCount();
+                    System.out.println(String.format("%5.0f s: %d requests, %.1f/s, p99 %s, %d errors", elapsed,
+                            answered, answered / elapsed, millis(latencies.percentile(0.99)), errorCount()));
+                }
+            } catch (InterruptedException done) {
+                // Test over
+            }
+        }, "JokeClient-load-progress");
+        progress.setDaemon(true);
+        progress.start();
+        return progress;
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (LongAdder kind : errors.values()) {
+            count += kind.sum();
+        }
+        return count;
+    }
+
+    private boolean report(boolean openLoop, double elapsed) {
+        long failed = errorCount();
+        System.out.println();
+        System.out.println("Load test finished after " + String.format("%.1f", elapsed) + " s ("
+                + (openLoop ? "open loop" : "closed loop") + ").");
+        System.out.println("Requests: " + ok.sum() + " ok, " + failed + " failed.");
+        for (Map.Entry<String, LongAdder> kind : new TreeMap<>(errors).entrySet()) {
+            System.out.println("  " + kind.getKey() + ": " + kind.getValue().sum());
+        }
+        System.out.println(String.format("Throughput: %.1f requests/s", ok.sum() / elapsed));
+        System.out.println("Latency: p50 " + millis(latencies.percentile(0.5)) + ", p99 " + millis(latencies.percentile(0.99))
+                + ", p99.9 " + millis(latencies.percentile(0.999)) + ", max " + millis(latencies.getMax())
+                + ", mean " + millis((long) latencies.getMean()));
+        System.out.println("Cycles: " + cycles.sum() + " complete cycles of " + cycleSize + " items, " + repeats.sum()
+                + " repeats within a cycle.");
+        return failed == 0 && repeats.sum() == 0;
+    }
+
+    // Microseconds as milliseconds for the report
+    private static String millis(long micros) {
+        return String.format("%.3f ms", micros / 1000.0);
+    }
+}
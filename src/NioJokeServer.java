@@ -0,0 +1,478 @@
+/*--------------------------------------------------------
+
+NioJokeServer.java
+
+A second engine for the joke port, selected with -Djoke.engine=nio. Instead of one blocked Worker thread per
+connection, one acceptor thread hands accepted channels to a small number of selector loops (-Djoke.nio.selectors,
+one per core by default). Each loop parses lines straight out of the channel buffers, feeds them to the same
+JokeProtocol state machine as the blocking engine and writes the replies back without ever blocking, so tens of
+thousands of idle or slow clients only cost a buffer each instead of a thread each.
+The wire protocol is unchanged, existing JokeClient binaries work against either engine, and a connection that starts
+with the magic byte of the binary protocol (see BinaryProtocol.java) is served with that instead.
+Every connection has a deadline on the shared timer wheel of the server (see TimerWheel.java): a request, from its
+first byte to the last byte of its reply, must be done within -Djoke.request.timeout.ms, and a session waiting for its
+next command within the idle timeout. A connection past its deadline is handed back to its loop, which closes it.
+During a drain (see RollingRestart.java) each loop closes the sessions waiting for a command, and the others once their
+current command is answered.
+A subscribed session (see JokeProtocol.java) gets its next chunk of items queued each time the previous one is written,
+as long as it has credits, so a client that stops reading stops the stream at the socket buffer. A chunk held back by
+the rate limit is retried from a second timeout on the timer wheel.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class NioJokeServer {
+    // Largest request we are willing to buffer for one connection, the two lines of a valid request are far shorter,
+    // and it holds the largest binary frame
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final long REQUEST_TIMEOUT_MILLIS = ServerConfig.requestTimeoutMillis();
+    private static final long IDLE_TIMEOUT_MILLIS = ServerConfig.sessionIdleMillis();
+
+    private final SelectorLoop[] loops;
+
+    NioJokeServer(int selectorCount) throws IOException {
+        loops = new SelectorLoop[Math.max(1, selectorCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+    }
+
+    // Accept connections on the bound joke port until a drain closes it, spreading them over the selector loops round-robin
+    void serve(ServerSocketChannel server) throws IOException {
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        System.out.println("JokeServer uses the NIO engine with " + loops.length + " selector threads.");
+        int next = 0;
+        boolean drained = false;
+        try {
+            SocketChannel channel;
+            // Until a drain started and the accept queue is empty, see JokeServer.acceptConnection
+            while ((channel = JokeServer.acceptConnection(server)) != null) {
+                // Past the in-flight cap the client is told to come back later, before a selector loop sees it
+                if (!AdmissionControl.admitConnection()) {
+                    AdmissionControl.refuse(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(new Connection(channel, loops[next]));
+                next = (next + 1) % loops.length;
+            }
+            // The loops finish the open connections and the drain stops them
+            drained = true;
+        } catch (ClosedChannelException closed) {
+            // Closed by a drain that could not wait for us
+            drained = !JokeServer.isRunning();
+            if (!drained) {
+                throw closed;
+            }
+        } finally {
+            if (!drained) {
+                server.close();
+                stop();
+            }
+        }
+    }
+
+    // Wake every loop up, so it closes its sessions waiting for a command right away
+    void drain() {
+        for (SelectorLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    // Stop the loops, each closes the connections it still has
+    void stop() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /*
+    One selector thread. New connections are queued by the acceptor and registered by the loop itself, because
+    registering from another thread would block on the selector while it sits in select().
+     */
+    static class SelectorLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        // Connections past their deadline, queued by the timer wheel thread and closed by the loop itself
+        private final Queue<Connection> expired = new ConcurrentLinkedQueue<>();
+        // Streams whose rate limit pause is over, queued by the timer wheel thread and resumed by the loop
+        private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        SelectorLoop(int id) throws IOException {
+            super("JokeServer-selector-" + id);
+            selector = Selector.open();
+        }
+
+        // Queue a freshly accepted connection and wake the selector up so it picks it up right away
+        void register(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        // Called by the timer wheel thread, the connection belongs to this loop and is closed here
+        void expire(Connection connection) {
+            expired.add(connection);
+            selector.wakeup();
+        }
+
+        // Called by the timer wheel thread, the stream of the connection may go on
+        void resume(Connection connection) {
+            resumed.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    // Nothing to do on a timer, new connections, deadlines, drains and shutdowns all wake the selector
+                    selector.select();
+                    registerPending();
+                    closeExpired();
+                    resumeStreams();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // A broken client or a malformed request only ever costs its own connection
+                            connection.close();
+                        }
+                    }
+                    // After the commands that arrived are answered, so only sessions with nothing in flight are cut
+                    if (!JokeServer.isRunning()) {
+                        closeWaitingSessions();
+                    }
+                }
+            } catch (IOException ioe) {
+                JokeLog.error("event=selector-error error=\"" + ioe + "\"");
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                    // Shutting down anyway
+                }
+            }
+        }
+
+        // Close the connections of this loop the timer wheel found past their deadline
+        private void closeExpired() {
+            Connection connection;
+            while ((connection = expired.poll()) != null) {
+                connection.expire();
+            }
+        }
+
+        // Push the next chunk of the streams the timer wheel found ready again
+        private void resumeStreams() {
+            Connection connection;
+            while ((connection = resumed.poll()) != null) {
+                try {
+                    connection.onResume();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        // During a drain, close every session of this loop that has answered its last command and waits for the next
+        private void closeWaitingSessions() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isSession() && connection.isWaiting()) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void registerPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    // Accepted and ready to be read, the accept stage of this connection is over
+                    ServerMetrics.record(ServerMetrics.ACCEPT, connection.acceptedAt);
+                } catch (IOException ioe) {
+                    // The client is gone already
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /*
+    Per-connection state: the bytes read so far, the protocol state and the replies still to be written.
+     */
+    static class Connection {
+        private final SocketChannel channel;
+        private final JokeProtocol protocol = new JokeProtocol();
+        // Binary protocol state, set if the first byte of the connection was the magic byte, null for text
+        private BinaryProtocol binary;
+        private boolean firstByteSeen;
+        private SelectionKey key;
+        // The loop the connection is registered with, the only thread that reads, writes or closes it
+        private final SelectorLoop loop;
+        private ByteBuffer in = ByteBuffer.allocate(256);
+        // Replies not written yet, sent with gathering writes straight from the cached item bytes
+        private final ReplyBuffer out = new ReplyBuffer();
+        // Armed with the request deadline while a command is in flight, with the idle timeout while a session waits
+        private final TimerWheel.Timeout deadline = JokeServer.getDeadlines().newTimeout(this::onDeadline);
+        private boolean idle;
+        // Armed while the stream of a subscribed session waits for the rate limit, it is paused until then
+        private final TimerWheel.Timeout resume = JokeServer.getDeadlines().newTimeout(this::onResumeDue);
+        private boolean paused;
+        // When the acceptor accepted the connection, the start of its accept stage in ServerMetrics
+        private final long acceptedAt = ServerMetrics.start();
+        private boolean closed;
+
+        // Created by the acceptor thread, everything else runs on the selector loop the connection is registered with.
+        // The request deadline runs from the accept, a client that sends nothing is closed as well.
+        Connection(SocketChannel channel, SelectorLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            ServerMetrics.ACCEPTED.increment();
+            ServerMetrics.ACTIVE.increment();
+            JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(in) < 0) {
+                // Client closed the connection, same as readLine() returning null
+                close();
+                return;
+            }
+            in.flip();
+            if (!firstByteSeen && in.hasRemaining()) {
+                firstByteSeen = true;
+                if (in.get(0) == BinaryProtocol.MAGIC) {
+                    binary = new BinaryProtocol();
+                }
+            }
+            // Stop parsing while replies are pending, so a client that never reads cannot make us buffer without limit
+            if (binary != null) {
+                int length;
+                while (!out.hasRemaining() && !binary.isFinished()
+                        && (length = BinaryProtocol.frameLength(in)) > 0 && in.remaining() >= length) {
+                    long parseStart = ServerMetrics.start();
+                    binary.onFrame(in, out);
+                    ServerMetrics.recordParse(parseStart, out);
+                    respond();
+                    if (!JokeServer.isRunning()) {
+                        break;
+                    }
+                }
+            } else {
+                String line;
+                while (!out.hasRemaining() && !protocol.isFinished() && (line = nextLine()) != null) {
+                    long parseStart = ServerMetrics.start();
+                    protocol.onLine(line, out);
+                    ServerMetrics.recordParse(parseStart, out);
+                    respond();
+                    if (!JokeServer.isRunning() && protocol.inSession()) {
+                        break;
+                    }
+                }
+            }
+            in.compact();
+            pump();
+            if (isFinished() && !out.hasRemaining()) {
+                close();
+                return;
+            } else if (!out.hasRemaining() && !in.hasRemaining()) {
+                growInputBuffer();
+            }
+            rearm();
+        }
+
+        void onWritable() throws IOException {
+            if (out.writeTo(channel)) {
+                if (isFinished()) {
+                    close();
+                    return;
+                }
+                // Replies are out, go back to reading and pick up any command that arrived in the meantime
+                key.interestOps(SelectionKey.OP_READ);
+                if (in.position() > 0) {
+                    onReadable();
+                    return;
+                }
+                pump();
+                if (isFinished() && !out.hasRemaining()) {
+                    close();
+                } else {
+                    rearm();
+                }
+            }
+        }
+
+        /*
+        Queue and write the chunks of a subscribed stream while it has credits and the socket takes them. A chunk that
+        does not fit leaves OP_WRITE set, and the next one is only queued once it is written.
+         */
+        private void pump() throws IOException {
+            while (!closed && !paused && !out.hasRemaining() && protocol.hasCredit() && !isFinished()) {
+                long retryMillis = protocol.stream(out);
+                if (retryMillis > 0) {
+                    paused = true;
+                    JokeServer.getDeadlines().arm(resume, retryMillis);
+                    return;
+                }
+                // Every chunk is progress, the request deadline only has to cover writing it
+                idle = false;
+                JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+                respond();
+            }
+        }
+
+        // Called by the timer wheel thread, which must not touch the connection itself
+        private void onResumeDue() {
+            loop.resume(this);
+        }
+
+        // Called by the loop once the rate limit lets the stream go on
+        private void onResume() throws IOException {
+            paused = false;
+            if (closed || out.hasRemaining()) {
+                return;
+            }
+            pump();
+            if (isFinished() && !out.hasRemaining()) {
+                close();
+            } else {
+                rearm();
+            }
+        }
+
+        /*
+        A session waiting for its next command gets the idle timeout, pushed back by every command it sends. The first
+        byte of a command starts the request deadline, which is not pushed back by the bytes that follow, so a client
+        trickling a command in a byte at a time cannot hold the connection past it.
+         */
+        private void rearm() {
+            if (isSession() && isWaiting()) {
+                idle = true;
+                JokeServer.getDeadlines().arm(deadline, IDLE_TIMEOUT_MILLIS);
+            } else if (idle) {
+                idle = false;
+                JokeServer.getDeadlines().arm(deadline, REQUEST_TIMEOUT_MILLIS);
+            }
+        }
+
+        // Called by the timer wheel thread, which must not touch the connection itself
+        private void onDeadline() {
+            loop.expire(this);
+        }
+
+        // Called by the loop for a connection the timer wheel found past its deadline
+        private void expire() {
+            if (closed) {
+                return;
+            }
+            ServerMetrics.EXPIRED.increment();
+            JokeLog.info("event=" + (idle ? "idle-close" : "deadline") + " remote=" + channel.socket().getRemoteSocketAddress());
+            close();
+        }
+
+        // Done once the protocol says so, and for a session also once a drain started and its last reply is out
+        private boolean isFinished() {
+            return ((binary != null) ? binary.isFinished() : protocol.isFinished())
+                    || (!JokeServer.isRunning() && isSession());
+        }
+
+        // Nothing is being answered: no reply to write and no part of a command read
+        private boolean isWaiting() {
+            return !out.hasRemaining() && in.position() == 0;
+        }
+
+        // Binary connections are kept open like text sessions, so the idle timeout applies to both
+        private boolean isSession() {
+            return binary != null || protocol.inSession();
+        }
+
+        // Try to write the queued reply right away, most replies fit in the socket buffer in one go
+        private void respond() throws IOException {
+            if (!out.hasRemaining()) {
+                return;
+            }
+            long writeStart = ServerMetrics.start();
+            boolean written = out.writeTo(channel);
+            ServerMetrics.record(ServerMetrics.WRITE, writeStart);
+            if (!written && key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Take the next complete line out of the input buffer, accepting "\n" and "\r\n" like BufferedReader does
+        private String nextLine() {
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+                    String line = new String(in.array(), in.arrayOffset() + start, end - start, ReplyBuffer.CHARSET);
+                    in.position(i + 1);
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        // A line longer than the buffer, double it up to the limit and drop the client past that
+        private void growInputBuffer() throws IOException {
+            if (in.capacity() >= MAX_REQUEST_BYTES) {
+                throw new IOException("Request too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        void close() {
+            // Closed once, however many paths lead here
+            if (closed) {
+                return;
+            }
+            closed = true;
+            JokeServer.getDeadlines().cancel(deadline);
+            JokeServer.getDeadlines().cancel(resume);
+            protocol.onClose();
+            if (binary != null) {
+                binary.onClose();
+            }
+            ServerMetrics.ACTIVE.decrement();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Nothing more to do for this client
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*--------------------------------------------------------
+
+ReplyBuffer.java
+
+The bytes a connection still has to send, kept as a list of segments instead of one string. A joke/proverb reply is
+a few segments: the "<title> " bytes of the item (after "<S2> " on the secondary server), the username bytes of the
+connection, the ": <text>" bytes of the item and the line separator. The item bytes are slices of the Corpus buffer,
+which may be a memory-mapped file. The whole list goes out with one gathering write, so serving an item neither builds
+a string nor encodes one.
+Each connection owns one ReplyBuffer and reuses it for every reply.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+
+class ReplyBuffer {
+    // Same charset PrintStream uses, so the bytes match what the original Worker sent
+    static final Charset CHARSET = Charset.defaultCharset();
+    // Same line separator PrintStream.println writes
+    static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(CHARSET);
+
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    // Segments [first, count) still have bytes to write
+    private int first;
+    private int count;
+    // Time the replies queued since the last request took in ClientStatusTable lookups, see ServerMetrics
+    long lookupNanos;
+
+    /*
+    Queue a cached segment. Cached buffers are shared by every connection, so we queue a duplicate: it has its own
+    position and limit but shares the bytes, nothing is copied.
+     */
+    void add(ByteBuffer segment) {
+        append(segment.duplicate());
+    }
+
+    // Queue a slice of a shared buffer without copying it, the buffer's own position and limit are left alone
+    void add(ByteBuffer source, int offset, int length) {
+        ByteBuffer slice = source.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        append(slice);
+    }
+
+    // Queue bytes that belong to this reply only
+    void add(byte[] bytes) {
+        append(ByteBuffer.wrap(bytes));
+    }
+
+    // Queue a whole line of text, used for the rare replies that are not joke/proverb items
+    void addLine(String line) {
+        add(line.getBytes(CHARSET));
+        add(LINE_SEPARATOR);
+    }
+
+    private void append(ByteBuffer buffer) {
+        if (count == segments.length) {
+            ByteBuffer[] bigger = new ByteBuffer[segments.length * 2];
+            System.arraycopy(segments, 0, bigger, 0, count);
+            segments = bigger;
+        }
+        segments[count++] = buffer;
+    }
+
+    /*
+    Queue an empty segment to be filled in with set() once the bytes queued after it are known, for a header that
+    carries the length of what follows. Returns its position.
+     */
+    int reserve() {
+        append(ByteBuffer.allocate(0));
+        return count - 1;
+    }
+
+    // Fill in a segment queued with reserve()
+    void set(int position, byte[] bytes) {
+        segments[position] = ByteBuffer.wrap(bytes);
+    }
+
+    // Position in the queue, for bytesSince
+    int mark() {
+        return count;
+    }
+
+    // Number of bytes queued since mark() returned the given position, the body length of a binary reply
+    int bytesSince(int mark) {
+        int bytes = 0;
+        for (int i = mark; i < count; i++) {
+            bytes += segments[i].remaining();
+        }
+        return bytes;
+    }
+
+    // Number of bytes queued and not written yet
+    int remaining() {
+        return bytesSince(first);
+    }
+
+    /*
+    Move everything queued into dst (which must have room for it) and empty the queue, for a transport that sends
+    a reply as one message instead of writing it to a stream.
+     */
+    void drainTo(ByteBuffer dst) {
+        for (int i = first; i < count; i++) {
+            dst.put(segments[i]);
+        }
+        clear();
+    }
+
+    // Drop everything queued
+    void clear() {
+        for (int i = first; i < count; i++) {
+            segments[i] = null;
+        }
+        first = 0;
+        count = 0;
+    }
+
+    // True while some queued bytes have not been written yet
+    boolean hasRemaining() {
+        return first < count;
+    }
+
+    // Write as much as the channel takes right now with one gathering write, returns true once everything is out
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if (first < count) {
+            channel.write(segments, first, count - first);
+            while (first < count && !segments[first].hasRemaining()) {
+                segments[first++] = null;
+            }
+        }
+        if (first == count) {
+            first = 0;
+            count = 0;
+            return true;
+        }
+        return false;
+    }
+
+    // Write everything to a blocking channel
+    void writeFully(GatheringByteChannel channel) throws IOException {
+        while (!writeTo(channel)) {
+            // A blocking channel may still write less than asked for, keep going until it is all out
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*--------------------------------------------------------
+
+RollingRestart.java
+
+Graceful drain of a JokeServer and hot handoff of its users to the process replacing it, so a server can be restarted
+(a new build, new switches) without dropping requests in flight and without sending any user back to the start of a
+cycle. To restart the primary server:
+> java -Djoke.takeover=true JokeServer
+with the same switches as the running server, then "drain" in JokeClientAdmin.
+
+a. The successor, started with -Djoke.takeover=true, loads the corpus and waits at the takeover port (joke port + 300)
+   for its predecessor, up to -Djoke.takeover.wait.ms (60 s by default). Nobody showing up is not an error, it then
+   starts like any other server, from the journal.
+b. "drain" on the admin port of the running server ("drain host:port" for a successor that is not at localhost and
+   the usual takeover port) first connects to the successor, so a drain never starts without somewhere for the users
+   to go. The successor binds the joke port right away, next to its predecessor, which SO_REUSEPORT allows (Java 9 and
+   later, set on the joke port of every JokeServer that can): from then on new connections wait in the successor's
+   accept queue instead of being refused.
+c. The running server stops accepting, closes its keep-alive sessions and binary connections that are waiting for a
+   command (their clients reconnect, to the successor), ends the other sessions after their current command and gives
+   the requests in flight up to -Djoke.drain.timeout.ms (10 s by default) before closing whatever is left.
+   Closing a listener resets the connections still in its accept queue, and the kernel keeps queueing new connections
+   at the old listener too until it is closed. So before it closes the joke port the server accepts, without blocking,
+   until its queue is empty and serves those connections like the ones in flight: a request is answered, a session or
+   binary connection ends after its first command. Only a connection that completes its handshake between that last
+   accept and the close, a window of microseconds, is still reset and has its client retry.
+d. It writes out its journal, so the successor finds it complete, and streams every user's cycles to the successor in
+   the handoff format of ClusterRing. The successor replays the journal, takes the users (the newer state of a user
+   wins), confirms and starts serving; the predecessor exits. The other ports are taken over once it has.
+e. Without SO_REUSEPORT (Java 8) the successor can only bind the joke port once its predecessor closed it, so
+   connections are refused for the length of the drain and the handoff, which is usually well under a second.
+f. "shutdown" is the same drain without a successor: the requests in flight are answered, the journal is written,
+   then the server exits.
+
+Takeover wire format, big-endian: the predecessor sends MAGIC and the successor answers one byte, 1 if it bound the
+joke port and 0 if it waits for the predecessor to close it. Once drained, the predecessor sends a ClusterRing handoff
+stream, answered with the number of users taken.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+
+class RollingRestart {
+    private static final int MAGIC = 0x4A4B5431; // "JKT1"
+    // The takeover port of a successor is its joke port plus this
+    static final int TAKEOVER_PORT_OFFSET = 300;
+    // How long a successor waits for the ports its exiting predecessor still holds
+    private static final long PORT_WAIT_MILLIS = 10000L;
+    // How often the draining server looks at its open connections, and the successor at a port it waits for
+    private static final long POLL_MILLIS = 10L;
+
+    /*
+    Drain this server and hand its users to the successor at host:port (its takeover port), or to nobody if successor
+    is null, then exit. Progress is reported to the admin client on report. Returns only if the drain could not start,
+    with the reason; the server then keeps serving as if nothing happened. A second shutdown or drain waits for the
+    first one, which ends the process.
+     */
+    static synchronized String drain(String successor, PrintStream report) {
+        long start = System.currentTimeMillis();
+        Socket sock = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        boolean successorBound = false;
+        if (successor != null) {
+            int colon = successor.lastIndexOf(':');
+            try {
+                sock = new Socket();
+                sock.connect(new InetSocketAddress(successor.substring(0, colon), Integer.parseInt(successor.substring(colon + 1))), 2000);
+                in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+                out.writeInt(MAGIC);
+                out.flush();
+                successorBound = in.readByte() == 1;
+            } catch (IOException | RuntimeException x) {
+                closeQuietly(sock);
+                return "Cannot reach a successor at " + successor + " (" + x.getMessage() + "), still serving.";
+            }
+        }
+        JokeLog.info("event=drain-start successor=" + ((successor == null) ? "none" : successor) + " successorBound=" + successorBound);
+        report.println("Draining" + ((successor == null) ? "" : ", the successor at " + successor
+                + (successorBound ? " queues new connections" : " takes the joke port once it is closed")) + ".");
+        report.flush();
+
+        // Stop taking connections and let the ones open finish
+        JokeServer.startDrain();
+        long deadline = start + ServerConfig.drainTimeoutMillis();
+        long open;
+        while ((open = ServerMetrics.ACTIVE.sum()) > 0 && System.currentTimeMillis() < deadline) {
+            pause(POLL_MILLIS);
+        }
+        if (open > 0) {
+            JokeLog.warn("event=drain-timeout connections=" + open);
+            JokeServer.closeConnections();
+        }
+        // Everything the requests changed goes to disk before anybody else reads the journal
+        CycleJournal journal = JokeServer.getJournal();
+        if (journal != null) {
+            journal.stop();
+        }
+
+        String result;
+        if (sock == null) {
+            result = "Drained in " + (System.currentTimeMillis() - start) + " ms, " + open + " connections cut, shutting down.";
+        } else {
+            try {
+                sock.setSoTimeout((int) PORT_WAIT_MILLIS);
+                int sent = ClusterRing.writeUsers(out, JokeServer.getClientStatusTable().statuses());
+                int taken = in.readInt();
+                result = "Drained in " + (System.currentTimeMillis() - start) + " ms, " + open + " connections cut, "
+                        + taken + " of " + sent + " users handed to " + successor + ", shutting down.";
+            } catch (IOException x) {
+                // Everything is in the journal, which the successor replays when the handoff breaks off
+                result = "Drained, but the handoff to " + successor + " failed (" + x.getMessage()
+                        + "), the successor recovers the users from the journal. Shutting down.";
+            } finally {
+                closeQuietly(sock);
+            }
+        }
+        JokeLog.info("event=drain-done result=\"" + result + "\"");
+        report.println(result);
+        report.flush();
+        System.exit(0);
+        return result;
+    }
+
+    /*
+    Successor side, called by JokeServer.main in takeover mode before it binds any port. Waits for the predecessor,
+    recovers the journal once the predecessor has written it out, takes the users handed over and returns the joke
+    port listener. Without a predecessor in time it recovers the journal and binds the joke port like any start-up.
+     */
+    static ServerSocketChannel takeOver(int port, int backlog, CycleJournal journal) throws IOException {
+        int takeoverPort = port + TAKEOVER_PORT_OFFSET;
+        long wait = ServerConfig.takeoverWaitMillis();
+        long deadline = System.currentTimeMillis() + wait;
+        try (ServerSocket listener = new ServerSocket()) {
+            listener.setReuseAddress(true);
+            listener.bind(new InetSocketAddress(takeoverPort));
+            System.out.println("Waiting up to " + (wait / 1000) + " s for the server at port " + port
+                    + " to drain, at takeover port " + takeoverPort + ".");
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    System.out.println("No server handed over its users, starting from the journal.");
+                    JokeServer.recoverJournal(journal);
+                    return JokeServer.openListener(port, backlog);
+                }
+                listener.setSoTimeout((int) left);
+                try (Socket sock = listener.accept()) {
+                    ServerSocketChannel joke = receive(sock, port, backlog, journal);
+                    if (joke != null) {
+                        return joke;
+                    }
+                } catch (SocketTimeoutException ste) {
+                    // Checked at the top of the loop
+                }
+            }
+        }
+    }
+
+    // Take the users of one predecessor, null if the connection was not from a predecessor and we keep waiting
+    private static ServerSocketChannel receive(Socket sock, int port, int backlog, CycleJournal journal) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+        } catch (IOException x) {
+            return null;
+        }
+        // Bind next to the predecessor if the platform allows it, so no connection is refused while it drains
+        ServerSocketChannel joke = JokeServer.tryOpenListener(port, backlog);
+        out.writeByte((joke != null) ? 1 : 0);
+        out.flush();
+        System.out.println("The server at port " + port + " is draining" + ((joke != null) ? ", new connections wait for us." : "."));
+        boolean recovered = false;
+        try {
+            // The users come once the predecessor is drained and its journal is complete, which we replay first
+            sock.setSoTimeout(0);
+            in.mark(4);
+            in.readInt();
+            in.reset();
+            JokeServer.recoverJournal(journal);
+            recovered = true;
+            long start = System.currentTimeMillis();
+            int taken = ClusterRing.readUsers(in, JokeServer.getClientStatusTable());
+            out.writeInt(taken);
+            out.flush();
+            JokeLog.info("event=takeover users=" + taken + " ms=" + (System.currentTimeMillis() - start));
+            System.out.println("Took over " + taken + " users from the server at port " + port + ".");
+        } catch (IOException x) {
+            // The predecessor went away mid-way, what it did not hand over is in its journal
+            JokeLog.warn("event=takeover-failed error=\"" + x + "\"");
+            System.out.println("The handoff broke off (" + x.getMessage() + "), continuing from the journal.");
+            if (!recovered) {
+                JokeServer.recoverJournal(journal);
+            }
+        }
+        return (joke != null) ? joke : bindWhenFree(port, backlog);
+    }
+
+    // Bind the joke port as soon as the exiting predecessor released it
+    private static ServerSocketChannel bindWhenFree(int port, int backlog) throws IOException {
+        long deadline = System.currentTimeMillis() + PORT_WAIT_MILLIS;
+        while (true) {
+            ServerSocketChannel joke = JokeServer.tryOpenListener(port, backlog);
+            if (joke != null) {
+                return joke;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Port " + port + " is still taken " + PORT_WAIT_MILLIS + " ms after the handoff");
+            }
+            pause(POLL_MILLIS);
+        }
+    }
+
+    // Wait until nobody holds the given port anymore, the predecessor releases its other ports when it exits
+    static void awaitFree(int port) {
+        if (port > 65535) {
+            // Not a port number, the server that is given it logs that and does without
+            return;
+        }
+        long deadline = System.currentTimeMillis() + PORT_WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try (ServerSocket probe = new ServerSocket()) {
+                probe.setReuseAddress(true);
+                probe.bind(new InetSocketAddress(port));
+                return;
+            } catch (IOException taken) {
+                pause(POLL_MILLIS);
+            }
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket sock) {
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException x) {
+                // Nothing more to do for a connection we are done with
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*--------------------------------------------------------
+
+ServerConfig.java
+
+Central place for the start-up switches of JokeServer. Every switch is a Java system property with the "joke." prefix,
+so the existing command line ("java JokeServer" or "java JokeServer secondary") keeps working and new behavior is
+selected with -D options, for example:
+> java -Djoke.workers=pool -Djoke.workers.threads=32 -Djoke.workers.queue=512 JokeServer
+
+----------------------------------------------------------*/
+
+class ServerConfig {
+    // Prefix shared by every JokeServer property
+    private static final String PREFIX = "joke.";
+
+    // Joke port of this server, cluster nodes sharing one host each need their own
+    static int port(boolean secondary) {
+        return getInt("port", secondary ? 4546 : 4545);
+    }
+
+    // Admin port of this server, by default the joke port + 505 (5050 for the primary and 5051 for the secondary)
+    static int adminPort(int port) {
+        return getInt("admin.port", port + 505);
+    }
+
+    // Engine serving the joke port: "blocking" (ServerSocket plus Workers) or "nio" (selector loops)
+    static String engine() {
+        return getString("engine", "blocking");
+    }
+
+    // Number of selector threads of the NIO engine
+    static int nioSelectors() {
+        return getInt("nio.selectors", Runtime.getRuntime().availableProcessors());
+    }
+
+    // Execution model for accepted connections: "pool" (bounded pool), "thread" (one thread per connection) or "virtual"
+    static String workerMode() {
+        return getString("workers", "pool");
+    }
+
+    // Number of worker threads in the bounded pool of the joke port
+    static int workerThreads() {
+        return getInt("workers.threads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    // Number of accepted connections allowed to wait for a worker thread before new ones are rejected
+    static int workerQueue() {
+        return getInt("workers.queue", 256);
+    }
+
+    // Number of worker threads in the bounded pool of the admin port
+    static int adminThreads() {
+        return getInt("admin.threads", 2);
+    }
+
+    // Number of admin connections allowed to wait for an admin worker thread
+    static int adminQueue() {
+        return getInt("admin.queue", 16);
+    }
+
+    // How long a keep-alive session may stay silent before the server closes it
+    static long sessionIdleMillis() {
+        return getLong("session.idle.ms", 30000L);
+    }
+
+    // How long a request may take on the joke port, from its first byte (or the accept) to the last byte of its reply
+    static long requestTimeoutMillis() {
+        return getLong("request.timeout.ms", 10000L);
+    }
+
+    // How long a user may stay inactive before its ClientStatusTable entry is dropped, 0 keeps users forever
+    static long sessionTtlMillis() {
+        return getLong("session.ttl.ms", 3600000L);
+    }
+
+    // Largest number of users kept in the ClientStatusTable, 0 for no limit
+    static int sessionMax() {
+        return getInt("session.max", 1000000);
+    }
+
+    // Largest number of items a single batch request may ask for
+    static int batchMax() {
+        return getInt("batch.max", 100);
+    }
+
+    // Corpus file built by CorpusBuilder to serve instead of the built-in jokes/proverbs, empty for the built-in ones
+    static String corpusFile() {
+        return getString("corpus", "");
+    }
+
+    // Whether the cycles of every user are journaled to disk and restored at start-up, off by default
+    static boolean journalEnabled() {
+        return getBoolean("journal", false);
+    }
+
+    // Directory of the cycle journal, one per port so a primary and a secondary server can share a working directory
+    static String journalDir(int port) {
+        return getString("journal.dir", "JokeJournal-" + port);
+    }
+
+    // Whether every journal batch is forced to disk before the next one is written, off by default
+    static boolean journalSync() {
+        return getBoolean("journal.sync", false);
+    }
+
+    // Number of journal records after which a snapshot is taken, which bounds the replay at start-up
+    static long journalSnapshotRecords() {
+        return getLong("journal.snapshot.records", 100000L);
+    }
+
+    // How often the journal writer looks for changed users when it is idle
+    static long journalCommitMillis() {
+        return getLong("journal.commit.ms", 5L);
+    }
+
+    // Whether the cycles of every user are streamed to the peer server and taken from it, off by default
+    static boolean replicationEnabled() {
+        return getBoolean("replication", false);
+    }
+
+    // Replication address of the peer server, by default the other one of primary and secondary on this host
+    static String replicationPeer(boolean secondary) {
+        return getString("replication.peer", "localhost:" + (secondary ? 4645 : 4646));
+    }
+
+    // Number of recent batches kept to catch a reconnecting peer up without a full sync
+    static int replicationBacklog() {
+        return getInt("replication.backlog", 4096);
+    }
+
+    // Membership file of the cluster, one host:port per line, empty when this server is not part of a cluster
+    static String clusterFile() {
+        return getString("cluster", "");
+    }
+
+    // This server as it is listed in the membership file
+    static String clusterSelf(int port) {
+        return getString("cluster.self", "localhost:" + port);
+    }
+
+    // Number of points of every member on the consistent-hash ring
+    static int clusterVnodes() {
+        return getInt("cluster.vnodes", 128);
+    }
+
+    // Whether the server times the stages of every request for the stats command and the metrics port
+    static boolean metricsEnabled() {
+        return getBoolean("metrics", true);
+    }
+
+    // Port of the Prometheus text dump, 0 (the default) turns it off
+    static int metricsPort() {
+        return getInt("metrics.port", 0);
+    }
+
+    // Address the metrics port listens on, only the local host by default
+    static String metricsBind() {
+        return getString("metrics.bind", "127.0.0.1");
+    }
+
+    // Accept backlog of the joke port, connections the kernel completes before the server accepts them
+    static int backlog() {
+        return getInt("backlog", 128);
+    }
+
+    // Accept backlog of the admin port
+    static int adminBacklog() {
+        return getInt("admin.backlog", 16);
+    }
+
+    // Most connections served at once, past that a connection is answered busy, see AdmissionControl.java
+    static int inFlightMax() {
+        return getInt("inflight.max", 1024);
+    }
+
+    // Milliseconds a client turned away by the in-flight cap is told to wait
+    static long busyRetryMillis() {
+        return getLong("busy.retry.ms", 100L);
+    }
+
+    // Jokes/proverbs per second a single UUID may ask for in the long run, 0 (the default) turns the rate limit off
+    static int rateLimitRate() {
+        return getInt("ratelimit.rate", 0);
+    }
+
+    // Jokes/proverbs a single UUID may ask for at once after a quiet spell
+    static int rateLimitBurst() {
+        return getInt("ratelimit.burst", 100);
+    }
+
+    // Slots of the rate limiter, each a token bucket shared by the UUIDs that hash to it
+    static int rateLimitSlots() {
+        return getInt("ratelimit.slots", 65536);
+    }
+
+    // Whether this server takes over from a running one instead of starting on its own, see RollingRestart.java
+    static boolean takeover() {
+        return getBoolean("takeover", false);
+    }
+
+    // How long a takeover waits for the running server to start draining before starting on its own
+    static long takeoverWaitMillis() {
+        return getLong("takeover.wait.ms", 60000L);
+    }
+
+    // How long a drain gives the requests in flight before closing the connections still open
+    static long drainTimeoutMillis() {
+        return getLong("drain.timeout.ms", 10000L);
+    }
+
+    // Whether the joke port also takes single-datagram requests over UDP, see UdpJokeServer.java
+    static boolean udpEnabled() {
+        return getBoolean("udp", false);
+    }
+
+    // Threads reading and answering the datagrams of the UDP port
+    static int udpThreads() {
+        return getInt("udp.threads", 2);
+    }
+
+    // Slots of the UDP retransmit table, each remembers the last request and reply of the UUIDs that hash to it
+    static int udpDedupeSlots() {
+        return getInt("udp.dedupe.slots", 65536);
+    }
+
+    // Most credits a subscribed session may have outstanding, see JokeProtocol.java
+    static int subscribeWindow() {
+        return getInt("subscribe.window", 1000);
+    }
+
+    // Port of the HTTP front end, 0 (the default) turns it off, see HttpJokeServer.java
+    static int httpPort() {
+        return getInt("http.port", 0);
+    }
+
+    // Number of threads in the bounded pool of the HTTP port, a kept-alive connection holds its thread between requests
+    static int httpThreads() {
+        return getInt("http.threads", Math.max(128, workerThreads()));
+    }
+
+    // Number of HTTP connections allowed to wait for a thread before new ones are answered 503
+    static int httpQueue() {
+        return getInt("http.queue", workerQueue());
+    }
+
+    // Helper method to read a string property, falling back to the default value when it is not set
+    static String getString(String key, String defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    // Helper method to read an integer property, falling back to the default value when it is not set or not a number
+    static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Ignoring invalid value \"" + value + "\" for " + PREFIX + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Helper method to read a long property, falling back to the default value when it is not set or not a number
+    static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Ignoring invalid value \"" + value + "\" for " + PREFIX + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Helper method to read a boolean property, falling back to the default value when it is not set
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,275 @@
+/*--------------------------------------------------------
+
+ServerMetrics.java
+
+Runtime counters of a JokeServer, shown by the "stats" command of JokeClientAdmin and served as Prometheus text at
+-Djoke.metrics.port (off by default, on 127.0.0.1 unless -Djoke.metrics.bind says otherwise). There is no default port,
+since any fixed one is taken by some other exporter on a host that runs one (9100 is node_exporter's), and a primary
+and a secondary on one host need one each.
+
+a. Counters are LongAdders: each thread adds to its own cell when threads collide, so counting a request never makes
+   two workers wait for the same cache line. Reading a counter sums the cells, which only the stats readers pay for.
+b. The time of four stages of a request is kept in a LatencyHistogram each, in nanoseconds:
+       accept   from the accept of a connection until a thread starts serving it (the worker queue, or the hand-over
+                to a selector loop for the NIO engine)
+       parse    from a complete request line or frame until its reply is queued, without the lookup
+       lookup   taking the next items of the user's cycle from the ClientStatusTable
+       write    sending the queued reply to the socket
+   Timing a stage costs two System.nanoTime calls and a few LongAdder increments, well under a microsecond against
+   the tens of microseconds of a request. -Djoke.metrics=false turns the timing off, the counters stay.
+c. The connection, session, user and thread counts are read when asked for, not tracked per request.
+
+----------------------------------------------------------*/
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+class ServerMetrics {
+    // Read once, so with metrics off the JIT drops the timing code altogether
+    static final boolean TIMING = ServerConfig.metricsEnabled();
+
+    static final LongAdder ACCEPTED = new LongAdder();
+    // Open connections of the joke port, up on accept and down on close
+    static final LongAdder ACTIVE = new LongAdder();
+    // Connections answered busy, past the in-flight cap or with the worker pool and its queue full
+    static final LongAdder REJECTED = new LongAdder();
+    // Requests answered busy by the rate limit of their UUID
+    static final LongAdder THROTTLED = new LongAdder();
+    // Connections closed by their deadline: a request that took too long, or a session silent past the idle timeout
+    static final LongAdder EXPIRED = new LongAdder();
+    // Datagrams taken from the UDP port, retransmits among them answered from the last reply, and datagrams that
+    // could not be parsed or answered
+    static final LongAdder DATAGRAMS = new LongAdder();
+    static final LongAdder RETRANSMITS = new LongAdder();
+    static final LongAdder DATAGRAMS_DROPPED = new LongAdder();
+    // Sessions subscribed to a stream, and the items pushed to them
+    static final LongAdder SUBSCRIBERS = new LongAdder();
+    static final LongAdder STREAMED = new LongAdder();
+    // Requests answered on the HTTP port, and the writes they took: fewer writes than requests is pipelining at work
+    static final LongAdder HTTP_REQUESTS = new LongAdder();
+    static final LongAdder HTTP_WRITES = new LongAdder();
+    // Open keep-alive sessions and binary connections
+    static final LongAdder SESSIONS = new LongAdder();
+    // Requests answered with jokes/proverbs, and the jokes/proverbs in them
+    static final LongAdder REQUESTS = new LongAdder();
+    static final LongAdder ITEMS = new LongAdder();
+    static final LongAdder REDIRECTS = new LongAdder();
+    static final LongAdder QUITS = new LongAdder();
+
+    static final LatencyHistogram ACCEPT = new LatencyHistogram();
+    static final LatencyHistogram PARSE = new LatencyHistogram();
+    static final LatencyHistogram LOOKUP = new LatencyHistogram();
+    static final LatencyHistogram WRITE = new LatencyHistogram();
+
+    private static final long START_MILLIS = System.currentTimeMillis();
+    // Percentiles shown for every stage
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // Start of a timed stage, 0 when timing is off
+    static long start() {
+        return TIMING ? System.nanoTime() : 0;
+    }
+
+    // End of a timed stage that started at start
+    static void record(LatencyHistogram stage, long start) {
+        if (TIMING) {
+            stage.record(System.nanoTime() - start);
+        }
+    }
+
+    // End of the lookup of one request, whose time is also left in out so the parse stage can leave it out
+    static void recordLookup(long start, ReplyBuffer out) {
+        if (TIMING) {
+            long nanos = System.nanoTime() - start;
+            LOOKUP.record(nanos);
+            out.lookupNanos += nanos;
+        }
+    }
+
+    // End of the handling of a request line or frame, only counted as a parse if it queued a reply
+    static void recordParse(long start, ReplyBuffer out) {
+        if (TIMING) {
+            long lookup = out.lookupNanos;
+            out.lookupNanos = 0;
+            if (out.hasRemaining()) {
+                PARSE.record(System.nanoTime() - start - lookup);
+            }
+        }
+    }
+
+    // The stats command of the admin port: a few lines for a person to read
+    static String report() {
+        double upSeconds = Math.max(1, System.currentTimeMillis() - START_MILLIS) / 1000.0;
+        ClientStatusTable table = JokeServer.getClientStatusTable();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("JokeServer at port %d, %s mode%s, up %.0f s%n", JokeServer.getPort(),
+                JokeServer.getIsJoke() ? "joke" : "proverb", JokeServer.getIsSecondary() ? ", secondary" : "", upSeconds));
+        report.append(String.format("connections: %d active, %d accepted, %d rejected, %d expired, %d sessions%n",
+                ACTIVE.sum(), ACCEPTED.sum(), REJECTED.sum(), EXPIRED.sum(), SESSIONS.sum()));
+        report.append(String.format("requests: %d (%.1f/s), %d items, %d redirects, %d quits, %d throttled%n",
+                REQUESTS.sum(), REQUESTS.sum() / upSeconds, ITEMS.sum(), REDIRECTS.sum(), QUITS.sum(), THROTTLED.sum()));
+        report.append(String.format("datagrams: %d, %d retransmits, %d dropped%n",
+                DATAGRAMS.sum(), RETRANSMITS.sum(), DATAGRAMS_DROPPED.sum()));
+        report.append(String.format("http: %d requests in %d writes%n", HTTP_REQUESTS.sum(), HTTP_WRITES.sum()));
+        report.append(String.format("streams: %d subscribed, %d items pushed%n", SUBSCRIBERS.sum(), STREAMED.sum()));
+        if (table != null) {
+            report.append(String.format("users: %d, %d expired, %d evicted%n",
+                    table.size(), table.getExpiredCount(), table.getEvictedCount()));
+        }
+        report.append(String.format("threads: %d live, %d peak%n", threads.getThreadCount(), threads.getPeakThreadCount()));
+        CycleReplicator replicator = JokeServer.getReplicator();
+        if (replicator != null) {
+            report.append(String.format("replication: lag %d ms, %d batches sent, %d full syncs, %d records applied%n",
+                    replicator.getLagMillis(), replicator.getSentBatches(), replicator.getFullSyncs(), replicator.getAppliedRecords()));
+        }
+        ClusterRing cluster = JokeServer.getCluster();
+        if (cluster != null) {
+            report.append(String.format("cluster: %d members, %d users handed off, %d adopted%n",
+                    cluster.getMembers().size(), cluster.getHandedOff(), cluster.getAdopted()));
+        }
+        if (TIMING) {
+            stageLine(report, "accept", ACCEPT);
+            stageLine(report, "parse", PARSE);
+            stageLine(report, "lookup", LOOKUP);
+            stageLine(report, "write", WRITE);
+        }
+        return report.toString();
+    }
+
+    private static void stageLine(StringBuilder report, String name, LatencyHistogram stage) {
+        report.append(String.format("%s: %d timed, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n", name,
+                stage.getCount(), stage.percentile(0.5) / 1e3, stage.percentile(0.99) / 1e3,
+                stage.percentile(0.999) / 1e3, stage.getMax() / 1e3));
+    }
+
+    // The same numbers in the Prometheus text format, times in seconds
+    static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "joke_connections_accepted_total", "Connections accepted on the joke port.", ACCEPTED.sum());
+        counter(text, "joke_connections_rejected_total", "Connections answered busy, past the in-flight cap or by a full worker pool.", REJECTED.sum());
+        counter(text, "joke_connections_expired_total", "Connections closed by their request deadline or idle timeout.", EXPIRED.sum());
+        counter(text, "joke_datagrams_total", "Datagrams taken from the UDP port.", DATAGRAMS.sum());
+        counter(text, "joke_datagrams_retransmits_total", "UDP retransmits answered with the reply to the first copy.", RETRANSMITS.sum());
+        counter(text, "joke_datagrams_dropped_total", "UDP datagrams that could not be parsed or answered.", DATAGRAMS_DROPPED.sum());
+        counter(text, "joke_streamed_items_total", "Items pushed to subscribed sessions.", STREAMED.sum());
+        gauge(text, "joke_subscribers", "Sessions subscribed to a stream.", SUBSCRIBERS.sum());
+        counter(text, "joke_http_requests_total", "Requests answered on the HTTP port.", HTTP_REQUESTS.sum());
+        counter(text, "joke_http_writes_total", "Writes of HTTP answers, several pipelined answers share one.", HTTP_WRITES.sum());
+        gauge(text, "joke_connections_active", "Open connections of the joke port.", ACTIVE.sum());
+        gauge(text, "joke_sessions_active", "Open keep-alive sessions and binary connections.", SESSIONS.sum());
+        counter(text, "joke_requests_total", "Requests answered with jokes/proverbs.", REQUESTS.sum());
+        counter(text, "joke_items_total", "Jokes/proverbs served.", ITEMS.sum());
+        counter(text, "joke_redirects_total", "Requests redirected to the cluster node owning the user.", REDIRECTS.sum());
+        counter(text, "joke_quits_total", "Users that quit.", QUITS.sum());
+        counter(text, "joke_requests_throttled_total", "Requests answered busy by the rate limit of their UUID.", THROTTLED.sum());
+        ClientStatusTable table = JokeServer.getClientStatusTable();
+        if (table != null) {
+            gauge(text, "joke_users", "Users in the ClientStatusTable.", table.size());
+            counter(text, "joke_users_expired_total", "Users dropped after their time-to-live.", table.getExpiredCount());
+            counter(text, "joke_users_evicted_total", "Users dropped because the table was full.", table.getEvictedCount());
+        }
+        gauge(text, "joke_threads", "Live threads of the server JVM.", ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge(text, "joke_mode_joke", "1 in joke mode, 0 in proverb mode.", JokeServer.getIsJoke() ? 1 : 0);
+        CycleReplicator replicator = JokeServer.getReplicator();
+        if (replicator != null) {
+            gauge(text, "joke_replication_lag_seconds", "Age of the oldest change not yet acknowledged by the peer.", replicator.getLagMillis() / 1e3);
+            counter(text, "joke_replication_batches_sent_total", "Replication batches sent to the peer.", replicator.getSentBatches());
+            counter(text, "joke_replication_records_applied_total", "User records taken from the peer.", replicator.getAppliedRecords());
+        }
+        ClusterRing cluster = JokeServer.getCluster();
+        if (cluster != null) {
+            gauge(text, "joke_cluster_members", "Members of the cluster.", cluster.getMembers().size());
+            counter(text, "joke_cluster_handed_off_total", "Users handed off to another node.", cluster.getHandedOff());
+            counter(text, "joke_cluster_adopted_total", "Users taken over from another node.", cluster.getAdopted());
+        }
+        if (TIMING) {
+            text.append("# HELP joke_stage_seconds Time of each stage of a request.\n");
+            text.append("# TYPE joke_stage_seconds summary\n");
+            summary(text, "accept", ACCEPT);
+            summary(text, "parse", PARSE);
+            summary(text, "lookup", LOOKUP);
+            summary(text, "write", WRITE);
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, double value) {
+        metric(text, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        metric(text, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder text, String name, String help, String type, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(number(value)).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String stage, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            text.append("joke_stage_seconds{stage=\"").append(stage).append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(number(histogram.percentile(quantile) / 1e9)).append('\n');
+        }
+        text.append("joke_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(number(histogram.getSum() / 1e9)).append('\n');
+        text.append("joke_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(histogram.getCount()).append('\n');
+    }
+
+    // Whole numbers without a fraction, the rest as Java prints doubles, both of which Prometheus reads
+    private static String number(double value) {
+        return (value == Math.rint(value) && Math.abs(value) < 1e15) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    /*
+    Serve the Prometheus text to anything that connects to the metrics port. Every connection gets one HTTP/1.0
+    response and is closed, which is all a scraper or curl needs; the request itself is read and ignored.
+     */
+    static void startHttp(int port) {
+        if (port <= 0) {
+            return;
+        }
+        if (port > 65535) {
+            JokeLog.error("event=metrics-port-error port=" + port + " error=\"not a port number, metrics are off\"");
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try (ServerSocket server = new ServerSocket()) {
+                server.bind(new InetSocketAddress(InetAddress.getByName(ServerConfig.metricsBind()), port));
+                System.out.println("Metrics at http://" + ServerConfig.metricsBind() + ":" + port + "/metrics");
+                while (JokeServer.isRunning()) {
+                    try (Socket sock = server.accept()) {
+                        sock.setSoTimeout(2000);
+                        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.ISO_8859_1));
+                        String line;
+                        // Skip the request line and the headers
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            continue;
+                        }
+                        byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                        OutputStream out = sock.getOutputStream();
+                        out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                                + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                        out.write(body);
+                        out.flush();
+                    } catch (IOException x) {
+                        // A scraper that went away only costs its own connection
+                        JokeLog.debug("event=metrics-error error=\"" + x + "\"");
+                    }
+                }
+            } catch (IOException ioe) {
+                JokeLog.warn("event=metrics-port-error port=" + port + " error=\"" + ioe + "\"");
+            }
+        }, "JokeServer-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
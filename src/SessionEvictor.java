@@ -0,0 +1,164 @@
+/*--------------------------------------------------------
+
+SessionEvictor.java
+
+Removes ClientStatusTable entries of users that went away without sending "quit", so the table does not grow forever.
+a. Time-to-live: a user that has not asked for anything for -Djoke.session.ttl.ms (one hour by default) is dropped.
+b. Maximum size: once the table holds more than -Djoke.session.max users (one million by default) the least recently
+   active ones are dropped first. 0 turns the limit off.
+
+The work is amortized with a timer wheel: every ClientStatus sits in the slot of the tick at which it would expire.
+A request only writes the last-access time of its ClientStatus, nothing else. The evictor thread wakes up once per
+tick and only looks at the one slot that is due. An entry found there that was used in the meantime is moved to the
+slot of its new expiry tick, the others are removed. There is never a full scan of the table and never a table lock.
+
+----------------------------------------------------------*/
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+class SessionEvictor implements Runnable {
+    // Finest and coarsest tick we use, the tick is about 1/512 of the time-to-live in between
+    private static final long MIN_TICK_MILLIS = 1000L;
+    private static final long MAX_TICK_MILLIS = 60000L;
+
+    private final ClientStatusTable table;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final long tickMillis;
+    // One queue per tick, a queue is shared by every tick that maps to the same slot
+    private final Queue<ClientStatus>[] wheel;
+    // Last tick that has been processed by the evictor thread
+    private long processedTick;
+    private volatile Thread thread;
+
+    // Eviction counters, read by whoever wants to know how big the table gets and why entries leave it
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SessionEvictor(ClientStatusTable table, long ttlMillis, int maxSize) {
+        this.table = table;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        tickMillis = Math.min(MAX_TICK_MILLIS, Math.max(MIN_TICK_MILLIS, ttlMillis / 512));
+        // Enough slots for one time-to-live, so a fresh entry never lands in a slot that is due before its expiry
+        int slots = (int) (ttlMillis / tickMillis) + 2;
+        wheel = new Queue[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        processedTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    // Start the evictor thread, it is a daemon so it never keeps the server alive on its own
+    void start() {
+        Thread t = new Thread(this, "JokeServer-session-evictor");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+        System.out.println("Idle users are dropped after " + ttlMillis + " ms"
+                + ((maxSize > 0) ? ", at most " + maxSize + " users are kept." : "."));
+    }
+
+    // Called for every new ClientStatus, puts it in the slot of its expiry tick
+    void schedule(ClientStatus status) {
+        long expiryTick = (status.lastAccess + ttlMillis) / tickMillis;
+        wheel[(int) (expiryTick % wheel.length)].add(status);
+    }
+
+    // Called when the table grew past its maximum size, wakes the evictor up instead of waiting for the next tick
+    void overflow() {
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public void run() {
+        while (true) {
+            LockSupport.parkNanos(tickMillis * 1000000L);
+            long before = expiredCount.get() + overflowCount.get();
+            long now = System.currentTimeMillis();
+            long nowTick = now / tickMillis;
+            // Catch up on every tick that passed since the last round, normally exactly one
+            while (processedTick < nowTick) {
+                processedTick++;
+                expireSlot(processedTick, now);
+            }
+            if (maxSize > 0 && table.size() > maxSize) {
+                evictOverflow();
+            }
+            long evicted = expiredCount.get() + overflowCount.get() - before;
+            if (evicted > 0) {
+                JokeLog.info("event=evict users=" + evicted + " left=" + table.size() + " expiredTotal=" + expiredCount.get()
+                        + " overCapacityTotal=" + overflowCount.get());
+            }
+        }
+    }
+
+    // Go through the slot of one tick, drop the entries that really expired and move the others to their new slot
+    private void expireSlot(long tick, long now) {
+        Queue<ClientStatus> slot = wheel[(int) (tick % wheel.length)];
+        // Only look at what is in the slot right now, entries re-added to it below belong to a later rotation
+        for (int n = slot.size(); n > 0; n--) {
+            ClientStatus status = slot.poll();
+            if (status == null) {
+                break;
+            }
+            if (!table.isCurrent(status)) {
+                // The user quit or was evicted already, just forget the entry
+                continue;
+            }
+            if (status.lastAccess + ttlMillis <= now) {
+                if (table.remove(status)) {
+                    expiredCount.incrementAndGet();
+                }
+            } else {
+                reschedule(status, tick);
+            }
+        }
+    }
+
+    /*
+    The table is too big, drop users starting with the slots that are due first, which hold the users that have been
+    idle for the longest time. Entries that were used since they were slotted are moved on instead of dropped.
+     */
+    private void evictOverflow() {
+        for (long tick = processedTick + 1; tick <= processedTick + wheel.length && table.size() > maxSize; tick++) {
+            Queue<ClientStatus> slot = wheel[(int) (tick % wheel.length)];
+            for (int n = slot.size(); n > 0 && table.size() > maxSize; n--) {
+                ClientStatus status = slot.poll();
+                if (status == null) {
+                    break;
+                }
+                if (!table.isCurrent(status)) {
+                    continue;
+                }
+                if ((status.lastAccess + ttlMillis) / tickMillis <= tick) {
+                    if (table.remove(status)) {
+                        overflowCount.incrementAndGet();
+                    }
+                } else {
+                    reschedule(status, tick);
+                }
+            }
+        }
+    }
+
+    // Put an entry that is still in use back into the wheel, never into the slot we are working on
+    private void reschedule(ClientStatus status, long currentTick) {
+        long expiryTick = Math.max(currentTick + 1, (status.lastAccess + ttlMillis) / tickMillis);
+        wheel[(int) (expiryTick % wheel.length)].add(status);
+    }
+}
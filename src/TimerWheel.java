@@ -0,0 +1,167 @@
+/*--------------------------------------------------------
+
+TimerWheel.java
+
+A hashed timer wheel: one thread and one array of slots keep the deadlines of every connection of the server,
+instead of a timer (or a socket timeout, or a sweep over every connection) per connection.
+
+a. Time is cut into ticks of a fixed length. A deadline goes into the slot of its tick modulo the number of slots,
+   so the slots are reused by every turn of the wheel and a deadline further away than one turn simply stays in its
+   slot until its turn comes. Each tick the wheel thread looks at one slot only, whatever the number of deadlines.
+b. Connections re-arm their deadline for every request, far more often than deadlines actually expire. Arming is a
+   volatile write, plus a hand-over to the wheel thread only when the new deadline is earlier than the slot the
+   deadline waits in: a later deadline is noticed when its old slot comes round and moved on from there. Cancelling
+   is a volatile write as well, the cancelled deadline is dropped when its slot comes round.
+c. Only the wheel thread touches the slots, the other threads hand deadlines over through a lock-free queue, so
+   arming never waits for a lock.
+d. An expired deadline runs its task on the wheel thread, which must be quick: closing a socket, or handing the
+   connection to its selector loop. Deadlines fire up to one tick late, never early.
+
+----------------------------------------------------------*/
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+class TimerWheel implements Runnable {
+    // slotTick of a deadline that is in no slot
+    private static final long NONE = -1L;
+    // deadline of a Timeout that is not armed
+    private static final long CANCELLED = Long.MAX_VALUE;
+
+    /*
+    The deadline of one connection, armed again and again for the life of the connection. Both ticks are volatile:
+    arm writes the deadline and then reads the slot, the wheel writes the slot and then reads the deadline, so a
+    change of one side is always seen by the other.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        // Tick at which the task runs, CANCELLED when not armed
+        private volatile long deadline = CANCELLED;
+        // Tick of the slot the wheel keeps this Timeout in, NONE if it is in none, written by the wheel thread only
+        private volatile long slotTick = NONE;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout>[] slots;
+    // Deadlines handed over by other threads, placed in their slot by the wheel thread between two ticks
+    private final Queue<Timeout> inbound = new ConcurrentLinkedQueue<>();
+    // Deadlines found in the current slot that belong to a later tick, placed once the slot has been gone through
+    private final List<Timeout> moved = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    // Next tick the wheel thread looks at, also the earliest tick a deadline is placed at
+    private long tick;
+
+    // A wheel of slotCount slots (rounded up to a power of two) of tickMillis each, run by a daemon thread of that name
+    @SuppressWarnings("unchecked")
+    TimerWheel(String name, long tickMillis, int slotCount) {
+        tickNanos = tickMillis * 1000000L;
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        mask = size - 1;
+        slots = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A deadline for task, not armed yet
+    Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    // Run the task of t in delayMillis, instead of at the time it was armed for before, if any
+    void arm(Timeout t, long delayMillis) {
+        long deadline = (System.nanoTime() - startNanos + delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+        t.deadline = deadline;
+        long slot = t.slotTick;
+        // A slot that comes round before the new deadline moves it on by itself
+        if (slot == NONE || slot > deadline) {
+            inbound.add(t);
+        }
+    }
+
+    // Do not run the task of t, until it is armed again
+    void cancel(Timeout t) {
+        t.deadline = CANCELLED;
+    }
+
+    public void run() {
+        while (true) {
+            long wait = startNanos + tick * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            expire(slots[(int) (tick & mask)], tick);
+            tick++;
+            for (Timeout t : moved) {
+                place(t);
+            }
+            moved.clear();
+            Timeout t;
+            while ((t = inbound.poll()) != null) {
+                long slot = t.slotTick;
+                // Already in a slot that comes round in time
+                if (slot == NONE || slot > t.deadline) {
+                    place(t);
+                }
+            }
+        }
+    }
+
+    // Go through the slot of tick now: run what is due, drop what was cancelled, move on what was armed again
+    private void expire(ArrayDeque<Timeout> slot, long now) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            long slotTick = t.slotTick;
+            if (slotTick > now && (slotTick & mask) == (now & mask)) {
+                // Due in a later turn of the wheel
+                continue;
+            }
+            it.remove();
+            if (slotTick != now) {
+                // A copy left behind when the deadline was placed in an earlier slot
+                continue;
+            }
+            if (t.deadline <= now) {
+                t.slotTick = NONE;
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    JokeLog.error("event=timer-task-error error=\"" + e + "\"");
+                }
+            } else {
+                moved.add(t);
+            }
+        }
+    }
+
+    // Put t in the slot of its deadline, or forget it if it was cancelled, between two ticks
+    private void place(Timeout t) {
+        long deadline = t.deadline;
+        if (deadline == CANCELLED) {
+            t.slotTick = NONE;
+            // Armed again after all, by a thread that saw the old slot and left it to us
+            deadline = t.deadline;
+            if (deadline == CANCELLED) {
+                return;
+            }
+        }
+        long target = Math.max(deadline, tick);
+        t.slotTick = target;
+        slots[(int) (target & mask)].add(t);
+        // Armed for an earlier tick meanwhile, by a thread that saw the old slot and left it to us
+        if (t.deadline < deadline) {
+            place(t);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*--------------------------------------------------------
+
+UdpJokeServer.java
+
+Single-datagram requests on the joke port over UDP, turned on with -Djoke.udp=true. A request and its reply fit
+easily in one datagram each, so a client that only wants its next joke/proverb saves the TCP handshake and teardown
+of a one-shot connection, and the server saves the accept, the socket and the thread or selector key.
+
+Request, one datagram of text lines:
+    <request id>
+    <username>
+    <UUID>
+Reply, one datagram: the request id line, then exactly what the one-shot text protocol answers to the same username
+and UUID (the joke/proverb line, "#MOVED", "#BUSY" or the quit line, see JokeProtocol.java).
+The request id is a number the client picks for each request and keeps for the retransmits of that request.
+
+a. UDP loses datagrams, so a client that gets no reply sends the same request again. A retransmit must not advance the
+   user's cycle a second time: the server remembers the last request id and reply of each UUID and answers a request
+   with the same id from there, without touching the ClientStatusTable. A copy that arrives while the first one is
+   still being answered is dropped, the client retransmits again once the reply is ready.
+b. The memory is a fixed table of -Djoke.udp.dedupe.slots entries (65536 by default), an entry per UUID hash, updated
+   with compare-and-set. A UUID that shares its slot with a busier one may lose its entry between a request and the
+   retransmit, which then counts as a new request; with retransmits coming within a second that takes a collision
+   within that second.
+c. -Djoke.udp.threads threads (2 by default) each read up to a batch of datagrams off the shared port in one go,
+   answer all of them, then send all the replies, with buffers allocated once per thread. Java offers no
+   recvmmsg/sendmmsg, so a batch still costs a system call per datagram, but no wake-up and no allocation per datagram.
+d. A reply too big for one datagram, or one the kernel has no room for right now, is dropped and counted: the client
+   asks again. A drain closes the UDP port together with the TCP one, the clients retransmit to the successor.
+
+----------------------------------------------------------*/
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class UdpJokeServer {
+    // Datagrams read by a thread before it answers them
+    private static final int BATCH = 32;
+    // Largest request we read, the three lines of a valid request are far shorter
+    private static final int MAX_REQUEST_BYTES = 512;
+    // Largest payload of a UDP datagram
+    private static final int MAX_REPLY_BYTES = 65507;
+
+    /*
+    The last request of a UUID and its reply. The reply is null while the request is being answered, so a copy that
+    arrives meanwhile is recognized and dropped instead of being answered a second time.
+     */
+    private static final class Recent {
+        final long mostSigBits;
+        final long leastSigBits;
+        final long requestId;
+        final byte[] reply;
+
+        Recent(UUID uuid, long requestId, byte[] reply) {
+            this.mostSigBits = uuid.getMostSignificantBits();
+            this.leastSigBits = uuid.getLeastSignificantBits();
+            this.requestId = requestId;
+            this.reply = reply;
+        }
+
+        boolean isRequest(UUID uuid, long id) {
+            return requestId == id && mostSigBits == uuid.getMostSignificantBits() && leastSigBits == uuid.getLeastSignificantBits();
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Thread[] threads;
+    private final AtomicReferenceArray<Recent> recent;
+    private final int slotShift;
+
+    private UdpJokeServer(DatagramChannel channel, int threadCount, int slots) {
+        this.channel = channel;
+        int size = Integer.highestOneBit(Math.max(2, Math.min(slots, 1 << 24)) - 1) << 1;
+        recent = new AtomicReferenceArray<>(size);
+        slotShift = 64 - Integer.numberOfTrailingZeros(size);
+        threads = new Thread[Math.max(1, threadCount)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this::serve, "JokeServer-udp-" + i);
+            threads[i].setDaemon(true);
+        }
+    }
+
+    // Bind the UDP side of the joke port and start answering datagrams on it
+    static UdpJokeServer start(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            // A successor may bind it while its predecessor drains, like the TCP side of the joke port
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            JokeServer.setReusePort(channel);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException x) {
+            channel.close();
+            throw x;
+        }
+        UdpJokeServer server = new UdpJokeServer(channel, ServerConfig.udpThreads(), ServerConfig.udpDedupeSlots());
+        for (Thread thread : server.threads) {
+            thread.start();
+        }
+        System.out.println("JokeServer takes single-datagram requests at UDP port " + port + " with "
+                + server.threads.length + " threads.");
+        return server;
+    }
+
+    // Stop taking datagrams, called by a drain so the successor gets the port
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // Not reading anymore either way
+        }
+    }
+
+    // Body of each thread: wait for datagrams, read a batch, answer it, send the replies, until the port is closed
+    private void serve() {
+        ByteBuffer[] requests = new ByteBuffer[BATCH];
+        SocketAddress[] senders = new SocketAddress[BATCH];
+        byte[][] replies = new byte[BATCH][];
+        for (int i = 0; i < BATCH; i++) {
+            requests[i] = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        }
+        ReplyBuffer out = new ReplyBuffer();
+        // Every thread has a selector of its own on the shared channel, the first thread awake takes what is there
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (channel.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int count = 0;
+                while (count < BATCH) {
+                    requests[count].clear();
+                    if ((senders[count] = channel.receive(requests[count])) == null) {
+                        break;
+                    }
+                    count++;
+                }
+                ServerMetrics.DATAGRAMS.add(count);
+                for (int i = 0; i < count; i++) {
+                    requests[i].flip();
+                    replies[i] = answer(requests[i], out);
+                }
+                for (int i = 0; i < count; i++) {
+                    if (replies[i] != null && channel.send(ByteBuffer.wrap(replies[i]), senders[i]) == 0) {
+                        // No room in the send buffer, the client retransmits
+                        ServerMetrics.DATAGRAMS_DROPPED.increment();
+                    }
+                    replies[i] = null;
+                    senders[i] = null;
+                }
+            }
+        } catch (IOException ioe) {
+            // A drain closing the channel ends the threads, anything else is worth an error
+            if (channel.isOpen()) {
+                JokeLog.error("event=udp-error error=\"" + ioe + "\"");
+            }
+        }
+    }
+
+    // The reply to one datagram, the remembered one for a retransmit, null if there is nothing to send back
+    private byte[] answer(ByteBuffer request, ReplyBuffer out) {
+        String[] lines = new String[3];
+        long requestId;
+        UUID uuid;
+        try {
+            if (!parseLines(request, lines)) {
+                throw new IllegalArgumentException("expected 3 lines");
+            }
+            requestId = Long.parseLong(lines[0]);
+            uuid = UUID.fromString(lines[2]);
+        } catch (IllegalArgumentException malformed) {
+            ServerMetrics.DATAGRAMS_DROPPED.increment();
+            return null;
+        }
+
+        // Claim the slot of this UUID for this request, or find that it was answered already
+        int slot = slotOf(uuid);
+        Recent claim = new Recent(uuid, requestId, null);
+        while (true) {
+            Recent last = recent.get(slot);
+            if (last != null && last.isRequest(uuid, requestId)) {
+                if (last.reply == null) {
+                    // The first copy is still being answered
+                    ServerMetrics.DATAGRAMS_DROPPED.increment();
+                    return null;
+                }
+                ServerMetrics.RETRANSMITS.increment();
+                return last.reply;
+            }
+            if (recent.compareAndSet(slot, last, claim)) {
+                break;
+            }
+        }
+
+        byte[] reply = null;
+        try {
+            Worker.handleRequest(lines[1], lines[2], out);
+            byte[] prefix = (lines[0] + System.lineSeparator()).getBytes(ReplyBuffer.CHARSET);
+            int length = prefix.length + out.remaining();
+            if (out.hasRemaining() && length <= MAX_REPLY_BYTES) {
+                reply = new byte[length];
+                ByteBuffer target = ByteBuffer.wrap(reply);
+                target.put(prefix);
+                out.drainTo(target);
+            } else if (out.hasRemaining()) {
+                JokeLog.warn("event=udp-reply-too-long bytes=" + length + " uuid=" + lines[2]);
+                ServerMetrics.DATAGRAMS_DROPPED.increment();
+            }
+        } finally {
+            // Emptied whatever happened, the buffer serves the next datagram
+            out.clear();
+            // Unless another UUID took the slot meanwhile, the next copy of this request gets the same reply
+            recent.compareAndSet(slot, claim, (reply == null) ? null : new Recent(uuid, requestId, reply));
+        }
+        return reply;
+    }
+
+    // Split the datagram into its three lines, accepting "\n" and "\r\n" and a last line without a line end
+    private static boolean parseLines(ByteBuffer request, String[] lines) {
+        byte[] bytes = request.array();
+        int start = 0;
+        int end = request.limit();
+        for (int line = 0; line < lines.length; line++) {
+            if (start > end || (start == end && line < lines.length - 1)) {
+                return false;
+            }
+            int stop = start;
+            while (stop < end && bytes[stop] != '\n') {
+                stop++;
+            }
+            int textEnd = (stop > start && bytes[stop - 1] == '\r') ? stop - 1 : stop;
+            lines[line] = new String(bytes, start, textEnd - start, ReplyBuffer.CHARSET);
+            start = stop + 1;
+        }
+        return true;
+    }
+
+    // Same mixing as the rate limiter, client-made UUIDs may not spread over the slots by themselves
+    private int slotOf(UUID uuid) {
+        long h = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> slotShift);
+    }
+}
@@ -0,0 +1,80 @@
+/*--------------------------------------------------------
+
+WorkerPool.java
+
+Creates the executor that runs connection handlers for JokeServer and AdminServer.
+Three execution models can be selected at start-up with -Djoke.workers=<mode>:
+a. pool    - a fixed number of worker threads in front of a bounded queue. When both are full the connection is
+             rejected and closed right away, so the server levels off under overload instead of running out of threads.
+b. thread  - the original behavior, one new platform thread per accepted connection.
+c. virtual - one virtual thread per connection. It needs a JVM with virtual threads (Java 21+); on older JVMs the
+             server falls back to the bounded pool.
+
+----------------------------------------------------------*/
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class WorkerPool {
+
+    // Create the executor for the given server name using the execution model chosen at start-up
+    static ExecutorService create(String name, int threads, int queue) {
+        String mode = ServerConfig.workerMode();
+        if (mode.equalsIgnoreCase("thread")) {
+            System.out.println(name + " uses one thread per connection.");
+            return newThreadPerConnection(name);
+        }
+        if (mode.equalsIgnoreCase("virtual")) {
+            ExecutorService virtual = newVirtualThreadPerConnection();
+            if (virtual != null) {
+                System.out.println(name + " uses one virtual thread per connection.");
+                return virtual;
+            }
+            System.out.println("Virtual threads are not available on this JVM, " + name + " falls back to a bounded pool.");
+        }
+        System.out.println(name + " uses a bounded pool of " + threads + " threads with a queue of " + queue + " connections.");
+        return newBoundedPool(name, threads, queue);
+    }
+
+    // Bounded pool: fixed threads, bounded queue, and connections past the limit are rejected instead of queued
+    static ExecutorService newBoundedPool(String name, int threads, int queue) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), namedThreads(name), new RejectConnection());
+    }
+
+    // The original model, every task gets a brand new platform thread
+    static ExecutorService newThreadPerConnection(String name) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), namedThreads(name), new RejectConnection());
+    }
+
+    // Look up Executors.newVirtualThreadPerTaskExecutor() by reflection so the server still compiles and runs on Java 8
+    static ExecutorService newVirtualThreadPerConnection() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    // Thread factory that names worker threads after their server so they are easy to find in a thread dump
+    static ThreadFactory namedThreads(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-worker-" + counter.incrementAndGet());
+            }
+        };
+    }
+
+    // When the pool and its queue are full, tell the connection task so it can close its socket
+    static class RejectConnection implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (r instanceof ConnectionTask) {
+                ((ConnectionTask) r).reject();
+            }
+        }
+    }
+}